@@ -0,0 +1,206 @@
+package agrenseqDataStructures;
+
+
+/**
+ *
+ * Calculates association scores straight from packed presence bits. The association score of a kmer is the sum of the phenotype weights of the accessions it is present in.
+ *
+ * The weights are dense and aligned to the columns of the matrix. For every byte of the presence bits there is a table with the sum of weights for all 256 bit patterns,
+ * so a row costs one lookup per non-zero byte instead of one test per accession.
+ * Several phenotypes can be scored at once. The sums of all phenotypes for one bit pattern are next to each other, so a row is a small product of its presence bits with the weight matrix.
+ *
+ * The tables grow with the number of phenotypes, which can be large with permutations. If the byte tables would take more than TABLE_LIMIT doubles, the presence bits are looked up in smaller pieces of 4, 2 or 1 bits.
+ * With 1 bit the table is just the weights of each accession.
+ *
+ * @author steuernb
+ *
+ */
+public class AssociationScorer implements PresenceScorer {
+
+	/**
+	 * largest number of doubles in the lookup tables before smaller pieces of the presence bits are used.
+	 */
+	private static final long TABLE_LIMIT = 1L << 24;
+
+	double[][] weights;
+	double[] table;
+	int phenotypes;
+	int accessions;
+
+	/**
+	 * bits of the presence that are looked up at once, 8, 4, 2 or 1, and the number of such pieces.
+	 */
+	int bits;
+	int pieces;
+
+
+
+	/**
+	 *
+	 * @param weights
+	 * 		weight of each accession in matrix column order. Accessions without phenotype have weight 0.
+	 */
+	public AssociationScorer(double[] weights){
+		this(new double[][]{weights});
+	}
+
+	/**
+	 *
+	 * @param weights
+	 * 		one row of weights per phenotype, each in matrix column order.
+	 */
+	public AssociationScorer(double[][] weights){
+		this.weights = weights;
+		this.phenotypes = weights.length;
+		this.accessions = weights.length == 0 ? 0 : weights[0].length;
+		int p = this.phenotypes;
+
+		this.bits = 8;
+		while( this.bits > 1 && tableSize(this.accessions, this.bits, p) > TABLE_LIMIT){
+			this.bits = this.bits >>> 1;
+		}
+		long size = tableSize(this.accessions, this.bits, p);
+		if( size > Integer.MAX_VALUE - 8){
+			throw new IllegalArgumentException("Cannot score " + p + " phenotypes and permutations of " + this.accessions + " accessions at once, the weights alone would take " + (size * 8 / 1024 / 1024) + " MB. Use fewer permutations or phenotypes.");
+		}
+		this.pieces = (this.accessions + this.bits - 1) / this.bits;
+		int patterns = 1 << this.bits;
+
+		this.table = new double[(int) size];
+		for( int b = 0; b < this.pieces; b++){
+			int offset = b * patterns;
+			for( int v = 1; v < patterns; v++){
+				int accession = b * this.bits + Integer.numberOfTrailingZeros(v);
+				int source = (offset + (v & (v - 1))) * p;
+				int target = (offset + v) * p;
+				for( int i = 0; i< p; i++){
+					double w = accession < this.accessions ? weights[i][accession] : 0;
+					this.table[target + i] = this.table[source + i] + w;
+				}
+			}
+		}
+	}
+
+	private static long tableSize(int accessions, int bits, int phenotypes){
+		return (long) ((accessions + bits - 1) / bits) * (1 << bits) * phenotypes;
+	}
+
+
+
+	/**
+	 *
+	 * Resolve a phenotype against the columns of a matrix. Accessions that are not in the phenotype get weight 0, phenotype entries that are not in the matrix are ignored.
+	 *
+	 * @param phenotype
+	 * @param accessions
+	 * 		accession names in matrix column order.
+	 * @return
+	 */
+	public static double[] getWeights(Phenotype phenotype, String[] accessions){
+		double[] weights = new double[accessions.length];
+		for( int i = 0; i< accessions.length; i++){
+			Double score = phenotype.getPhenotypes().get(accessions[i]);
+			if( score != null){
+				weights[i] = score.doubleValue();
+			}
+		}
+		return weights;
+	}
+
+	public static double[][] getWeights(Phenotype[] phenotypes, String[] accessions){
+		double[][] weights = new double[phenotypes.length][];
+		for( int i = 0; i< phenotypes.length; i++){
+			weights[i] = getWeights(phenotypes[i], accessions);
+		}
+		return weights;
+	}
+
+
+
+	/**
+	 *
+	 * @param presence
+	 * 		presence bits of a kmer. Bit i of word i/64 stands for accession i.
+	 * @return
+	 * 		the association score of the first phenotype.
+	 */
+	public double score(long[] presence){
+		double score = 0;
+		int p = this.phenotypes;
+		int bits = this.bits;
+		int mask = (1 << bits) - 1;
+		int perWord = 64 / bits;
+		int words = Math.min(presence.length, (this.pieces + perWord - 1) / perWord);
+		for( int w = 0; w < words; w++){
+			long word = presence[w];
+			while( word != 0){
+				int shift = Long.numberOfTrailingZeros(word) & -bits;
+				int b = w * perWord + shift / bits;
+				if( b >= this.pieces){
+					break;
+				}
+				score = score + this.table[((b << bits) + ((int) (word >>> shift) & mask)) * p];
+				word = word & ~((long) mask << shift);
+			}
+		}
+		return score;
+	}
+
+
+	/**
+	 *
+	 * Score a row for all phenotypes.
+	 *
+	 * @param presence
+	 * 		presence bits of a kmer. Bit i of word i/64 stands for accession i.
+	 * @param scores
+	 * 		receives one association score per phenotype.
+	 */
+	public void score(long[] presence, double[] scores){
+		int p = this.phenotypes;
+		for( int i = 0; i< p; i++){
+			scores[i] = 0;
+		}
+		int bits = this.bits;
+		int mask = (1 << bits) - 1;
+		int perWord = 64 / bits;
+		int words = Math.min(presence.length, (this.pieces + perWord - 1) / perWord);
+		for( int w = 0; w < words; w++){
+			long word = presence[w];
+			while( word != 0){
+				int shift = Long.numberOfTrailingZeros(word) & -bits;
+				int b = w * perWord + shift / bits;
+				if( b >= this.pieces){
+					break;
+				}
+				int offset = ((b << bits) + ((int) (word >>> shift) & mask)) * p;
+				for( int i = 0; i< p; i++){
+					scores[i] = scores[i] + this.table[offset + i];
+				}
+				word = word & ~((long) mask << shift);
+			}
+		}
+	}
+
+
+	public double[][] getWeights(){
+		return this.weights;
+	}
+
+	/**
+	 * @return
+	 * 		number of phenotypes.
+	 */
+	public int getPhenotypeCount(){
+		return this.phenotypes;
+	}
+
+	/**
+	 * @return
+	 * 		number of accessions.
+	 */
+	public int size(){
+		return this.accessions;
+	}
+
+}
@@ -0,0 +1,245 @@
+package agrenseqDataStructures;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ *
+ * Reads the binary format of the presence/absence matrix through memory mapping. Rows are read straight from the mapped file, nothing is parsed.
+ *
+ * The format, all numbers big endian:
+ * <pre>
+ *  0  8 bytes  magic "AgRenSeq"
+ *  8  int      format version
+ * 12  int      kmer size
+ * 16  int      number of longs per kmer (1 for kmers up to 32, 2 up to 64)
+ * 20  int      number of accessions
+ * 24  int      number of longs per presence pattern
+ * 28  int      flags (1 = kmers are canonical, 2 = rows are sorted by kmer)
+ * 32  long     number of rows
+ * 40  long     offset of the first row
+ * 48           accession names, each an int with the number of bytes followed by the UTF-8 bytes
+ *              zero padding up to the offset of the first row
+ * rows         the kmer (high word first if there are two) followed by the presence words. Bit i of word i/64 stands for accession i.
+ * </pre>
+ *
+ * @author steuernb
+ *
+ */
+public class BinaryPresenceMatrixReader extends PresenceMatrixReader {
+
+	public static final byte[] MAGIC = {'A','g','R','e','n','S','e','q'};
+	public static final int VERSION = 1;
+	public static final int FLAG_CANONICAL = 1;
+	public static final int FLAG_SORTED = 2;
+	public static final int HEADER_SIZE = 48;
+
+
+	RandomAccessFile file;
+	FileChannel channel;
+
+	int kmerWords;
+	int flags;
+	long rowCount;
+	long dataOffset;
+	int rowBytes;
+
+	int rowsPerSegment;
+	int currentSegment;
+	MappedByteBuffer segment;
+
+	long row;
+	long endRow;
+
+
+
+	/**
+	 *
+	 * Check the first bytes of a file for the magic of the binary matrix format.
+	 *
+	 * @param matrixFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isBinary(File matrixFile)throws IOException{
+		FileInputStream fis = new FileInputStream(matrixFile);
+		byte[] bytes = new byte[MAGIC.length];
+		int n = fis.read(bytes);
+		fis.close();
+		return n == MAGIC.length && isBinary(bytes);
+	}
+
+	/**
+	 *
+	 * Check if the first bytes of a file are the magic string of the binary matrix format.
+	 *
+	 * @param head
+	 * @return
+	 */
+	public static boolean isBinary(byte[] head){
+		if( head.length < MAGIC.length){
+			return false;
+		}
+		for( int i = 0; i< MAGIC.length; i++){
+			if( head[i] != MAGIC[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+
+	public BinaryPresenceMatrixReader(File matrixFile)throws IOException{
+
+		this.file = new RandomAccessFile(matrixFile, "r");
+		this.channel = file.getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while( header.hasRemaining() && channel.read(header, header.position()) >= 0){}
+		header.flip();
+		for( int i = 0; i< MAGIC.length; i++){
+			if( header.get() != MAGIC[i]){
+				this.close();
+				throw new IOException(matrixFile.getAbsolutePath() + " is not a binary presence matrix.");
+			}
+		}
+		int version = header.getInt();
+		if( version != VERSION){
+			this.close();
+			throw new IOException("Unsupported version " + version + " of binary presence matrix " + matrixFile.getAbsolutePath());
+		}
+		this.kmerSize = header.getInt();
+		this.kmerWords = header.getInt();
+		int numAccessions = header.getInt();
+		this.words = header.getInt();
+		this.flags = header.getInt();
+		this.rowCount = header.getLong();
+		this.dataOffset = header.getLong();
+
+		ByteBuffer names = ByteBuffer.allocate((int) (this.dataOffset - HEADER_SIZE));
+		while( names.hasRemaining() && channel.read(names, HEADER_SIZE + names.position()) >= 0){}
+		names.flip();
+		this.accessions = new String[numAccessions];
+		for( int i = 0; i< numAccessions; i++){
+			byte[] b = new byte[names.getInt()];
+			names.get(b);
+			this.accessions[i] = new String(b, "UTF-8");
+		}
+
+		this.presence = new long[this.words];
+		this.rowBytes = 8 * (this.kmerWords + this.words);
+		this.rowsPerSegment = Integer.MAX_VALUE / this.rowBytes;
+		this.currentSegment = -1;
+		this.row = 0;
+		this.endRow = this.rowCount;
+	}
+
+
+	/**
+	 *
+	 * Split a binary matrix into readers for consecutive row ranges that can be read in parallel.
+	 *
+	 * @param matrixFile
+	 * @param parts
+	 * @return
+	 * @throws IOException
+	 */
+	public static BinaryPresenceMatrixReader[] split(File matrixFile, int parts)throws IOException{
+		parts = Math.max(1, parts);
+		BinaryPresenceMatrixReader[] readers = new BinaryPresenceMatrixReader[parts];
+		for( int i = 0; i< parts; i++){
+			readers[i] = new BinaryPresenceMatrixReader(matrixFile);
+			long rows = readers[i].getRowCount();
+			readers[i].row = rows / parts * i;
+			readers[i].endRow = i == parts - 1 ? rows : rows / parts * (i + 1);
+		}
+		return readers;
+	}
+
+
+	public boolean next()throws IOException{
+		if( this.row >= this.endRow){
+			return false;
+		}
+		int segmentIndex = (int) (this.row / this.rowsPerSegment);
+		if( segmentIndex != this.currentSegment){
+			this.map(segmentIndex);
+		}
+		int position = (int) (this.row % this.rowsPerSegment) * this.rowBytes;
+
+		if( this.kmerWords == 2){
+			this.high = segment.getLong(position);
+			position = position + 8;
+		}else{
+			this.high = 0;
+		}
+		this.low = segment.getLong(position);
+		position = position + 8;
+		for( int i = 0; i< this.words; i++){
+			this.presence[i] = segment.getLong(position);
+			position = position + 8;
+		}
+		this.row++;
+		return true;
+	}
+
+
+	/**
+	 *
+	 * Move to a row, the next call of next() reads it. This is for random access, e.g. through a KmerIndex.
+	 *
+	 * @param row
+	 */
+	public void seek(long row){
+		this.row = row;
+		this.endRow = this.rowCount;
+	}
+
+	/**
+	 * @return
+	 * 		the number of the row that was read last.
+	 */
+	public long getRow(){
+		return this.row - 1;
+	}
+
+
+	private void map(int segmentIndex)throws IOException{
+		long firstRow = (long) segmentIndex * this.rowsPerSegment;
+		long rows = Math.min(this.rowsPerSegment, this.rowCount - firstRow);
+		this.segment = channel.map(FileChannel.MapMode.READ_ONLY, this.dataOffset + firstRow * this.rowBytes, rows * this.rowBytes);
+		this.currentSegment = segmentIndex;
+	}
+
+
+	public void close()throws IOException{
+		this.segment = null;
+		this.channel.close();
+		this.file.close();
+	}
+
+
+	public boolean isCanonical(){
+		return (this.flags & FLAG_CANONICAL) != 0;
+	}
+
+	/**
+	 * @return
+	 * 		true if the rows are sorted by kmer in string order.
+	 */
+	public boolean isSorted(){
+		return (this.flags & FLAG_SORTED) != 0;
+	}
+
+	public long getRowCount(){
+		return this.rowCount;
+	}
+
+}
@@ -0,0 +1,102 @@
+package agrenseqDataStructures;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+
+/**
+ *
+ * Writes the binary format of the presence/absence matrix. The format is described in BinaryPresenceMatrixReader.
+ * The number of rows is written into the header when the writer is closed.
+ *
+ * @author steuernb
+ *
+ */
+public class BinaryPresenceMatrixWriter extends PresenceMatrixWriter {
+
+	File outputFile;
+	DataOutputStream out;
+
+	int kmerWords;
+	int words;
+	int flags;
+	long rowCount;
+
+
+
+	public BinaryPresenceMatrixWriter(File outputFile, int kmerSize, String[] accessions, boolean canonical)throws IOException{
+		this(outputFile, kmerSize, accessions, canonical, false);
+	}
+
+	/**
+	 *
+	 * @param outputFile
+	 * @param kmerSize
+	 * @param accessions
+	 * @param canonical
+	 * 		all kmers that will be written are canonical.
+	 * @param sorted
+	 * 		rows will be written in string order of their kmers.
+	 * @throws IOException
+	 */
+	public BinaryPresenceMatrixWriter(File outputFile, int kmerSize, String[] accessions, boolean canonical, boolean sorted)throws IOException{
+		this.outputFile = outputFile;
+		this.kmerSize = kmerSize;
+		this.accessions = accessions;
+		this.kmerWords = kmerSize > 32 ? 2 : 1;
+		this.words = Math.max(1, (accessions.length + 63) >>> 6);
+		this.flags = (canonical ? BinaryPresenceMatrixReader.FLAG_CANONICAL : 0) | (sorted ? BinaryPresenceMatrixReader.FLAG_SORTED : 0);
+		this.rowCount = 0;
+
+		byte[][] names = new byte[accessions.length][];
+		long dataOffset = BinaryPresenceMatrixReader.HEADER_SIZE;
+		for( int i = 0; i< accessions.length; i++){
+			names[i] = accessions[i].getBytes("UTF-8");
+			dataOffset = dataOffset + 4 + names[i].length;
+		}
+		int padding = (int) ((8 - dataOffset % 8) % 8);
+		dataOffset = dataOffset + padding;
+
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 20));
+		out.write(BinaryPresenceMatrixReader.MAGIC);
+		out.writeInt(BinaryPresenceMatrixReader.VERSION);
+		out.writeInt(kmerSize);
+		out.writeInt(this.kmerWords);
+		out.writeInt(accessions.length);
+		out.writeInt(this.words);
+		out.writeInt(this.flags);
+		out.writeLong(0);
+		out.writeLong(dataOffset);
+		for( int i = 0; i< names.length; i++){
+			out.writeInt(names[i].length);
+			out.write(names[i]);
+		}
+		out.write(new byte[padding]);
+	}
+
+
+	public void writeRow(long high, long low, long[] presence)throws IOException{
+		if( this.kmerWords == 2){
+			out.writeLong(high);
+		}
+		out.writeLong(low);
+		for( int i = 0; i< this.words; i++){
+			out.writeLong(i < presence.length ? presence[i] : 0);
+		}
+		this.rowCount++;
+	}
+
+
+	public void close()throws IOException{
+		this.out.close();
+		RandomAccessFile file = new RandomAccessFile(this.outputFile, "rw");
+		file.seek(32);
+		file.writeLong(this.rowCount);
+		file.close();
+	}
+
+}
@@ -0,0 +1,457 @@
+package agrenseqDataStructures;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+
+/**
+ *
+ * Builds a presence/absence matrix that does not have to fit into memory.
+ * Kmers from the dumps are collected in a KmerPresenceTable until the memory budget is used up. The table is then written as a run sorted by kmer into a temporary directory and emptied.
+ * When all dumps are added, the runs are merged. Presence bits of the same kmer from different runs are combined, the threshold is applied and the rows are written in kmer order.
+ * If there are too many runs to open at once, they are merged in several rounds.
+ *
+ * Unlike KmerMatrix this class can only build a matrix, it cannot be queried.
+ *
+ * @author steuernb
+ *
+ */
+public class ExternalKmerMatrixBuilder {
+
+	private static final int MAX_FAN_IN = 128;
+
+	File tempDirectory;
+	long memoryBudget;
+
+	int kmerSize;
+	ArrayList<String> accessions;
+
+	KmerPresenceTable buffer;
+	long maxBufferedKmers;
+
+	ArrayList<File> runs;
+	ArrayList<Integer> runWords;
+	int runCount;
+
+	KmerSketch prefilter;
+	int prefilterMinimum;
+
+
+
+	/**
+	 *
+	 * @param tempDirectory
+	 * 		directory for the sorted runs. The runs are deleted once they are merged.
+	 * @param memoryBudget
+	 * 		approximate number of bytes the in-memory part of the build may use.
+	 */
+	public ExternalKmerMatrixBuilder(File tempDirectory, long memoryBudget)throws IOException{
+		if( !tempDirectory.exists() && !tempDirectory.mkdirs()){
+			throw new IOException("Could not create temporary directory " + tempDirectory.getAbsolutePath());
+		}
+		this.tempDirectory = tempDirectory;
+		this.memoryBudget = memoryBudget;
+		this.kmerSize = 0;
+		this.accessions = new ArrayList<String>();
+		this.runs = new ArrayList<File>();
+		this.runWords = new ArrayList<Integer>();
+		this.runCount = 0;
+	}
+
+
+
+	/**
+	 *
+	 * Only keep kmers that the sketch estimates to be present in at least minAccessions accessions. This keeps rare kmers out of the runs.
+	 * Set this before adding kmer sets.
+	 *
+	 * @param sketch
+	 * @param minAccessions
+	 */
+	public void setPrefilter(KmerSketch sketch, int minAccessions){
+		this.prefilter = sketch;
+		this.prefilterMinimum = minAccessions;
+	}
+
+
+
+	/**
+	 *
+	 * Add the rows of an existing matrix, e.g. to append accessions to it without reading all kmer dumps again. The rows are streamed into the runs like kmers from dumps.
+	 * This has to be the first thing added, the accessions of the matrix keep their order and the accessions added afterwards come after them.
+	 *
+	 * @param matrixFile
+	 * 			a presence/absence matrix in any format PresenceMatrixReader can read. For a matrix that was reduced, use the unreduced one if it exists, see KmerMatrix.getUnreducedFile.
+	 * @throws IOException
+	 */
+	public void addPresenceMatrix(File matrixFile)throws IOException{
+		if( this.accessions.size() > 0){
+			throw new IOException("A matrix can only be added before any kmer sets.");
+		}
+		System.out.println("reading " + matrixFile.getAbsolutePath());
+
+		PresenceMatrixReader in = PresenceMatrixReader.open(matrixFile);
+		String[] header = in.getAccessions();
+		for( int i = 0; i< header.length; i++){
+			this.accessions.add(header[i]);
+		}
+		this.kmerSize = in.getKmerSize();
+		this.buffer = new KmerPresenceTable(this.kmerSize, Math.max(1, header.length));
+		this.maxBufferedKmers = Math.max(1024, this.memoryBudget / this.bytesPerKmer(this.buffer.getWords()));
+
+		boolean canonical = in.isCanonical();
+		int words = in.getWords();
+		long rows = 0;
+		while( in.next()){
+			long high = in.getHigh();
+			long low = in.getLow();
+			if( !canonical){
+				long reverseHigh = Kmer.complementHigh(high, low, this.kmerSize);
+				long reverseLow = Kmer.complementLow(high, low, this.kmerSize);
+				if( !Kmer.isCanonical(high, low, reverseHigh, reverseLow)){
+					high = reverseHigh;
+					low = reverseLow;
+				}
+			}
+			this.buffer.set(high, low, in.getPresence(), 0, words);
+			rows++;
+			if( this.buffer.size() >= this.maxBufferedKmers){
+				this.spill();
+			}
+		}
+		in.close();
+
+		System.out.println("\tfinished reading " + matrixFile.getName() + ". Rows: " + rows + ". Accessions: " + header.length + ". Runs: " + this.runs.size());
+	}
+
+
+
+	/**
+	 *
+	 * Add a kmer dump to the matrix. The input may be gzip. The format is tab separated. First colum is the kmer second colum is the count.
+	 * Accessions get their index in the order they are added.
+	 *
+	 * @param kmerDump
+	 * 			input file with kmer dump.
+	 * @param minCount
+	 * 			minimum kmer count to consider a kmer present.
+	 * @param accession
+	 * 			name of the accession
+	 * @throws IOException
+	 */
+	public void addKmerSet(File kmerDump, int minCount, String accession)throws IOException{
+		System.out.println("reading " + kmerDump.getAbsolutePath());
+		this.addKmerSet(new KmerDumpReader(kmerDump), minCount, accession);
+	}
+
+	/**
+	 *
+	 * Add kmers with counts to the matrix, e.g. from a KmerCounter that counted the reads of an accession. The source is closed afterwards.
+	 *
+	 * @param in
+	 * 			canonical kmers with counts.
+	 * @param minCount
+	 * 			minimum kmer count to consider a kmer present.
+	 * @param accession
+	 * 			name of the accession
+	 * @throws IOException
+	 */
+	public void addKmerSet(KmerCountSource in, int minCount, String accession)throws IOException{
+
+		int accessionIndex = this.accessions.size();
+		this.accessions.add(accession);
+
+		if( in.isEmpty()){
+			System.err.println("Warning: empty data set " + in.getName());
+			in.close();
+			return;
+		}
+		if( this.kmerSize == 0){
+			this.kmerSize = in.getKmerSize();
+		}else if( this.kmerSize != in.getKmerSize()){
+			System.err.println("Warning: found kmer size of "+in.getKmerSize() + ". Kmer size of the data set is "+this.kmerSize);
+		}
+		if( this.buffer == null){
+			this.buffer = new KmerPresenceTable(this.kmerSize, accessionIndex + 1);
+		}
+		this.buffer.ensureAccessions(accessionIndex + 1);
+		this.maxBufferedKmers = Math.max(1024, this.memoryBudget / this.bytesPerKmer(this.buffer.getWords()));
+
+		while( in.next()){
+			if( in.getCount() >= minCount){
+				if( this.prefilter != null && this.prefilter.estimate(in.getHigh(), in.getLow()) < this.prefilterMinimum){
+					continue;
+				}
+				this.buffer.set(in.getHigh(), in.getLow(), accessionIndex);
+				if( this.buffer.size() >= this.maxBufferedKmers){
+					this.spill();
+				}
+			}
+		}
+		in.close();
+
+		System.out.println("\tfinished reading "+in.getName()+". Found " + in.getProblemCount() + " problems. Buffered kmers: " + this.buffer.size() + ". Runs: " + this.runs.size());
+	}
+
+
+	/**
+	 * Table slots at the lowest load factor after growing, plus the sort index.
+	 */
+	private long bytesPerKmer(int words){
+		int kmerWords = this.kmerSize > 32 ? 2 : 1;
+		return 3 * 8L * (kmerWords + words) + 4;
+	}
+
+
+
+	/**
+	 *
+	 * Merge everything that has been added and write the matrix. Kmers that are present in less than threshold accessions or in all but threshold accessions are not written.
+	 * Rows come out sorted by kmer, so the same input always gives the same file.
+	 *
+	 * @param outputFile
+	 * @param threshold
+	 * @param binary
+	 * 		write the binary format instead of text.
+	 * @param bgzf
+	 * 		compress a text matrix to BGZF.
+	 * @throws IOException
+	 */
+	public void writePresenceMatrix(File outputFile, int threshold, boolean binary, boolean bgzf)throws IOException{
+		this.writePresenceMatrix(outputFile, threshold, binary, bgzf, null);
+	}
+
+	/**
+	 *
+	 * Merge everything that has been added and write the matrix, and in the same pass the matrix before the threshold is applied.
+	 *
+	 * @param outputFile
+	 * @param threshold
+	 * @param binary
+	 * 		write the binary format instead of text.
+	 * @param bgzf
+	 * 		compress a text matrix to BGZF.
+	 * @param unreducedFile
+	 * 		binary matrix with all kmers, see KmerMatrix.getUnreducedFile. Nothing is written if this is null.
+	 * @throws IOException
+	 */
+	public void writePresenceMatrix(File outputFile, int threshold, boolean binary, boolean bgzf, File unreducedFile)throws IOException{
+
+		if( this.buffer != null && this.buffer.size() > 0){
+			this.spill();
+		}
+		this.buffer = null;
+
+		while( this.runs.size() > MAX_FAN_IN){
+			ArrayList<File> mergedRuns = new ArrayList<File>();
+			ArrayList<Integer> mergedWords = new ArrayList<Integer>();
+			for( int i = 0; i < this.runs.size(); i = i + MAX_FAN_IN){
+				int end = Math.min(this.runs.size(), i + MAX_FAN_IN);
+				File run = this.newRunFile();
+				int words = 1;
+				for( int j = i; j < end; j++){
+					words = Math.max(words, this.runWords.get(j));
+				}
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 20));
+				this.merge(i, end, words, out, null, null, 0, Integer.MAX_VALUE);
+				out.close();
+				mergedRuns.add(run);
+				mergedWords.add(words);
+			}
+			this.runs = mergedRuns;
+			this.runWords = mergedWords;
+		}
+
+		System.out.println("Merging " + this.runs.size() + " runs into " + outputFile.getAbsolutePath());
+
+		String[] accessionNames = this.accessions.toArray(new String[this.accessions.size()]);
+		PresenceMatrixWriter out = PresenceMatrixWriter.open(outputFile, this.kmerSize, accessionNames, binary, true, true, bgzf);
+		PresenceMatrixWriter unreducedOut = null;
+		if( unreducedFile != null){
+			unreducedOut = PresenceMatrixWriter.open(unreducedFile, this.kmerSize, accessionNames, true, true, true, false);
+		}
+		int words = Math.max(1, (accessionNames.length + 63) >>> 6);
+		long rows = this.merge(0, this.runs.size(), words, null, out, unreducedOut, threshold, accessionNames.length - threshold);
+		out.close();
+		if( unreducedOut != null){
+			unreducedOut.close();
+		}
+
+		this.runs.clear();
+		this.runWords.clear();
+
+		System.out.println("...finished. Wrote " + rows + " kmers.");
+	}
+
+
+
+	private File newRunFile(){
+		this.runCount++;
+		File run = new File(this.tempDirectory, "agrenseq_run_" + this.runCount + ".tmp");
+		run.deleteOnExit();
+		return run;
+	}
+
+
+	/**
+	 *
+	 * Write the buffered kmers as a sorted run and empty the buffer.
+	 *
+	 * @throws IOException
+	 */
+	private void spill()throws IOException{
+		File run = this.newRunFile();
+		int words = this.buffer.getWords();
+		boolean twoWords = this.kmerSize > 32;
+
+		int[] slots = this.buffer.sortedSlots();
+		long[] presence = new long[words];
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 20));
+		for( int i = 0; i< slots.length; i++){
+			int slot = slots[i];
+			if( twoWords){
+				out.writeLong(this.buffer.getHigh(slot));
+			}
+			out.writeLong(this.buffer.getLow(slot));
+			this.buffer.getPresence(slot, presence);
+			for( int j = 0; j< words; j++){
+				out.writeLong(presence[j]);
+			}
+		}
+		out.close();
+
+		System.out.println("\twrote run of " + slots.length + " kmers to " + run.getName());
+
+		this.runs.add(run);
+		this.runWords.add(words);
+		this.buffer.clear();
+	}
+
+
+
+	/**
+	 *
+	 * k-way merge of the runs from index first to end. The result goes either into another run or into the matrix, and then optionally also unfiltered into a second matrix.
+	 *
+	 * @return
+	 * 		number of rows written.
+	 */
+	private long merge(int first, int end, int words, DataOutputStream runOut, PresenceMatrixWriter matrixOut, PresenceMatrixWriter unreducedOut, int minCount, int maxCount)throws IOException{
+
+		boolean twoWords = this.kmerSize > 32;
+
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+		for( int i = first; i < end; i++){
+			RunReader reader = new RunReader(this.runs.get(i), twoWords, this.runWords.get(i));
+			if( reader.next()){
+				queue.add(reader);
+			}else{
+				reader.close();
+			}
+		}
+
+		long rows = 0;
+		long[] presence = new long[words];
+		while( !queue.isEmpty()){
+			RunReader reader = queue.peek();
+			long high = reader.high;
+			long low = reader.low;
+			for( int i = 0; i< words; i++){
+				presence[i] = 0;
+			}
+
+			while( !queue.isEmpty() && queue.peek().high == high && queue.peek().low == low){
+				reader = queue.poll();
+				for( int i = 0; i< reader.presence.length; i++){
+					presence[i] |= reader.presence[i];
+				}
+				if( reader.next()){
+					queue.add(reader);
+				}else{
+					reader.close();
+				}
+			}
+
+			if( runOut != null){
+				if( twoWords){
+					runOut.writeLong(high);
+				}
+				runOut.writeLong(low);
+				for( int i = 0; i< words; i++){
+					runOut.writeLong(presence[i]);
+				}
+				rows++;
+			}else{
+				if( unreducedOut != null){
+					unreducedOut.writeRow(high, low, presence);
+				}
+				int count = 0;
+				for( int i = 0; i< words; i++){
+					count = count + Long.bitCount(presence[i]);
+				}
+				if( count >= minCount && count <= maxCount){
+					matrixOut.writeRow(high, low, presence);
+					rows++;
+				}
+			}
+		}
+		return rows;
+	}
+
+
+
+	/**
+	 *
+	 * Reads one sorted run during the merge.
+	 *
+	 */
+	private static class RunReader implements Comparable<RunReader> {
+
+		File file;
+		DataInputStream in;
+		boolean twoWords;
+
+		long high;
+		long low;
+		long[] presence;
+
+		RunReader(File file, boolean twoWords, int words)throws IOException{
+			this.file = file;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			this.twoWords = twoWords;
+			this.presence = new long[words];
+		}
+
+		boolean next()throws IOException{
+			try{
+				this.high = this.twoWords ? in.readLong() : 0;
+				this.low = in.readLong();
+				for( int i = 0; i< this.presence.length; i++){
+					this.presence[i] = in.readLong();
+				}
+				return true;
+			}catch(EOFException e){
+				return false;
+			}
+		}
+
+		void close()throws IOException{
+			this.in.close();
+			this.file.delete();
+		}
+
+		public int compareTo(RunReader o){
+			return Kmer.compare(this.high, this.low, o.high, o.low);
+		}
+	}
+
+}
@@ -1,102 +1,340 @@
 package agrenseqDataStructures;
 
-
-import java.util.BitSet;
-
-import support.BioSequence;
+import java.util.Random;
 
 /**
- * 
- * A collection of methods to convert a kmer string into a kmer BitSet class and back. 
- * Having 4 nucleotides, each nucleotide can be encoded by 2 bits, which greatly reduces memory to store it.
- * 
+ *
+ * A packed kmer. Having 4 nucleotides, each nucleotide can be encoded by 2 bits, which greatly reduces memory to store it.
+ * A kmer of up to 32 bases fits into one long, a kmer of up to 64 bases into two longs.
+ * The last 32 bases are in the low word, the bases before that in the high word. The first base is in the most significant bits.
+ *
  * This is how I encode them.
  * A = 11
  * T = 00
  * G = 01
  * C = 10
- * 
- * 
+ *
+ * The static methods convert a kmer string into the packed representation and back.
+ * Data structures that hold many kmers should store the two words in primitive arrays rather than keeping Kmer objects.
+ *
  * @author steuernb
  *
  */
-public class Kmer {
+public class Kmer implements Comparable<Kmer> {
+
+	/**
+	 * The largest kmer size that can be packed.
+	 */
+	public static final int MAX_KMER_SIZE = 64;
+
+	/**
+	 * The 2 bit code for each byte as used by convert(String): anything that is not A, C, G or T is encoded as T. This is for parsers that work on bytes.
+	 */
+	static final byte[] CODES = new byte[256];
+	static{
+		CODES['A'] = 3;
+		CODES['a'] = 3;
+		CODES['C'] = 2;
+		CODES['c'] = 2;
+		CODES['G'] = 1;
+		CODES['g'] = 1;
+	}
+
+
+	final long high;
+	final long low;
+
+
+	/**
+	 *
+	 * Check the packed reverse complement and canonical kmer against the reverse complement of the string, for every kmer size with random kmers.
+	 * The first mismatch is printed and the check exits with 1.
+	 *
+	 * @param args
+	 * 		optional number of kmers per kmer size, default 10000.
+	 */
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		Random random = new Random(1);
+		char[] bases = {'A', 'C', 'G', 'T'};
+		for( int kmerSize = 1; kmerSize <= MAX_KMER_SIZE; kmerSize++){
+			char[] c = new char[kmerSize];
+			char[] r = new char[kmerSize];
+			for( int i = 0; i< n; i++){
+				for( int j = 0; j< kmerSize; j++){
+					c[j] = bases[random.nextInt(4)];
+					r[kmerSize - 1 - j] = bases[3 - "ACGT".indexOf(c[j])];
+				}
+				String forward = new String(c);
+				String reverse = new String(r);
+				String canonical = forward.compareTo(reverse) <= 0 ? forward : reverse;
+
+				Kmer kmer = convert(forward);
+				Kmer expected = convert(reverse);
+				long high = complementHigh(kmer.high, kmer.low, kmerSize);
+				long low = complementLow(kmer.high, kmer.low, kmerSize);
+				if( high != expected.high || low != expected.low){
+					System.out.println("Reverse complement of " + forward + " is " + convert(high, low, kmerSize) + ", expected " + reverse);
+					System.exit(1);
+				}
+				if( !convert(canonical).equals(canonical(kmer, kmerSize)) || isCanonical(kmer.high, kmer.low, high, low) != canonical.equals(forward)){
+					System.out.println("Canonical kmer of " + forward + " is " + convert(canonical(kmer, kmerSize), kmerSize) + ", expected " + canonical);
+					System.exit(1);
+				}
+			}
+		}
+		System.out.println("Reverse complements of " + n + " kmers of every size from 1 to " + MAX_KMER_SIZE + " agree with their strings.");
+	}
+
+
+
+	public Kmer(long high, long low){
+		this.high = high;
+		this.low = low;
+	}
+
+
+	public long getHigh(){
+		return this.high;
+	}
+
+	public long getLow(){
+		return this.low;
+	}
+
+
+	public boolean equals(Object o){
+		if( !(o instanceof Kmer)){
+			return false;
+		}
+		Kmer kmer = (Kmer) o;
+		return kmer.high == this.high && kmer.low == this.low;
+	}
+
+	public int hashCode(){
+		return (int) hash(this.high, this.low);
+	}
+
+
+	/**
+	 * Kmers of the same size are ordered like their strings.
+	 */
+	public int compareTo(Kmer o){
+		return compare(this.high, this.low, o.high, o.low);
+	}
+
+
 
-	
-	
 	/**
-	 * 
-	 * Get the reverse complement of a kmer in BitSet representation. This method is implemented in a rather naive way. 
-	 * Convert it back to a String, get the reverse complement and convert it back to BitSet.
-	 * 
-	 * @param set
+	 *
+	 * A 64 bit hash of a packed kmer. This is what the primitive kmer tables use to place their entries.
+	 *
+	 * @param high
+	 * @param low
+	 * @return
+	 */
+	public static long hash(long high, long low){
+		long h = low * 0x9E3779B97F4A7C15L + high;
+		h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+		h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+
+
+	/**
+	 *
+	 * Compare two packed kmers of the same size. The encoding above sorts the bases in reverse alphabetical order, so a packed kmer with larger unsigned value has a smaller string.
+	 *
+	 * @return
+	 * 		negative, zero or positive as kmer a is smaller, equal or larger than kmer b in string order.
+	 */
+	public static int compare(long highA, long lowA, long highB, long lowB){
+		if( highA != highB){
+			return (highA ^ Long.MIN_VALUE) > (highB ^ Long.MIN_VALUE) ? -1 : 1;
+		}
+		if( lowA != lowB){
+			return (lowA ^ Long.MIN_VALUE) > (lowB ^ Long.MIN_VALUE) ? -1 : 1;
+		}
+		return 0;
+	}
+
+
+
+	/**
+	 *
+	 * The 2 bit code of a nucleotide. Lower case is accepted. Anything that is not A, C, G or T returns -1.
+	 *
+	 * @param c
+	 * @return
+	 */
+	public static int encode(char c){
+		switch (c) {
+		case 'A': case 'a': return 3;
+		case 'C': case 'c': return 2;
+		case 'G': case 'g': return 1;
+		case 'T': case 't': return 0;
+		default: return -1;
+		}
+	}
+
+
+
+	/**
+	 *
+	 * Get the reverse complement of a packed kmer. The complement of a base is its bitwise negation in this encoding,
+	 * so the kmer is negated, the 2 bit groups are reversed and the result is shifted back to the kmer size.
+	 *
+	 * @param kmer
+	 * @param kmerSize
+	 * @return
+	 */
+	public static Kmer complement(Kmer kmer, int kmerSize){
+		return new Kmer(complementHigh(kmer.high, kmer.low, kmerSize), complementLow(kmer.high, kmer.low, kmerSize));
+	}
+
+	/**
+	 *
+	 * @param high
+	 * @param low
+	 * @param kmerSize
+	 * @return
+	 * 		the high word of the reverse complement.
+	 */
+	public static long complementHigh(long high, long low, int kmerSize){
+		int shift = 128 - 2*kmerSize;
+		if( shift >= 64){
+			return 0;
+		}
+		long h = reverseBases(~low);
+		return shift == 0 ? h : h >>> shift;
+	}
+
+	/**
+	 *
+	 * @param high
+	 * @param low
 	 * @param kmerSize
 	 * @return
+	 * 		the low word of the reverse complement.
+	 */
+	public static long complementLow(long high, long low, int kmerSize){
+		int shift = 128 - 2*kmerSize;
+		long h = reverseBases(~low);
+		if( shift >= 64){
+			return h >>> (shift - 64);
+		}
+		long l = reverseBases(~high);
+		return shift == 0 ? l : (l >>> shift) | (h << (64 - shift));
+	}
+
+	/**
+	 *
+	 * Reverse the order of the 32 2-bit groups in a long.
+	 *
+	 * @param x
+	 * @return
 	 */
-	public static BitSet complement(BitSet set, int kmerSize){
-		BioSequence seq = new BioSequence("", convert(set, kmerSize));
-		return convert(seq.getReverseComplementarySequence());
+	private static long reverseBases(long x){
+		x = ((x >>> 2) & 0x3333333333333333L) | ((x & 0x3333333333333333L) << 2);
+		x = ((x >>> 4) & 0x0F0F0F0F0F0F0F0FL) | ((x & 0x0F0F0F0F0F0F0F0FL) << 4);
+		return Long.reverseBytes(x);
 	}
-	
+
+
+
 	/**
-	 * 
-	 * Convert a kmer string into a BitSet
-	 * 
+	 *
+	 * The canonical kmer is the one of a kmer and its reverse complement that comes first in string order. This is the same choice jellyfish makes with -C.
+	 *
 	 * @param kmer
+	 * @param kmerSize
 	 * @return
 	 */
-	public static  BitSet convert(String kmer){
-		
-		BitSet set = new BitSet();
-		
-		char[] a = kmer.toUpperCase().toCharArray();
-		
-		for( int i = 0; i< a.length; i++){
-			int index = i*2;
-			if( a[i] =='A' || a[i] =='C' ){
-				set.set(index);
-			}
-			if( a[i] =='A' || a[i] =='G'){
-				set.set(index+1);
+	public static Kmer canonical(Kmer kmer, int kmerSize){
+		long high = complementHigh(kmer.high, kmer.low, kmerSize);
+		long low = complementLow(kmer.high, kmer.low, kmerSize);
+		if( compare(kmer.high, kmer.low, high, low) <= 0){
+			return kmer;
+		}
+		return new Kmer(high, low);
+	}
+
+	/**
+	 *
+	 * @return
+	 * 		true if the forward kmer is canonical, meaning it is not larger than its reverse complement in string order.
+	 */
+	public static boolean isCanonical(long high, long low, long reverseHigh, long reverseLow){
+		return compare(high, low, reverseHigh, reverseLow) <= 0;
+	}
+
+
+
+	/**
+	 *
+	 * Convert a kmer string into a packed kmer. Characters other than A, C, G and T are encoded as T.
+	 *
+	 * @param kmer
+	 * @return
+	 */
+	public static Kmer convert(String kmer){
+
+		if( kmer.length() > MAX_KMER_SIZE){
+			throw new IllegalArgumentException("Kmer size " + kmer.length() + " exceeds the maximum of " + MAX_KMER_SIZE);
+		}
+
+		long high = 0;
+		long low = 0;
+		for( int i = 0; i< kmer.length(); i++){
+			int code = encode(kmer.charAt(i));
+			if( code < 0){
+				code = 0;
 			}
-			
+			high = (high << 2) | (low >>> 62);
+			low = (low << 2) | code;
 		}
-		
-		return set;
+
+		return new Kmer(high, low);
 	}
-	
-	
+
+
 	/**
-	 * 
-	 * Convert a BitSet back to a String. Since trailing "0"s are not recorded we need to know the actual kmer length to know how many "T"s are at the end.
-	 * 
-	 * @param set
-	 * 		Kmer encoded as BitSet
+	 *
+	 * Convert a packed kmer back to a String. Since leading "T"s are all zero we need to know the actual kmer length.
+	 *
+	 * @param kmer
+	 * 		packed kmer
 	 * @param kmerSize
 	 * 		length of the kmer
 	 * @return
 	 */
-	public static String convert(BitSet set, int kmerSize){
-		StringBuffer buffer = new StringBuffer();
-		
-		for( int i = 0; i < kmerSize *2 ; i = i+2){
-			if(set.get(i)){
-				if( set.get(i+1)){
-					buffer = buffer.append("A");
-				}else{
-					buffer = buffer.append("C");
-				}
-				
-			}else{
-				if( set.get(i+1)){
-					buffer = buffer.append("G");
-				}else{
-					buffer = buffer.append("T");
-				}
+	public static String convert(Kmer kmer, int kmerSize){
+		return convert(kmer.high, kmer.low, kmerSize);
+	}
+
+	/**
+	 *
+	 * Convert a packed kmer back to a String.
+	 *
+	 * @param high
+	 * @param low
+	 * @param kmerSize
+	 * @return
+	 */
+	public static String convert(long high, long low, int kmerSize){
+		char[] c = new char[kmerSize];
+		for( int i = kmerSize-1; i >= 0; i--){
+			switch ((int) (low & 3)) {
+			case 3: c[i] = 'A'; break;
+			case 2: c[i] = 'C'; break;
+			case 1: c[i] = 'G'; break;
+			default: c[i] = 'T'; break;
 			}
+			low = (low >>> 2) | (high << 62);
+			high = high >>> 2;
 		}
-		return buffer.toString();
+		return new String(c);
 	}
-	
-	
+
+
 }
@@ -0,0 +1,59 @@
+package agrenseqDataStructures;
+
+import java.io.IOException;
+
+
+/**
+ *
+ * A set of canonical kmers with counts that can be added to a presence/absence matrix. This is either a jellyfish dump or kmers counted directly from reads.
+ *
+ * @author steuernb
+ *
+ */
+public interface KmerCountSource {
+
+	/**
+	 * Move to the next kmer.
+	 *
+	 * @return
+	 * 		false if there are no more kmers.
+	 * @throws IOException
+	 */
+	public boolean next()throws IOException;
+
+	public long getHigh();
+	public long getLow();
+
+	/**
+	 * @return
+	 * 		the count of the current kmer.
+	 */
+	public int getCount();
+
+	/**
+	 * @return
+	 * 		the kmer size, 0 if there are no kmers at all.
+	 */
+	public int getKmerSize();
+
+	/**
+	 * @return
+	 * 		true if there are no kmers at all.
+	 */
+	public boolean isEmpty();
+
+	/**
+	 * @return
+	 * 		number of entries that could not be read.
+	 */
+	public int getProblemCount();
+
+	/**
+	 * @return
+	 * 		a name for progress messages.
+	 */
+	public String getName();
+
+	public void close()throws IOException;
+
+}
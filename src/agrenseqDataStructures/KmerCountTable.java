@@ -0,0 +1,156 @@
+package agrenseqDataStructures;
+
+
+/**
+ *
+ * A hash table from packed kmers to counts. Keys and counts live in primitive arrays. Counts stop at Integer.MAX_VALUE.
+ * The table uses open addressing with linear probing. The high word of a kmer is only stored for kmers longer than 32 bases.
+ *
+ * @author steuernb
+ *
+ */
+public class KmerCountTable {
+
+	private static final double LOAD_FACTOR = 0.75;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	int kmerSize;
+
+	long[] high;
+	long[] low;
+	long[] occupied;
+	int[] counts;
+
+	int size;
+	int mask;
+
+
+
+	public KmerCountTable(int kmerSize){
+		if( kmerSize > Kmer.MAX_KMER_SIZE){
+			throw new IllegalArgumentException("Kmer size " + kmerSize + " exceeds the maximum of " + Kmer.MAX_KMER_SIZE);
+		}
+		this.kmerSize = kmerSize;
+		this.allocate(1024);
+	}
+
+
+	public int getKmerSize(){
+		return this.kmerSize;
+	}
+
+	/**
+	 * @return
+	 * 		number of kmers in the table.
+	 */
+	public int size(){
+		return this.size;
+	}
+
+	/**
+	 * @return
+	 * 		number of slots in the table.
+	 */
+	public int capacity(){
+		return this.low.length;
+	}
+
+	public boolean isOccupied(int slot){
+		return (this.occupied[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	public long getHigh(int slot){
+		return this.high == null ? 0 : this.high[slot];
+	}
+
+	public long getLow(int slot){
+		return this.low[slot];
+	}
+
+	public int getCount(int slot){
+		return this.counts[slot];
+	}
+
+
+
+	/**
+	 *
+	 * Add to the count of a kmer. The kmer is added if it is not in the table yet.
+	 *
+	 * @param high
+	 * @param low
+	 * @param count
+	 */
+	public void add(long high, long low, int count){
+		if( this.size + 1 > this.capacity() * LOAD_FACTOR){
+			if( this.capacity() >= MAX_CAPACITY){
+				throw new IllegalStateException("Too many kmers for one table: " + this.size);
+			}
+			this.rehash(this.capacity() * 2);
+		}
+		int slot = (int) Kmer.hash(high, low) & this.mask;
+		while( this.isOccupied(slot)){
+			if( this.low[slot] == low && (this.high == null || this.high[slot] == high)){
+				long sum = (long) this.counts[slot] + count;
+				this.counts[slot] = sum > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) sum;
+				return;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		this.occupied[slot >>> 6] |= 1L << slot;
+		this.low[slot] = low;
+		if( this.high != null){
+			this.high[slot] = high;
+		}
+		this.counts[slot] = count;
+		this.size++;
+	}
+
+
+	/**
+	 *
+	 * @param high
+	 * @param low
+	 * @return
+	 * 		the count of the kmer or 0 if the kmer is not in the table.
+	 */
+	public int get(long high, long low){
+		int slot = (int) Kmer.hash(high, low) & this.mask;
+		while( this.isOccupied(slot)){
+			if( this.low[slot] == low && (this.high == null || this.high[slot] == high)){
+				return this.counts[slot];
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		return 0;
+	}
+
+
+
+	private void allocate(int capacity){
+		this.low = new long[capacity];
+		this.high = this.kmerSize > 32 ? new long[capacity] : null;
+		this.occupied = new long[(capacity + 63) >>> 6];
+		this.counts = new int[capacity];
+		this.mask = capacity - 1;
+		this.size = 0;
+	}
+
+
+	private void rehash(int capacity){
+		long[] oldHigh = this.high;
+		long[] oldLow = this.low;
+		long[] oldOccupied = this.occupied;
+		int[] oldCounts = this.counts;
+		int oldCapacity = oldLow.length;
+
+		this.allocate(capacity);
+
+		for( int slot = 0; slot < oldCapacity; slot++){
+			if( (oldOccupied[slot >>> 6] & (1L << slot)) != 0){
+				this.add(oldHigh == null ? 0 : oldHigh[slot], oldLow[slot], oldCounts[slot]);
+			}
+		}
+	}
+
+}
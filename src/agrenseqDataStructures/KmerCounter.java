@@ -0,0 +1,308 @@
+package agrenseqDataStructures;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import support.CompressedInput;
+
+
+/**
+ *
+ * Counts canonical kmers directly from (trimmed) reads in fastq format. This replaces jellyfish count and jellyfish dump for the matrix build.
+ * One thread reads the fastq and hands batches of reads to worker threads. The workers encode the kmers with a KmerEncoder and add them to count tables that are split into stripes by hash, one lock per stripe.
+ * Once all reads are counted, the counter is read like a kmer dump.
+ *
+ * All kmers of an accession are counted in memory. If they need more than the memory budget, counting stops with an IOException instead of running out of heap.
+ *
+ * @author steuernb
+ *
+ */
+public class KmerCounter implements KmerCountSource {
+
+	private static final int READS_PER_BATCH = 4096;
+	private static final int KMERS_PER_FLUSH = 4096;
+
+	int kmerSize;
+	int threads;
+	String name;
+	long memoryBudget;
+	long maxKmers;
+
+	KmerCountTable[] tables;
+	int stripeBits;
+	int problemCount;
+	long readCount;
+
+	int stripe;
+	int slot;
+	long high;
+	long low;
+	int count;
+
+
+
+	/**
+	 *
+	 * @param kmerSize
+	 * @param threads
+	 * 		number of worker threads that encode and count kmers.
+	 * @param name
+	 * 		a name for progress messages, e.g. the accession.
+	 */
+	public KmerCounter(int kmerSize, int threads, String name){
+		this(kmerSize, threads, name, Runtime.getRuntime().maxMemory() / 2);
+	}
+
+	/**
+	 *
+	 * @param kmerSize
+	 * @param threads
+	 * 		number of worker threads that encode and count kmers.
+	 * @param name
+	 * 		a name for progress messages, e.g. the accession.
+	 * @param memoryBudget
+	 * 		approximate number of bytes the count tables may use.
+	 */
+	public KmerCounter(int kmerSize, int threads, String name, long memoryBudget){
+		if( kmerSize < 1 || kmerSize > Kmer.MAX_KMER_SIZE){
+			throw new IllegalArgumentException("Kmer size has to be between 1 and " + Kmer.MAX_KMER_SIZE + ". Found " + kmerSize);
+		}
+		this.kmerSize = kmerSize;
+		this.threads = Math.max(1, threads);
+		this.name = name;
+		this.memoryBudget = memoryBudget;
+		//table slots at the lowest load factor after growing, and the old table during a rehash.
+		this.maxKmers = memoryBudget / (3L * (8 * (kmerSize > 32 ? 2 : 1) + 4));
+		this.stripeBits = 0;
+		while( (1 << this.stripeBits) < this.threads * 8){
+			this.stripeBits++;
+		}
+		this.tables = new KmerCountTable[1 << this.stripeBits];
+		for( int i = 0; i< this.tables.length; i++){
+			this.tables[i] = new KmerCountTable(kmerSize);
+		}
+		this.problemCount = 0;
+		this.readCount = 0;
+		this.stripe = 0;
+		this.slot = -1;
+	}
+
+
+
+	/**
+	 *
+	 * Count the kmers of all reads in a fastq file. The file may be gzipped. This can be called for several files, e.g. both read pairs.
+	 *
+	 * @param fastqFile
+	 * @throws IOException
+	 */
+	public void count(File fastqFile)throws IOException{
+
+		System.out.println("counting kmers in " + fastqFile.getAbsolutePath());
+
+		BufferedReader in = CompressedInput.openReader(fastqFile);
+
+		ExecutorService executor = Executors.newFixedThreadPool(this.threads);
+		final Semaphore pending = new Semaphore(this.threads * 2);
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+
+		try{
+			String[] batch = new String[READS_PER_BATCH];
+			int n = 0;
+			for (String inputline = in.readLine(); inputline != null; inputline = in.readLine()) {
+				if( !inputline.startsWith("@")){
+					this.problemCount++;
+					continue;
+				}
+				String sequence = in.readLine();
+				String plus = in.readLine();
+				String quality = in.readLine();
+				if( sequence == null || plus == null || quality == null || !plus.startsWith("+")){
+					this.problemCount++;
+					continue;
+				}
+				batch[n++] = sequence;
+				this.readCount++;
+				if( n == READS_PER_BATCH){
+					if( this.size() > this.maxKmers){
+						throw new IOException("Counting the kmers of " + this.name + " needs more than the memory budget of " + (this.memoryBudget >>> 20) + " MB. Raise the budget with -m and the Java heap with -Xmx, or count with jellyfish and build the matrix from the dumps.");
+					}
+					pending.acquire();
+					futures.add(executor.submit(this.countTask(batch, n, pending)));
+					batch = new String[READS_PER_BATCH];
+					n = 0;
+				}
+			}
+			if( n > 0){
+				pending.acquire();
+				futures.add(executor.submit(this.countTask(batch, n, pending)));
+			}
+			for( int i = 0; i< futures.size(); i++){
+				futures.get(i).get();
+			}
+		}catch(InterruptedException e){
+			throw new IOException(e.getMessage());
+		}catch(ExecutionException e){
+			if( e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}finally{
+			executor.shutdown();
+			in.close();
+		}
+
+		System.out.println("\tfinished counting "+fastqFile.getName()+". Reads so far: " + this.readCount + ". Distinct kmers so far: " + this.size() + ". Found " + this.problemCount + " problems.");
+	}
+
+
+	private Callable<Object> countTask(final String[] reads, final int n, final Semaphore pending){
+		return new Callable<Object>(){
+			public Object call(){
+				try{
+					countReads(reads, n);
+				}finally{
+					pending.release();
+				}
+				return null;
+			}
+		};
+	}
+
+
+	/**
+	 *
+	 * Encode the kmers of a batch of reads and add them to the count tables. Kmers are collected per stripe, so the lock of a stripe is taken once per flush.
+	 *
+	 */
+	private void countReads(String[] reads, int n){
+		KmerEncoder encoder = new KmerEncoder(this.kmerSize);
+		int stripes = this.tables.length;
+		long[][] bufferHigh = new long[stripes][KMERS_PER_FLUSH];
+		long[][] bufferLow = new long[stripes][KMERS_PER_FLUSH];
+		int[] bufferCount = new int[stripes];
+
+		for( int i = 0; i< n; i++){
+			encoder.reset(reads[i]);
+			while( encoder.next()){
+				long h = encoder.getCanonicalHigh();
+				long l = encoder.getCanonicalLow();
+				int s = this.stripeOf(h, l);
+				int c = bufferCount[s];
+				bufferHigh[s][c] = h;
+				bufferLow[s][c] = l;
+				bufferCount[s] = c + 1;
+				if( c + 1 == KMERS_PER_FLUSH){
+					this.flush(s, bufferHigh[s], bufferLow[s], KMERS_PER_FLUSH);
+					bufferCount[s] = 0;
+				}
+			}
+		}
+		for( int s = 0; s < stripes; s++){
+			this.flush(s, bufferHigh[s], bufferLow[s], bufferCount[s]);
+		}
+	}
+
+
+	private void flush(int s, long[] h, long[] l, int n){
+		KmerCountTable table = this.tables[s];
+		synchronized(table){
+			for( int i = 0; i< n; i++){
+				table.add(h[i], l[i], 1);
+			}
+		}
+	}
+
+
+	private int stripeOf(long h, long l){
+		if( this.stripeBits == 0){
+			return 0;
+		}
+		return (int) (Kmer.hash(h, l) >>> (64 - this.stripeBits));
+	}
+
+
+
+	/**
+	 * @return
+	 * 		number of distinct kmers counted.
+	 */
+	public long size(){
+		long size = 0;
+		for( int i = 0; i< this.tables.length; i++){
+			size = size + this.tables[i].size();
+		}
+		return size;
+	}
+
+	public long getReadCount(){
+		return this.readCount;
+	}
+
+
+
+	public boolean next(){
+		while( this.stripe < this.tables.length){
+			KmerCountTable table = this.tables[this.stripe];
+			this.slot++;
+			while( this.slot < table.capacity()){
+				if( table.isOccupied(this.slot)){
+					this.high = table.getHigh(this.slot);
+					this.low = table.getLow(this.slot);
+					this.count = table.getCount(this.slot);
+					return true;
+				}
+				this.slot++;
+			}
+			this.stripe++;
+			this.slot = -1;
+		}
+		return false;
+	}
+
+	public long getHigh(){
+		return this.high;
+	}
+
+	public long getLow(){
+		return this.low;
+	}
+
+	public int getCount(){
+		return this.count;
+	}
+
+	public int getKmerSize(){
+		return this.kmerSize;
+	}
+
+	public boolean isEmpty(){
+		return this.size() == 0;
+	}
+
+	public int getProblemCount(){
+		return this.problemCount;
+	}
+
+	public String getName(){
+		return this.name;
+	}
+
+	/**
+	 * Frees the count tables.
+	 */
+	public void close(){
+		for( int i = 0; i< this.tables.length; i++){
+			this.tables[i] = new KmerCountTable(this.kmerSize);
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+package agrenseqDataStructures;
+
+import java.io.File;
+import java.io.IOException;
+
+import support.ByteLineReader;
+import support.CompressedInput;
+
+
+/**
+ *
+ * Reads a jellyfish dump (jellyfish dump -ct) entry by entry. The input may be gzip. The format is tab separated. First colum is the kmer second colum is the count.
+ * Kmers are reported in their canonical form. Lines that cannot be parsed or have a kmer of the wrong length are skipped and counted as problems.
+ *
+ * The dump is parsed on the bytes of a read buffer. Bases are packed and counts are parsed in place, so no objects are created per line.
+ *
+ * @author steuernb
+ *
+ */
+public class KmerDumpReader implements KmerCountSource {
+
+	File kmerDump;
+	ByteLineReader in;
+	boolean pendingLine;
+
+	int kmerSize;
+	int problemCount;
+
+	long high;
+	long low;
+	int count;
+
+
+
+	public KmerDumpReader(File kmerDump)throws IOException{
+		this.kmerDump = kmerDump;
+
+		this.in = new ByteLineReader(CompressedInput.open(kmerDump));
+
+		//the kmer size is taken from the first line.
+		this.pendingLine = in.nextLine();
+		if( this.pendingLine){
+			byte[] b = in.getBuffer();
+			int i = in.getLineStart();
+			while( i < in.getLineEnd() && b[i] != '\t'){
+				i++;
+			}
+			this.kmerSize = i - in.getLineStart();
+			if( this.kmerSize > Kmer.MAX_KMER_SIZE){
+				this.in.close();
+				throw new IllegalArgumentException("Kmer size " + this.kmerSize + " exceeds the maximum of " + Kmer.MAX_KMER_SIZE);
+			}
+		}
+		this.problemCount = 0;
+	}
+
+
+	/**
+	 *
+	 * Move to the next entry of the dump.
+	 *
+	 * @return
+	 * 		false if the end of the dump is reached.
+	 * @throws IOException
+	 */
+	public boolean next()throws IOException{
+		while( this.pendingLine || in.nextLine()){
+			this.pendingLine = false;
+			if( this.parseLine()){
+				return true;
+			}
+			this.problemCount++;
+		}
+		return false;
+	}
+
+
+
+	/**
+	 *
+	 * Parse the current line into high, low and count.
+	 *
+	 * @return
+	 * 		false if the line is malformed.
+	 */
+	private boolean parseLine(){
+		byte[] b = in.getBuffer();
+		int end = in.getLineEnd();
+		int tab = in.getLineStart() + this.kmerSize;
+		if( tab >= end || b[tab] != '\t'){
+			return false;
+		}
+
+		long h = 0;
+		long l = 0;
+		for( int i = in.getLineStart(); i < tab; i++){
+			byte c = b[i];
+			if( c == '\t'){
+				return false;
+			}
+			h = (h << 2) | (l >>> 62);
+			l = (l << 2) | Kmer.CODES[c & 0xff];
+		}
+
+		//the count field ends at the next tab or at the end of the line. Same rules as Integer.parseInt.
+		int i = tab + 1;
+		boolean negative = false;
+		if( i < end && (b[i] == '-' || b[i] == '+')){
+			negative = b[i] == '-';
+			i++;
+		}
+		int digits = 0;
+		long value = 0;
+		for( ; i < end && b[i] != '\t'; i++){
+			int d = b[i] - '0';
+			if( d < 0 || d > 9 || ++digits > 10){
+				return false;
+			}
+			value = value * 10 + d;
+		}
+		if( digits == 0){
+			return false;
+		}
+		value = negative ? -value : value;
+		if( value > Integer.MAX_VALUE || value < Integer.MIN_VALUE){
+			return false;
+		}
+		this.count = (int) value;
+
+		long rh = Kmer.complementHigh(h, l, this.kmerSize);
+		long rl = Kmer.complementLow(h, l, this.kmerSize);
+		if( Kmer.isCanonical(h, l, rh, rl)){
+			this.high = h;
+			this.low = l;
+		}else{
+			this.high = rh;
+			this.low = rl;
+		}
+		return true;
+	}
+
+
+
+	public void close()throws IOException{
+		this.in.close();
+	}
+
+
+	/**
+	 * @return
+	 * 		true if the dump has no entries at all.
+	 */
+	public boolean isEmpty(){
+		return this.kmerSize == 0;
+	}
+
+	/**
+	 * @return
+	 * 		the kmer size of the dump, taken from the first line. 0 for an empty dump.
+	 */
+	public int getKmerSize(){
+		return this.kmerSize;
+	}
+
+	/**
+	 * @return
+	 * 		the number of lines that have been skipped so far.
+	 */
+	public int getProblemCount(){
+		return this.problemCount;
+	}
+
+	public long getHigh(){
+		return this.high;
+	}
+
+	public long getLow(){
+		return this.low;
+	}
+
+	/**
+	 * @return
+	 * 		the kmer count of the current entry.
+	 */
+	public int getCount(){
+		return this.count;
+	}
+
+	public File getFile(){
+		return this.kmerDump;
+	}
+
+	public String getName(){
+		return this.kmerDump.getName();
+	}
+
+}
@@ -0,0 +1,172 @@
+package agrenseqDataStructures;
+
+
+/**
+ *
+ * Slides a window of kmerSize along a sequence and keeps the packed forward kmer and its packed reverse complement up to date.
+ * The canonical kmer is picked from those two, which is how kmers are stored in the matrix and in the association table.
+ * Each step costs a few shifts, regardless of the kmer size. Nothing is allocated while scanning.
+ * A base other than A, C, G or T ends the current window. The next kmer is reported once kmerSize valid bases have been read again.
+ *
+ * Typical use:
+ * <pre>
+ * KmerEncoder encoder = new KmerEncoder(kmerSize);
+ * encoder.reset(sequence);
+ * while( encoder.next()){
+ * 	int position = encoder.getPosition();
+ * 	long high = encoder.getHigh();
+ * 	long low = encoder.getLow();
+ * }
+ * </pre>
+ *
+ * @author steuernb
+ *
+ */
+public class KmerEncoder {
+
+	final int kmerSize;
+	final long lowMask;
+	final long highMask;
+	final int topShift;
+
+	CharSequence sequence;
+	int index;
+	int valid;
+
+	long high;
+	long low;
+	long reverseHigh;
+	long reverseLow;
+
+
+
+	public KmerEncoder(int kmerSize){
+		if( kmerSize < 1 || kmerSize > Kmer.MAX_KMER_SIZE){
+			throw new IllegalArgumentException("Kmer size has to be between 1 and " + Kmer.MAX_KMER_SIZE + ". Found " + kmerSize);
+		}
+		this.kmerSize = kmerSize;
+		this.lowMask = kmerSize >= 32 ? -1L : (1L << (2*kmerSize)) - 1;
+		this.highMask = kmerSize <= 32 ? 0L : (kmerSize == 64 ? -1L : (1L << (2*(kmerSize-32))) - 1);
+		this.topShift = 2*(kmerSize-1);
+	}
+
+
+	public int getKmerSize(){
+		return this.kmerSize;
+	}
+
+
+	/**
+	 *
+	 * Start scanning a new sequence.
+	 *
+	 * @param sequence
+	 */
+	public void reset(CharSequence sequence){
+		this.sequence = sequence;
+		this.index = 0;
+		this.valid = 0;
+		this.high = 0;
+		this.low = 0;
+		this.reverseHigh = 0;
+		this.reverseLow = 0;
+	}
+
+
+	/**
+	 *
+	 * Move to the next kmer that consists of A, C, G and T only.
+	 *
+	 * @return
+	 * 		false if the end of the sequence is reached.
+	 */
+	public boolean next(){
+		while( this.index < this.sequence.length()){
+			int code = Kmer.encode(this.sequence.charAt(this.index));
+			this.index++;
+			if( code < 0){
+				this.valid = 0;
+				continue;
+			}
+			this.push(code);
+			if( this.valid >= this.kmerSize){
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	private void push(int code){
+		this.high = ((this.high << 2) | (this.low >>> 62)) & this.highMask;
+		this.low = ((this.low << 2) | code) & this.lowMask;
+
+		long complement = code ^ 3;
+		this.reverseLow = (this.reverseLow >>> 2) | (this.reverseHigh << 62);
+		this.reverseHigh = this.reverseHigh >>> 2;
+		if( this.topShift >= 64){
+			this.reverseHigh |= complement << (this.topShift - 64);
+		}else{
+			this.reverseLow |= complement << this.topShift;
+		}
+		this.valid++;
+	}
+
+
+	/**
+	 * @return
+	 * 		the start position of the current kmer in the sequence, 0-based.
+	 */
+	public int getPosition(){
+		return this.index - this.kmerSize;
+	}
+
+	public long getHigh(){
+		return this.high;
+	}
+
+	public long getLow(){
+		return this.low;
+	}
+
+	/**
+	 * @return
+	 * 		the high word of the reverse complement of the current kmer.
+	 */
+	public long getReverseHigh(){
+		return this.reverseHigh;
+	}
+
+	/**
+	 * @return
+	 * 		the low word of the reverse complement of the current kmer.
+	 */
+	public long getReverseLow(){
+		return this.reverseLow;
+	}
+
+	/**
+	 * @return
+	 * 		true if the forward kmer is the canonical one.
+	 */
+	public boolean isForwardCanonical(){
+		return Kmer.isCanonical(this.high, this.low, this.reverseHigh, this.reverseLow);
+	}
+
+	/**
+	 * @return
+	 * 		the high word of the canonical kmer.
+	 */
+	public long getCanonicalHigh(){
+		return this.isForwardCanonical() ? this.high : this.reverseHigh;
+	}
+
+	/**
+	 * @return
+	 * 		the low word of the canonical kmer.
+	 */
+	public long getCanonicalLow(){
+		return this.isForwardCanonical() ? this.low : this.reverseLow;
+	}
+
+}
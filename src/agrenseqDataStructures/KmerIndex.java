@@ -0,0 +1,774 @@
+package agrenseqDataStructures;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+import support.CompressedInput;
+import support.ParallelBgzfInputStream;
+
+
+/**
+ *
+ * An index of the kmers of a presence/absence matrix, to look up single kmers without reading the whole matrix. The index is built once and stored next to the matrix.
+ * It holds the canonical kmers of all rows sorted in string order, each with the position of its row in the matrix. Every FENCE_INTERVAL-th kmer is also kept as a fence pointer,
+ * so a lookup searches the fences in memory and then one short range of the mapped kmers. A blocked Bloom filter answers most lookups of kmers that are not in the matrix with a single cache line.
+ *
+ * The position of a row is the row number in a binary matrix, the byte offset in a text matrix and the BGZF virtual offset (block offset << 16 | offset in the block) in a block gzipped text matrix.
+ * A text matrix compressed with plain gzip cannot be read from the middle, so it cannot be indexed.
+ *
+ * The format, all numbers big endian:
+ * <pre>
+ *  0  8 bytes  magic "AgRSqIdx"
+ *  8  int      format version
+ * 12  int      kmer size
+ * 16  int      number of longs per kmer (1 for kmers up to 32, 2 up to 64)
+ * 20  int      format of the matrix (0 binary, 1 text, 2 BGZF)
+ * 24  long     number of kmers
+ * 32  long     offset of the kmers
+ * 40  long     offset of the fence pointers
+ * 48  int      fence interval
+ * 52  int      number of Bloom filter hashes
+ * 56  long     offset of the Bloom filter
+ * 64  long     number of 64 byte Bloom filter blocks
+ * 72  long     length of the matrix file
+ * 80  long     modification time of the matrix file
+ * kmers        the kmer (high word first if there are two) followed by the position of its row
+ * fences       every FENCE_INTERVAL-th kmer
+ * Bloom filter blocks of 8 longs
+ * </pre>
+ *
+ * @author steuernb
+ *
+ */
+public class KmerIndex {
+
+	public static final byte[] MAGIC = {'A','g','R','S','q','I','d','x'};
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 96;
+	public static final String EXTENSION = ".kidx";
+
+	public static final int FORMAT_BINARY = 0;
+	public static final int FORMAT_TEXT = 1;
+	public static final int FORMAT_BGZF = 2;
+
+	private static final int FENCE_INTERVAL = 256;
+	private static final int BLOOM_BITS_PER_KMER = 10;
+	private static final int BLOOM_HASHES = 6;
+
+
+	File matrixFile;
+	RandomAccessFile file;
+	FileChannel channel;
+
+	int kmerSize;
+	int kmerWords;
+	int format;
+	long size;
+	long kmerOffset;
+	int recordBytes;
+	int recordsPerSegment;
+	MappedByteBuffer[] segments;
+
+	int fenceInterval;
+	long[] fenceHigh;
+	long[] fenceLow;
+
+	int bloomHashes;
+	int bloomBlocks;
+	MappedByteBuffer bloom;
+
+	String[] accessions;
+	int words;
+	BinaryPresenceMatrixReader binaryMatrix;
+	RandomAccessFile textMatrix;
+
+
+
+	/**
+	 *
+	 * @param matrixFile
+	 * @return
+	 * 		the index file that belongs to a matrix.
+	 */
+	public static File getIndexFile(File matrixFile){
+		return new File(matrixFile.getPath() + EXTENSION);
+	}
+
+	/**
+	 *
+	 * Check if a matrix has an index that was built for the current version of the file.
+	 *
+	 * @param matrixFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isCurrent(File matrixFile)throws IOException{
+		File indexFile = getIndexFile(matrixFile);
+		if( !indexFile.exists() || indexFile.length() < HEADER_SIZE){
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		for( int i = 0; i< MAGIC.length; i++){
+			if( magic[i] != MAGIC[i]){
+				in.close();
+				return false;
+			}
+		}
+		int version = in.readInt();
+		in.skipBytes(72 - 12);
+		long length = in.readLong();
+		long modified = in.readLong();
+		in.close();
+		return version == VERSION && length == matrixFile.length() && modified == matrixFile.lastModified();
+	}
+
+
+
+	/**
+	 *
+	 * Open the index of a matrix.
+	 *
+	 * @param matrixFile
+	 * @throws IOException
+	 * 		if there is no index or it is older than the matrix.
+	 */
+	public KmerIndex(File matrixFile)throws IOException{
+		if( !isCurrent(matrixFile)){
+			throw new IOException("There is no current index for " + matrixFile.getAbsolutePath());
+		}
+		this.matrixFile = matrixFile;
+		this.file = new RandomAccessFile(getIndexFile(matrixFile), "r");
+		this.channel = this.file.getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while( header.hasRemaining() && channel.read(header, header.position()) >= 0){}
+		header.position(12);
+		this.kmerSize = header.getInt();
+		this.kmerWords = header.getInt();
+		this.format = header.getInt();
+		this.size = header.getLong();
+		this.kmerOffset = header.getLong();
+		long fenceOffset = header.getLong();
+		this.fenceInterval = header.getInt();
+		this.bloomHashes = header.getInt();
+		long bloomOffset = header.getLong();
+		this.bloomBlocks = (int) header.getLong();
+
+		this.recordBytes = 8 * (this.kmerWords + 1);
+		this.recordsPerSegment = Integer.MAX_VALUE / this.recordBytes;
+		this.segments = new MappedByteBuffer[(int) ((this.size + this.recordsPerSegment - 1) / this.recordsPerSegment)];
+
+		//the fences are small and read into memory.
+		int fences = (int) ((this.size + this.fenceInterval - 1) / this.fenceInterval);
+		this.fenceHigh = new long[fences];
+		this.fenceLow = new long[fences];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getIndexFile(matrixFile)), 1 << 16));
+		in.skipBytes((int) Math.min(Integer.MAX_VALUE, fenceOffset));
+		for( long skipped = Math.min(Integer.MAX_VALUE, fenceOffset); skipped < fenceOffset; ){
+			skipped = skipped + in.skip(fenceOffset - skipped);
+		}
+		for( int i = 0; i< fences; i++){
+			this.fenceHigh[i] = this.kmerWords == 2 ? in.readLong() : 0;
+			this.fenceLow[i] = in.readLong();
+		}
+		in.close();
+
+		this.bloom = this.channel.map(FileChannel.MapMode.READ_ONLY, bloomOffset, (long) this.bloomBlocks * 64);
+
+		PresenceMatrixReader matrix = PresenceMatrixReader.open(matrixFile);
+		this.accessions = matrix.getAccessions();
+		this.words = Math.max(1, (this.accessions.length + 63) >>> 6);
+		if( this.format == FORMAT_BINARY){
+			this.binaryMatrix = (BinaryPresenceMatrixReader) matrix;
+		}else{
+			matrix.close();
+			this.textMatrix = new RandomAccessFile(matrixFile, "r");
+		}
+	}
+
+
+
+	/**
+	 *
+	 * Index a matrix. The kmers are sorted in memory up to a budget, larger matrices are sorted in runs that are merged.
+	 *
+	 * @param matrixFile
+	 * @param memory
+	 * 		memory budget in bytes for sorting.
+	 * @param tempDirectory
+	 * 		directory for sorted runs.
+	 * @throws IOException
+	 */
+	public static void build(File matrixFile, long memory, File tempDirectory)throws IOException{
+
+		BufferedInputStream probe = new BufferedInputStream(new FileInputStream(matrixFile));
+		boolean binary = BinaryPresenceMatrixReader.isBinary(CompressedInput.peek(probe, BinaryPresenceMatrixReader.MAGIC.length));
+		int compression = binary ? CompressedInput.PLAIN : CompressedInput.detect(probe);
+		probe.close();
+		if( compression == CompressedInput.GZIP){
+			throw new IOException("The gzipped matrix " + matrixFile.getAbsolutePath() + " cannot be read from the middle. Compress it with bgzip or convert it to binary to index it.");
+		}
+		int format = binary ? FORMAT_BINARY : (compression == CompressedInput.BGZF ? FORMAT_BGZF : FORMAT_TEXT);
+
+		long[][] blocks = format == FORMAT_BGZF ? ParallelBgzfInputStream.indexBlocks(matrixFile) : null;
+		int block = 0;
+
+		System.out.println("Indexing kmers of " + matrixFile.getAbsolutePath());
+
+		PresenceMatrixReader in = PresenceMatrixReader.open(matrixFile);
+		int kmerSize = in.getKmerSize();
+		boolean canonical = in.isCanonical();
+		int kmerWords = kmerSize > 32 ? 2 : 1;
+
+		//the arrays of a run are allocated once, for the budget or for the most rows the matrix can have.
+		long maxRows;
+		if( format == FORMAT_BINARY){
+			maxRows = ((BinaryPresenceMatrixReader) in).getRowCount();
+		}else{
+			long textLength = format == FORMAT_BGZF ? blocks[1][blocks[1].length - 1] : matrixFile.length();
+			maxRows = textLength / (kmerSize + 2);
+		}
+		long budget = memory / Run.bytesPerKmer(kmerWords);
+		int capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, Math.min(Math.max(1024, budget), maxRows + 1)));
+		Run chunk = new Run(capacity, kmerWords == 2);
+		ArrayList<Run> runs = new ArrayList<Run>();
+		long size = 0;
+		while( in.next()){
+			long high = in.getHigh();
+			long low = in.getLow();
+			if( !canonical){
+				long reverseHigh = Kmer.complementHigh(high, low, kmerSize);
+				long reverseLow = Kmer.complementLow(high, low, kmerSize);
+				if( !Kmer.isCanonical(high, low, reverseHigh, reverseLow)){
+					high = reverseHigh;
+					low = reverseLow;
+				}
+			}
+
+			long position;
+			if( format == FORMAT_BINARY){
+				position = ((BinaryPresenceMatrixReader) in).getRow();
+			}else{
+				position = ((TextPresenceMatrixReader) in).getRowOffset();
+				if( format == FORMAT_BGZF){
+					while( block + 2 < blocks[1].length && blocks[1][block + 1] <= position){
+						block++;
+					}
+					position = (blocks[0][block] << 16) | (position - blocks[1][block]);
+				}
+			}
+
+			if( chunk.size == capacity){
+				runs.add(chunk.spill(tempDirectory, kmerWords, runs.size()));
+			}
+			chunk.add(high, low, position);
+			size++;
+		}
+		in.close();
+		chunk.sort();
+		runs.add(chunk);
+
+		//the number of kmers is known now, so all sections can be laid out.
+		File indexFile = getIndexFile(matrixFile);
+		int recordBytes = 8 * (kmerWords + 1);
+		long fences = (size + FENCE_INTERVAL - 1) / FENCE_INTERVAL;
+		long fenceOffset = HEADER_SIZE + size * recordBytes;
+		long bloomOffset = fenceOffset + fences * 8 * kmerWords;
+		int bloomBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE / 64, (size * BLOOM_BITS_PER_KMER + 511) / 512));
+		long[] bloomBits = new long[bloomBlocks * 8];
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 20));
+		out.write(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(kmerSize);
+		out.writeInt(kmerWords);
+		out.writeInt(format);
+		out.writeLong(size);
+		out.writeLong(HEADER_SIZE);
+		out.writeLong(fenceOffset);
+		out.writeInt(FENCE_INTERVAL);
+		out.writeInt(BLOOM_HASHES);
+		out.writeLong(bloomOffset);
+		out.writeLong(bloomBlocks);
+		out.writeLong(matrixFile.length());
+		out.writeLong(matrixFile.lastModified());
+		out.write(new byte[HEADER_SIZE - 88]);
+
+		long[] fenceHigh = new long[(int) fences];
+		long[] fenceLow = new long[(int) fences];
+		PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		for( int i = 0; i< runs.size(); i++){
+			if( runs.get(i).next()){
+				queue.add(runs.get(i));
+			}
+		}
+		long n = 0;
+		while( !queue.isEmpty()){
+			Run run = queue.poll();
+			if( kmerWords == 2){
+				out.writeLong(run.high);
+			}
+			out.writeLong(run.low);
+			out.writeLong(run.position);
+			if( n % FENCE_INTERVAL == 0){
+				fenceHigh[(int) (n / FENCE_INTERVAL)] = run.high;
+				fenceLow[(int) (n / FENCE_INTERVAL)] = run.low;
+			}
+			addToBloom(bloomBits, bloomBlocks, Kmer.hash(run.high, run.low));
+			n++;
+			if( run.next()){
+				queue.add(run);
+			}else{
+				run.close();
+			}
+		}
+		for( int i = 0; i< fences; i++){
+			if( kmerWords == 2){
+				out.writeLong(fenceHigh[i]);
+			}
+			out.writeLong(fenceLow[i]);
+		}
+		for( int i = 0; i< bloomBits.length; i++){
+			out.writeLong(bloomBits[i]);
+		}
+		out.close();
+
+		//the matrix may have been touched while it was read. Then the index is not trusted.
+		indexFile.setLastModified(Math.max(indexFile.lastModified(), matrixFile.lastModified()));
+		System.out.println("...finished. Indexed " + size + " kmers in " + indexFile.getAbsolutePath());
+	}
+
+
+
+	/**
+	 * The block is taken from the upper half of the hash, the bits in the block from the lower half mixed again.
+	 */
+	private static int bloomBlock(long hash, int blocks){
+		return (int) (((hash >>> 32) * blocks) >>> 32);
+	}
+
+	private static void addToBloom(long[] bits, int blocks, long hash){
+		int base = bloomBlock(hash, blocks) * 8;
+		long g = hash * 0x9E3779B97F4A7C15L;
+		for( int i = 0; i< BLOOM_HASHES; i++){
+			int bit = (int) (g >>> (64 - 9 * (i + 1))) & 511;
+			bits[base + (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	private boolean mightContain(long hash){
+		int base = bloomBlock(hash, this.bloomBlocks) * 64;
+		long g = hash * 0x9E3779B97F4A7C15L;
+		for( int i = 0; i< this.bloomHashes; i++){
+			int bit = (int) (g >>> (64 - 9 * (i + 1))) & 511;
+			if( (this.bloom.getLong(base + (bit >>> 6) * 8) & (1L << bit)) == 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+
+	private ByteBuffer segment(long index)throws IOException{
+		int s = (int) (index / this.recordsPerSegment);
+		if( this.segments[s] == null){
+			long first = (long) s * this.recordsPerSegment;
+			long records = Math.min(this.recordsPerSegment, this.size - first);
+			this.segments[s] = this.channel.map(FileChannel.MapMode.READ_ONLY, this.kmerOffset + first * this.recordBytes, records * this.recordBytes);
+		}
+		return this.segments[s];
+	}
+
+	private int compareAt(long index, long high, long low)throws IOException{
+		ByteBuffer b = this.segment(index);
+		int position = (int) (index % this.recordsPerSegment) * this.recordBytes;
+		long h = this.kmerWords == 2 ? b.getLong(position) : 0;
+		long l = b.getLong(position + 8 * (this.kmerWords - 1));
+		return Kmer.compare(h, l, high, low);
+	}
+
+	/**
+	 *
+	 * @param index
+	 * @return
+	 * 		the position of the row of a kmer in the matrix.
+	 * @throws IOException
+	 */
+	public long getPosition(long index)throws IOException{
+		ByteBuffer b = this.segment(index);
+		return b.getLong((int) (index % this.recordsPerSegment) * this.recordBytes + 8 * this.kmerWords);
+	}
+
+
+
+	/**
+	 *
+	 * Find a canonical kmer.
+	 *
+	 * @param high
+	 * @param low
+	 * @return
+	 * 		the first index of the kmer, -1 if it is not in the matrix.
+	 * @throws IOException
+	 */
+	public long find(long high, long low)throws IOException{
+		if( this.size == 0 || !this.mightContain(Kmer.hash(high, low))){
+			return -1;
+		}
+
+		//the kmer lies between the last fence below it and the first fence above it.
+		int a = -1;
+		int b = this.fenceLow.length;
+		while( b - a > 1){
+			int mid = (a + b) >>> 1;
+			if( Kmer.compare(this.fenceHigh[mid], this.fenceLow[mid], high, low) < 0){
+				a = mid;
+			}else{
+				b = mid;
+			}
+		}
+		long from = Math.max(0, (long) a * this.fenceInterval);
+		long to = b < this.fenceLow.length ? (long) b * this.fenceInterval + 1 : this.size;
+		to = Math.min(to, this.size);
+
+		//first kmer that is not smaller.
+		while( from < to){
+			long mid = (from + to) >>> 1;
+			if( this.compareAt(mid, high, low) < 0){
+				from = mid + 1;
+			}else{
+				to = mid;
+			}
+		}
+		if( from < this.size && this.compareAt(from, high, low) == 0){
+			return from;
+		}
+		return -1;
+	}
+
+
+
+	/**
+	 *
+	 * Look up the presence row of a kmer in the matrix. If a text matrix has the kmer in both orientations, the rows are combined.
+	 *
+	 * @param high
+	 * @param low
+	 * 		the canonical kmer.
+	 * @param presence
+	 * 		receives the presence bits, getWords() longs.
+	 * @return
+	 * 		false if the kmer is not in the matrix.
+	 * @throws IOException
+	 */
+	public boolean getPresence(long high, long low, long[] presence)throws IOException{
+		for( int i = 0; i< this.words; i++){
+			presence[i] = 0;
+		}
+		long index = this.find(high, low);
+		if( index < 0){
+			return false;
+		}
+		for( ; index < this.size && this.compareAt(index, high, low) == 0; index++){
+			PresenceMatrixReader row = this.readRow(this.getPosition(index));
+			long[] p = row.getPresence();
+			for( int i = 0; i< this.words && i < p.length; i++){
+				presence[i] |= p[i];
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * A reader that has just read the row at a position.
+	 */
+	private PresenceMatrixReader readRow(long position)throws IOException{
+		if( this.format == FORMAT_BINARY){
+			this.binaryMatrix.seek(position);
+			this.binaryMatrix.next();
+			return this.binaryMatrix;
+		}
+
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		if( this.format == FORMAT_TEXT){
+			this.textMatrix.seek(position);
+			byte[] buffer = new byte[4096];
+			for( int n = this.textMatrix.read(buffer); n > 0; n = this.textMatrix.read(buffer)){
+				if( appendLine(line, buffer, 0, n)){
+					break;
+				}
+			}
+		}else{
+			long next = position >>> 16;
+			int offset = (int) (position & 0xffff);
+			while( next < this.textMatrix.length()){
+				byte[] data = ParallelBgzfInputStream.readBlock(this.textMatrix, next);
+				next = this.textMatrix.getFilePointer();
+				if( appendLine(line, data, offset, data.length - offset)){
+					break;
+				}
+				offset = 0;
+			}
+		}
+
+		TextPresenceMatrixReader reader = TextPresenceMatrixReader.at(this.accessions, this.kmerSize, new ByteArrayInputStream(line.toByteArray()));
+		if( !reader.next()){
+			throw new IOException("No row at position " + position + " of " + this.matrixFile.getAbsolutePath() + ". The index may be out of date.");
+		}
+		return reader;
+	}
+
+	/**
+	 * Append bytes up to the end of a line.
+	 *
+	 * @return
+	 * 		true if the line is complete.
+	 */
+	private static boolean appendLine(ByteArrayOutputStream line, byte[] b, int offset, int length){
+		for( int i = offset; i < offset + length; i++){
+			if( b[i] == '\n'){
+				line.write(b, offset, i - offset);
+				return true;
+			}
+		}
+		line.write(b, offset, length);
+		return false;
+	}
+
+
+
+	public String[] getAccessions(){
+		return this.accessions;
+	}
+
+	public int getKmerSize(){
+		return this.kmerSize;
+	}
+
+	/**
+	 * @return
+	 * 		number of longs of the presence bits.
+	 */
+	public int getWords(){
+		return this.words;
+	}
+
+	/**
+	 * @return
+	 * 		number of kmers in the index.
+	 */
+	public long size(){
+		return this.size;
+	}
+
+	public void close()throws IOException{
+		this.segments = null;
+		this.bloom = null;
+		this.channel.close();
+		this.file.close();
+		if( this.binaryMatrix != null){
+			this.binaryMatrix.close();
+		}
+		if( this.textMatrix != null){
+			this.textMatrix.close();
+		}
+	}
+
+
+
+	/**
+	 *
+	 * Kmers with the positions of their rows, sorted by kmer. This is either still in memory or spilled to a file, and is read back for the merge.
+	 *
+	 */
+	private static class Run implements Comparable<Run> {
+		long[] highs;
+		long[] lows;
+		long[] positions;
+		int[] order;
+		int size;
+
+		File file;
+		DataInputStream in;
+		boolean twoWords;
+		int next;
+
+		long high;
+		long low;
+		long position;
+
+		Run(int capacity, boolean twoWords){
+			this.highs = twoWords ? new long[capacity] : null;
+			this.lows = new long[capacity];
+			this.positions = new long[capacity];
+			this.order = new int[capacity];
+			this.size = 0;
+		}
+
+		/**
+		 * Bytes of an in-memory run per kmer: the kmer, the position and the sort order.
+		 */
+		static long bytesPerKmer(int kmerWords){
+			return 8 * kmerWords + 8 + 4;
+		}
+
+		Run(File file, boolean twoWords)throws IOException{
+			this.file = file;
+			this.twoWords = twoWords;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		/**
+		 * Add a kmer. The caller spills the run before it is full.
+		 */
+		void add(long high, long low, long position){
+			if( this.highs != null){
+				this.highs[this.size] = high;
+			}
+			this.lows[this.size] = low;
+			this.positions[this.size] = position;
+			this.size++;
+		}
+
+		void sort(){
+			for( int i = 0; i< this.size; i++){
+				this.order[i] = i;
+			}
+			this.sort(0, this.size - 1);
+			this.next = 0;
+		}
+
+		/**
+		 * Sort and write to a file. The run is empty afterwards and its arrays are used for the next kmers.
+		 */
+		Run spill(File tempDirectory, int kmerWords, int number)throws IOException{
+			this.sort();
+			File run = new File(tempDirectory, "agrenseq_index_run_" + number + ".tmp");
+			run.deleteOnExit();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 20));
+			for( int i = 0; i< this.size; i++){
+				int j = this.order[i];
+				if( this.highs != null){
+					out.writeLong(this.highs[j]);
+				}
+				out.writeLong(this.lows[j]);
+				out.writeLong(this.positions[j]);
+			}
+			out.close();
+			System.out.println("\twrote run of " + this.size + " kmers to " + run.getName());
+			this.size = 0;
+			return new Run(run, kmerWords == 2);
+		}
+
+		boolean next()throws IOException{
+			if( this.in == null){
+				if( this.next >= this.size){
+					return false;
+				}
+				int j = this.order[this.next++];
+				this.high = this.highs == null ? 0 : this.highs[j];
+				this.low = this.lows[j];
+				this.position = this.positions[j];
+				return true;
+			}
+			try{
+				this.high = this.twoWords ? this.in.readLong() : 0;
+				this.low = this.in.readLong();
+				this.position = this.in.readLong();
+				return true;
+			}catch(EOFException e){
+				return false;
+			}
+		}
+
+		void close()throws IOException{
+			if( this.in != null){
+				this.in.close();
+				this.file.delete();
+			}
+		}
+
+		public int compareTo(Run o){
+			int c = Kmer.compare(this.high, this.low, o.high, o.low);
+			if( c == 0){
+				c = this.position < o.position ? -1 : (this.position == o.position ? 0 : 1);
+			}
+			return c;
+		}
+
+		private int compare(int a, int b){
+			if( this.highs == null){
+				return Kmer.compare(0, this.lows[a], 0, this.lows[b]);
+			}
+			return Kmer.compare(this.highs[a], this.lows[a], this.highs[b], this.lows[b]);
+		}
+
+		/**
+		 * Quicksort with median of three pivots and insertion sort for short ranges, as in KmerPresenceTable.
+		 */
+		private void sort(int left, int right){
+			int[] o = this.order;
+			while( right - left > 16){
+				int mid = (left + right) >>> 1;
+				if( compare(o[mid], o[left]) < 0){ swap(o, mid, left); }
+				if( compare(o[right], o[left]) < 0){ swap(o, right, left); }
+				if( compare(o[right], o[mid]) < 0){ swap(o, right, mid); }
+				int pivot = o[mid];
+
+				int i = left;
+				int j = right;
+				while( i <= j){
+					while( compare(o[i], pivot) < 0){ i++; }
+					while( compare(o[j], pivot) > 0){ j--; }
+					if( i <= j){
+						swap(o, i, j);
+						i++;
+						j--;
+					}
+				}
+				if( j - left < right - i){
+					sort(left, j);
+					left = i;
+				}else{
+					sort(i, right);
+					right = j;
+				}
+			}
+			for( int i = left + 1; i <= right; i++){
+				int x = o[i];
+				int j = i - 1;
+				while( j >= left && compare(o[j], x) > 0){
+					o[j+1] = o[j];
+					j--;
+				}
+				o[j+1] = x;
+			}
+		}
+
+		private static void swap(int[] a, int i, int j){
+			int t = a[i];
+			a[i] = a[j];
+			a[j] = t;
+		}
+	}
+
+}
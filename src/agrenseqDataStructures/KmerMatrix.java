@@ -1,23 +1,23 @@
 package agrenseqDataStructures;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.BitSet;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.zip.GZIPInputStream;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 
 /**
  * This is a data structure to hold a kmer presence/absence matrix. For most applications except the creation or modification it is not efficient to hold the entire matrix in memory as this class is doing.
  * 
+ * The kmers are split into stripes by their hash. Each stripe is a KmerPresenceTable of its own, so several dumps can be read at the same time with a lock per stripe.
+ * 
  * 
  * 
  * @author steuernb
@@ -26,9 +26,17 @@ import java.util.zip.GZIPInputStream;
 public class KmerMatrix {
 
 	
-	HashMap<BitSet, BitSet> kmerMatrix;
+	private static final int BATCH_SIZE = 4096;
+	
+	public static final String UNREDUCED_EXTENSION = ".unreduced";
+	
+	KmerPresenceTable[] kmerMatrix;
 	HashMap<String, Integer> accessions;
 	int kmerSize;
+	int stripeBits;
+	
+	KmerSketch prefilter;
+	int prefilterMinimum;
 	
 	
 	public static void main(String[] args) {
@@ -44,14 +52,97 @@ public class KmerMatrix {
 
 	
 	public KmerMatrix(){
-		this.kmerMatrix = new HashMap<BitSet, BitSet>();
+		this(1);
+	}
+	
+	/**
+	 * 
+	 * @param stripes
+	 * 		number of independently locked parts of the matrix. Rounded up to a power of two. Use more stripes than threads when reading dumps in parallel.
+	 */
+	public KmerMatrix(int stripes){
+		this.kmerMatrix = null;
 		this.accessions = new HashMap<String, Integer>();
 		this.kmerSize = 0;
+		this.stripeBits = 0;
+		while( (1 << this.stripeBits) < stripes){
+			this.stripeBits++;
+		}
+	}
+	
+	
+	private void createStripes(int numAccessions){
+		this.kmerMatrix = new KmerPresenceTable[1 << this.stripeBits];
+		for( int i = 0; i< this.kmerMatrix.length; i++){
+			this.kmerMatrix[i] = new KmerPresenceTable(this.kmerSize, numAccessions);
+		}
+	}
+	
+	private int stripeOf(long high, long low){
+		if( this.stripeBits == 0){
+			return 0;
+		}
+		return (int) (Kmer.hash(high, low) >>> (64 - this.stripeBits));
+	}
+	
+	/**
+	 * 
+	 * @return
+	 * 		number of kmers in the matrix.
+	 */
+	public long size(){
+		long size = 0;
+		for( int i = 0; this.kmerMatrix != null && i< this.kmerMatrix.length; i++){
+			size = size + this.kmerMatrix[i].size();
+		}
+		return size;
+	}
+	
+	
+	/**
+	 * 
+	 * @return
+	 * 		names of the accessions in the order of their index, as in the header of the matrix.
+	 */
+	public String[] getAccessions(){
+		String[] accessionString = new String[this.accessions.size()];
+		for(Iterator<String> iterator = this.accessions.keySet().iterator(); iterator.hasNext();){
+			String accession = iterator.next();
+			int index = this.accessions.get(accession);
+			accessionString[index] = accession;
+		}
+		return accessionString;
+	}
+	
+	/**
+	 * 
+	 * The unreduced matrix that belongs to a matrix, see reduceMatrix. Unlike the matrix itself it still has the rare and the nearly fixed kmers, so accessions can be added to it and the threshold applied again.
+	 * 
+	 * @param matrixFile
+	 * @return
+	 * 		the file next to the matrix with UNREDUCED_EXTENSION appended.
+	 */
+	public static File getUnreducedFile(File matrixFile){
+		return new File(matrixFile.getPath() + UNREDUCED_EXTENSION);
+	}
+	
+	
+	private int nextAccessionIndex(){
+		int maxAccessionIndex = -1;
+		for(Iterator<String> iterator = this.accessions.keySet().iterator(); iterator.hasNext();){
+			String key = iterator.next();
+			int index = this.accessions.get(key);
+			if(index > maxAccessionIndex){
+				maxAccessionIndex = index;
+			}
+		}
+		return maxAccessionIndex + 1;
 	}
 	
 	/**
 	 * 
 	 * Add a kmer dump to the matrix. The input may be gzip. The format is tab separated. First colum is the kmer second colum is the count.
+	 * Kmers are stored in their canonical form, so a dump that was not counted with jellyfish -C still ends up with one row per kmer and its reverse complement.
 	 * 
 	 * @param kmerDump
 	 * 			input file with kmer dump.
@@ -65,98 +156,184 @@ public class KmerMatrix {
 	 */
 	public void addKmerSet(File kmerDump, int minCount, String accession)throws IOException{
 		
-		
-		int maxAccessionIndex = -1;
-		for(Iterator<String> iterator = this.accessions.keySet().iterator(); iterator.hasNext();){
-			String key = iterator.next();
-			int index = this.accessions.get(key);
-			if(index > maxAccessionIndex){
-				maxAccessionIndex = index;
-			}
-		}
-		int accessionIndex = maxAccessionIndex + 1;
+		int accessionIndex = this.nextAccessionIndex();
 		accessions.put(accession, new Integer(accessionIndex));
 		
-		
 		System.out.println("reading " + kmerDump.getAbsolutePath());
+		this.readKmerSet(new KmerDumpReader(kmerDump), minCount, accessionIndex);
+	}
+	
+	/**
+	 * 
+	 * Add kmers with counts to the matrix, e.g. from a KmerCounter that counted the reads of an accession. The source is closed afterwards.
+	 * 
+	 * @param kmers
+	 * 			canonical kmers with counts.
+	 * @param minCount
+	 * 			minimum kmer count to consider a kmer present.
+	 * @param accession
+	 * 			name of the accession
+	 * @throws IOException
+	 */
+	public void addKmerSet(KmerCountSource kmers, int minCount, String accession)throws IOException{
 		
-		int problemCounta = 0;
+		int accessionIndex = this.nextAccessionIndex();
+		accessions.put(accession, accessionIndex);
 		
-		BufferedReader in;
-		FileInputStream fis = new FileInputStream(kmerDump);
-		byte[] bytes = new byte[2];
-		fis.read(bytes);
-		int head = ((int) bytes[0] & 0xff) | ((bytes[1] << 8) & 0xff00);
-		boolean gzip = GZIPInputStream.GZIP_MAGIC == head;
-		fis.close();
-		if(gzip){
-			in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(kmerDump))));
-		}else{
-			in = new BufferedReader((new FileReader(kmerDump)));
-		}
+		this.readKmerSet(kmers, minCount, accessionIndex);
+	}
 	
-		try{
-			int kmerSize = in.readLine().split("\t")[0].length();
+	
+	/**
+	 * 
+	 * Only store kmers that the sketch estimates to be present in at least minAccessions accessions. Everything else could not pass reduceMatrix with that threshold anyway.
+	 * Set this before adding kmer sets. The sketch has to be built from the same data, see KmerSketch.fromKmerDumps.
+	 * 
+	 * @param sketch
+	 * @param minAccessions
+	 */
+	public void setPrefilter(KmerSketch sketch, int minAccessions){
+		this.prefilter = sketch;
+		this.prefilterMinimum = minAccessions;
+	}
+	
+	
+	/**
+	 * 
+	 * Add several kmer dumps to the matrix, reading up to threads dumps at the same time.
+	 * Accessions get their index in the order of the arrays, no matter which dump is finished first.
+	 * 
+	 * @param kmerDumps
+	 * 			input files with kmer dumps.
+	 * @param minCount
+	 * 			minimum kmer count to consider a kmer present.
+	 * @param accessionNames
+	 * 			names of the accessions, in the same order as the dumps.
+	 * @param threads
+	 * 			number of dumps to read in parallel.
+	 * @throws IOException
+	 */
+	public void addKmerSets(File[] kmerDumps, int minCount, String[] accessionNames, int threads)throws IOException{
 		
-		if(this.kmerSize ==0){
-			this.kmerSize = kmerSize;
-		}else{
-			if( this.kmerSize != kmerSize){
-				System.err.println("Warning: found kmer size of "+kmerSize + ". Kmer size of the data set is "+this.kmerSize);
+		final int[] accessionIndices = new int[kmerDumps.length];
+		for( int i = 0; i< kmerDumps.length; i++){
+			accessionIndices[i] = this.nextAccessionIndex();
+			this.accessions.put(accessionNames[i], accessionIndices[i]);
+		}
+		
+		//the kmer size and the stripes have to be known before the workers start.
+		for( int i = 0; i< kmerDumps.length && this.kmerMatrix == null; i++){
+			KmerDumpReader in = new KmerDumpReader(kmerDumps[i]);
+			if( !in.isEmpty()){
+				this.kmerSize = in.getKmerSize();
+				this.createStripes(this.accessions.size());
 			}
+			in.close();
 		}
-		}catch(NullPointerException e){
-			System.err.println("Warning: empty data set " + kmerDump.getAbsolutePath());
+		if( this.kmerMatrix == null){
+			return;
+		}
+		for( int i = 0; i< this.kmerMatrix.length; i++){
+			this.kmerMatrix[i].ensureAccessions(this.accessions.size());
 		}
-		in.close();
-		
 		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for( int i = 0; i< kmerDumps.length; i++){
+			final File kmerDump = kmerDumps[i];
+			final int accessionIndex = accessionIndices[i];
+			final int min = minCount;
+			futures.add(executor.submit(new Callable<Object>(){
+				public Object call()throws IOException{
+					System.out.println("reading " + kmerDump.getAbsolutePath());
+					readKmerSet(new KmerDumpReader(kmerDump), min, accessionIndex);
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
 		
-		if(gzip){
-			in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(kmerDump))));
-		}else{
-			in = new BufferedReader((new FileReader(kmerDump)));
+		try{
+			for( int i = 0; i< futures.size(); i++){
+				futures.get(i).get();
+			}
+		}catch(InterruptedException e){
+			throw new IOException(e.getMessage());
+		}catch(ExecutionException e){
+			if( e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
 		}
+	}
+	
+	
+	
+	/**
+	 * 
+	 * Read a dump into the matrix. Kmers are collected per stripe and added in batches, so the lock of a stripe is taken once per batch.
+	 * 
+	 */
+	private void readKmerSet(KmerCountSource in, int minCount, int accessionIndex)throws IOException{
 		
-		for (String inputline = in.readLine(); inputline != null; inputline = in.readLine()) {
-			String[] split  = inputline.split("\t");
-			
-			if( split[0].length() != kmerSize){
-				problemCounta++;
-				continue;
+		if( in.isEmpty()){
+			System.err.println("Warning: empty data set " + in.getName());
+			in.close();
+			return;
+		}
+		synchronized(this){
+			if(this.kmerSize ==0){
+				this.kmerSize = in.getKmerSize();
+			}else{
+				if( this.kmerSize != in.getKmerSize()){
+					System.err.println("Warning: found kmer size of "+in.getKmerSize() + ". Kmer size of the data set is "+this.kmerSize);
+				}
 			}
-			BitSet kmer = Kmer.convert(split[0]);
-			
-			int kmerCount = 0;
-			try {
-				
-				kmerCount = Integer.parseInt(split[1]);
-			} catch (NumberFormatException e) {
-			
-				problemCounta++;
-				continue;
-			} catch (ArrayIndexOutOfBoundsException e){
-				problemCounta++;
-				continue;
+			if( this.kmerMatrix == null){
+				this.createStripes(accessionIndex + 1);
 			}
-			
-			
-			
-			
-			if(kmerCount >= minCount  ){
-				
-				if(!this.kmerMatrix.containsKey(kmer)){
-					this.kmerMatrix.put(kmer, new BitSet());
+		}
+		
+		int stripes = this.kmerMatrix.length;
+		long[][] batchHigh = new long[stripes][BATCH_SIZE];
+		long[][] batchLow = new long[stripes][BATCH_SIZE];
+		int[] batchCount = new int[stripes];
+		long skipped = 0;
+		
+		while( in.next()){
+			if(in.getCount() >= minCount  ){
+				if( this.prefilter != null && this.prefilter.estimate(in.getHigh(), in.getLow()) < this.prefilterMinimum){
+					skipped++;
+					continue;
+				}
+				int stripe = this.stripeOf(in.getHigh(), in.getLow());
+				int n = batchCount[stripe];
+				batchHigh[stripe][n] = in.getHigh();
+				batchLow[stripe][n] = in.getLow();
+				batchCount[stripe] = n + 1;
+				if( n + 1 == BATCH_SIZE){
+					this.flush(stripe, batchHigh[stripe], batchLow[stripe], BATCH_SIZE, accessionIndex);
+					batchCount[stripe] = 0;
 				}
-				kmerMatrix.get(kmer).set(accessionIndex);
-				
 			}
-			
 		}
-
+		for( int stripe = 0; stripe < stripes; stripe++){
+			this.flush(stripe, batchHigh[stripe], batchLow[stripe], batchCount[stripe], accessionIndex);
+		}
+		int problemCounta = in.getProblemCount();
 		in.close();
 		
-		System.out.println("\tfinished reading "+kmerDump.getName()+". Found " + problemCounta + " problems. Size of data: " + this.kmerMatrix.size());
+		System.out.println("\tfinished reading "+in.getName()+". Found " + problemCounta + " problems. " + (this.prefilter != null ? "Skipped " + skipped + " rare kmers. " : "") + "Size of data: " + this.size());
+	}
+	
+	
+	private void flush(int stripe, long[] high, long[] low, int n, int accessionIndex){
+		KmerPresenceTable table = this.kmerMatrix[stripe];
+		synchronized(table){
+			for( int i = 0; i< n; i++){
+				table.set(high[i], low[i], accessionIndex);
+			}
+		}
 	}
 	
 	
@@ -175,89 +352,204 @@ public class KmerMatrix {
 	 * @throws IOException
 	 */
 	public void writePresenceMatrix(File outputFile)throws IOException{
+		this.writePresenceMatrix(outputFile, false);
+	}
+	
+	public void writePresenceMatrix(File outputFile, boolean binary)throws IOException{
+		this.writePresenceMatrix(outputFile, binary, false);
+	}
+	
+	/**
+	 * 
+	 * Write a presence/absense matrix either as text or in the binary format described in BinaryPresenceMatrixReader.
+	 * Rows are written in string order of their kmers, so the same kmer sets always give the same file. Each stripe is sorted on its own and the stripes are merged.
+	 * 
+	 * @param outputFile
+	 * 		The output file
+	 * @param binary
+	 * 		write the binary format
+	 * @param bgzf
+	 * 		compress a text matrix to BGZF
+	 * @throws IOException
+	 */
+	public void writePresenceMatrix(File outputFile, boolean binary, boolean bgzf)throws IOException{
 		
-		BufferedWriter out = new BufferedWriter(new FileWriter(outputFile));
-
+		PresenceMatrixWriter out = PresenceMatrixWriter.open(outputFile, this.kmerSize, this.getAccessions(), binary, true, true, bgzf);
 		
-		String[] accessionString = new String[this.accessions.size()];
-		for(Iterator<String> iterator = this.accessions.keySet().iterator(); iterator.hasNext();){
-			String accession = iterator.next();
-			int index = this.accessions.get(accession);
-			accessionString[index] = accession;
-		}
-		out.write("#");
-		String s = "";
-		for( int i = 0; i< accessionString.length; i++){
-			s = s + "," + accessionString[i];
+		PriorityQueue<StripeCursor> queue = new PriorityQueue<StripeCursor>();
+		int words = 1;
+		for( int i = 0; this.kmerMatrix != null && i< this.kmerMatrix.length; i++){
+			StripeCursor cursor = new StripeCursor(this.kmerMatrix[i]);
+			words = Math.max(words, this.kmerMatrix[i].getWords());
+			if( cursor.next()){
+				queue.add(cursor);
+			}
 		}
-		out.write(s.substring(1));
-		out.newLine();
 		
-		for(Iterator<BitSet> iterator = this.kmerMatrix.keySet().iterator(); iterator.hasNext();){
-			BitSet kmer = iterator.next();
-			out.write(Kmer.convert(kmer, this.kmerSize) + "\t");
-			
-			BitSet presence = kmerMatrix.get(kmer);
-			for(int i = 0; i< presence.length(); i++){
-				if(presence.get(i)){
-					out.write("1");
-				}else{
-					out.write("0");
-				}
+		long[] presence = new long[words];
+		while( !queue.isEmpty()){
+			StripeCursor cursor = queue.poll();
+			KmerPresenceTable table = cursor.table;
+			int slot = cursor.slots[cursor.index];
+			table.getPresence(slot, presence);
+			for( int i = table.getWords(); i < words; i++){
+				presence[i] = 0;
+			}
+			out.writeRow(table.getHigh(slot), table.getLow(slot), presence);
+			if( cursor.next()){
+				queue.add(cursor);
 			}
-			out.newLine();
 		}
 		
-		
 		out.close();
 	}
 	
 	
+	/**
+	 * 
+	 * Walks through the slots of one stripe in kmer order.
+	 *
+	 */
+	private static class StripeCursor implements Comparable<StripeCursor> {
+		
+		KmerPresenceTable table;
+		int[] slots;
+		int index;
+		long high;
+		long low;
+		
+		StripeCursor(KmerPresenceTable table){
+			this.table = table;
+			this.slots = table.sortedSlots();
+			this.index = -1;
+		}
+		
+		boolean next(){
+			this.index++;
+			if( this.index >= this.slots.length){
+				return false;
+			}
+			this.high = this.table.getHigh(this.slots[this.index]);
+			this.low = this.table.getLow(this.slots[this.index]);
+			return true;
+		}
+		
+		public int compareTo(StripeCursor o){
+			return Kmer.compare(this.high, this.low, o.high, o.low);
+		}
+	}
+	
+	
 	/**
 	 * 
 	 * Read in a presence/absense matrix.
+	 * Kmer sets can be added afterwards, the new accessions are appended to the header. If the matrix was reduced, kmers it lost to the threshold are missing for the old accessions, so read the unreduced matrix instead if there is one, see getUnreducedFile.
 	 * 
 	 * @param inputFile
-	 * 			The input file. Gzip is supported. First line is assumed to start with a # followed by a comma separated list of accession names. Every line starting with a "#" is not regarded.
+	 * 			The input file. This can be the binary format or text. Gzip is supported for text. First line is assumed to start with a # followed by a comma separated list of accession names. Every line starting with a "#" is not regarded.
 	 * 			An entry in the matrix is a kmer, then a tab, then a string of 0 and 1 for absence and presence of that kmer in accessions. Order is according to first line of the matrix. Trailing 0s are ommitted.
 	 * @throws IOException
 	 */
 	public void readPresenceMatrix(File inputFile)throws IOException{
-		BufferedReader in;
-		FileInputStream fis = new FileInputStream(inputFile);
-		byte[] bytes = new byte[2];
-		fis.read(bytes);
-		int head = ((int) bytes[0] & 0xff) | ((bytes[1] << 8) & 0xff00);
-		boolean gzip = GZIPInputStream.GZIP_MAGIC == head;
-		fis.close();
-		if(gzip){
-			in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(inputFile))));
-		}else{
-			in = new BufferedReader((new FileReader(inputFile)));
-		}
+		this.readPresenceMatrix(inputFile, 1);
+	}
 	
+	/**
+	 * 
+	 * Read in a presence/absense matrix on several threads. The file is split into parts, see PresenceMatrixReader.split. Workers collect rows per stripe and insert them in batches, one stripe lock per batch.
+	 * 
+	 * @param inputFile
+	 * @param threads
+	 * @throws IOException
+	 */
+	public void readPresenceMatrix(File inputFile, int threads)throws IOException{
+		
+		threads = Math.max(1, threads);
+		PresenceMatrixReader[] readers = PresenceMatrixReader.split(inputFile, threads == 1 ? 1 : threads * 4);
 		
-		String[] header = in.readLine().substring(1).split(",");  //get rid of the #.
+		String[] header = readers[0].getAccessions();
 		for( int i = 0; i< header.length; i++){
 			this.accessions.put( header[i], i);
 		}
+		this.kmerSize = readers[0].getKmerSize();
+		this.createStripes(header.length);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for( int i = 0; i< readers.length; i++){
+			final PresenceMatrixReader in = readers[i];
+			futures.add(executor.submit(new Callable<Object>(){
+				public Object call()throws IOException{
+					readRows(in);
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
 		
-		for( String inputline = in.readLine(); inputline != null; inputline = in.readLine()){
-			String[] split = inputline.split("\t");
-			BitSet kmer = Kmer.convert(split[0]);
-			char[] a = split[1].toCharArray();
-			BitSet presence = new BitSet();
-			for( int i = 0; i< a.length; i++){
-				if(a[i] =='1'){
-					presence.set(i);
+		try{
+			for( int i = 0; i< futures.size(); i++){
+				futures.get(i).get();
+			}
+		}catch(InterruptedException e){
+			throw new IOException(e.getMessage());
+		}catch(ExecutionException e){
+			if( e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	
+	private void readRows(PresenceMatrixReader in)throws IOException{
+		int stripes = this.kmerMatrix.length;
+		int words = in.getWords();
+		long[][] batchHigh = new long[stripes][BATCH_SIZE];
+		long[][] batchLow = new long[stripes][BATCH_SIZE];
+		long[][] batchPresence = new long[stripes][BATCH_SIZE * words];
+		int[] batchCount = new int[stripes];
+		
+		boolean canonical = in.isCanonical();
+		while( in.next()){
+			long high = in.getHigh();
+			long low = in.getLow();
+			if( !canonical){
+				long reverseHigh = Kmer.complementHigh(high, low, this.kmerSize);
+				long reverseLow = Kmer.complementLow(high, low, this.kmerSize);
+				if( !Kmer.isCanonical(high, low, reverseHigh, reverseLow)){
+					high = reverseHigh;
+					low = reverseLow;
 				}
 			}
-			this.kmerMatrix.put(kmer, presence);
+			int stripe = this.stripeOf(high, low);
+			int n = batchCount[stripe];
+			batchHigh[stripe][n] = high;
+			batchLow[stripe][n] = low;
+			System.arraycopy(in.getPresence(), 0, batchPresence[stripe], n * words, words);
+			batchCount[stripe] = n + 1;
+			if( n + 1 == BATCH_SIZE){
+				this.flushRows(stripe, batchHigh[stripe], batchLow[stripe], batchPresence[stripe], BATCH_SIZE, words);
+				batchCount[stripe] = 0;
+			}
+		}
+		for( int stripe = 0; stripe < stripes; stripe++){
+			this.flushRows(stripe, batchHigh[stripe], batchLow[stripe], batchPresence[stripe], batchCount[stripe], words);
 		}
 		in.close();
 	}
 	
 	
+	private void flushRows(int stripe, long[] high, long[] low, long[] presence, int n, int words){
+		KmerPresenceTable table = this.kmerMatrix[stripe];
+		synchronized(table){
+			for( int i = 0; i< n; i++){
+				table.set(high[i], low[i], presence, i * words, words);
+			}
+		}
+	}
+	
+	
 	/**
 	 * 
 	 * This removes kmers that are present in less accessions than threshold or all accessions but a number equal to the threshold.
@@ -267,27 +559,11 @@ public class KmerMatrix {
 	 * @throws IOException
 	 */
 	public void reduceMatrix(int threshold)throws IOException{
-		HashSet<BitSet> removable = new HashSet<BitSet>();
-		
-		for( Iterator<BitSet> iterator = this.kmerMatrix.keySet().iterator(); iterator.hasNext();){
-			BitSet kmer = iterator.next();
-			BitSet presence = this.kmerMatrix.get(kmer);
-			
-			int count = 0;
-			for( int i = 0; i< presence.length(); i++){
-				if( presence.get(i)){
-					count++;
-				}
-			}
-			
-			if(count < threshold  || this.accessions.size()-threshold < count){
-				removable.add(kmer);
-			}
-			
+		if( this.kmerMatrix == null){
+			return;
 		}
-		
-		for( Iterator<BitSet> iterator = removable.iterator(); iterator.hasNext();){
-			this.kmerMatrix.remove(iterator.next());
+		for( int i = 0; i< this.kmerMatrix.length; i++){
+			this.kmerMatrix[i].retain(threshold, this.accessions.size()-threshold);
 		}
 		
 	}
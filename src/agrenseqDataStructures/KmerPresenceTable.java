@@ -0,0 +1,465 @@
+package agrenseqDataStructures;
+
+import java.util.Arrays;
+
+
+/**
+ *
+ * A hash table from packed kmers to presence/absence bits of accessions. Keys and presence bits live in primitive arrays, so no objects are created per kmer.
+ * The table uses open addressing with linear probing. The high word of a kmer is only stored for kmers longer than 32 bases.
+ * Entries are addressed by their slot. Iterate over all slots from 0 to capacity() and skip the ones that are not occupied.
+ * The presence bits are kept in pages of PAGE_SLOTS slots, so the number of kmers times the number of accessions is not limited by the size of one array.
+ *
+ * @author steuernb
+ *
+ */
+public class KmerPresenceTable {
+
+	private static final double LOAD_FACTOR = 0.75;
+	private static final int MAX_CAPACITY = 1 << 30;
+	private static final int PAGE_BITS = 16;
+	private static final int PAGE_SLOTS = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SLOTS - 1;
+
+	int kmerSize;
+	int words;
+
+	long[] high;
+	long[] low;
+	long[] occupied;
+	long[][] presence;
+
+	int size;
+	int mask;
+
+
+
+	/**
+	 *
+	 * @param kmerSize
+	 * 		length of the kmers in this table. Up to 64.
+	 * @param numAccessions
+	 * 		expected number of accessions. The table grows if more are added.
+	 */
+	public KmerPresenceTable(int kmerSize, int numAccessions){
+		this(kmerSize, numAccessions, 1024);
+	}
+
+	/**
+	 *
+	 * @param kmerSize
+	 * 		length of the kmers in this table. Up to 64.
+	 * @param numAccessions
+	 * 		expected number of accessions. The table grows if more are added.
+	 * @param expectedKmers
+	 * 		expected number of kmers. The table grows if more are added.
+	 */
+	public KmerPresenceTable(int kmerSize, int numAccessions, long expectedKmers){
+		if( kmerSize > Kmer.MAX_KMER_SIZE){
+			throw new IllegalArgumentException("Kmer size " + kmerSize + " exceeds the maximum of " + Kmer.MAX_KMER_SIZE);
+		}
+		this.kmerSize = kmerSize;
+		this.words = Math.max(1, (numAccessions + 63) >>> 6);
+		this.allocate(tableSize(expectedKmers));
+	}
+
+
+
+	public int getKmerSize(){
+		return this.kmerSize;
+	}
+
+	/**
+	 * @return
+	 * 		number of kmers in the table.
+	 */
+	public int size(){
+		return this.size;
+	}
+
+	/**
+	 * @return
+	 * 		number of slots in the table.
+	 */
+	public int capacity(){
+		return this.low.length;
+	}
+
+	/**
+	 * @return
+	 * 		number of longs used for the presence bits of one kmer.
+	 */
+	public int getWords(){
+		return this.words;
+	}
+
+	public boolean isOccupied(int slot){
+		return (this.occupied[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	public long getHigh(int slot){
+		return this.high == null ? 0 : this.high[slot];
+	}
+
+	public long getLow(int slot){
+		return this.low[slot];
+	}
+
+	public Kmer getKmer(int slot){
+		return new Kmer(this.getHigh(slot), this.getLow(slot));
+	}
+
+
+
+	/**
+	 *
+	 * Find the slot of a kmer.
+	 *
+	 * @param high
+	 * @param low
+	 * @return
+	 * 		the slot or -1 if the kmer is not in the table.
+	 */
+	public int indexOf(long high, long low){
+		int slot = (int) Kmer.hash(high, low) & this.mask;
+		while( this.isOccupied(slot)){
+			if( this.low[slot] == low && (this.high == null || this.high[slot] == high)){
+				return slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	public int indexOf(Kmer kmer){
+		return this.indexOf(kmer.high, kmer.low);
+	}
+
+
+	/**
+	 *
+	 * Find the slot of a kmer and insert it with no presence bits set if it is not in the table yet.
+	 *
+	 * @param high
+	 * @param low
+	 * @return
+	 * 		the slot of the kmer.
+	 */
+	public int insert(long high, long low){
+		if( this.size + 1 > this.capacity() * LOAD_FACTOR){
+			if( this.capacity() >= MAX_CAPACITY){
+				throw tooManyKmers(this.size + 1);
+			}
+			this.rehash(this.capacity() * 2);
+		}
+		int slot = (int) Kmer.hash(high, low) & this.mask;
+		while( this.isOccupied(slot)){
+			if( this.low[slot] == low && (this.high == null || this.high[slot] == high)){
+				return slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		this.occupied[slot >>> 6] |= 1L << slot;
+		this.low[slot] = low;
+		if( this.high != null){
+			this.high[slot] = high;
+		}
+		this.size++;
+		return slot;
+	}
+
+
+	/**
+	 *
+	 * Record that a kmer is present in an accession.
+	 *
+	 * @param high
+	 * @param low
+	 * @param accessionIndex
+	 */
+	public void set(long high, long low, int accessionIndex){
+		this.ensureAccessions(accessionIndex + 1);
+		int slot = this.insert(high, low);
+		this.presence[slot >>> PAGE_BITS][(slot & PAGE_MASK) * this.words + (accessionIndex >>> 6)] |= 1L << accessionIndex;
+	}
+
+
+	/**
+	 *
+	 * Record a whole presence pattern of a kmer. Bits already set for that kmer are kept.
+	 *
+	 * @param high
+	 * @param low
+	 * @param presenceWords
+	 * 		presence bits, bit i of word i/64 stands for accession i.
+	 * @param numWords
+	 * 		number of words to take from presenceWords.
+	 */
+	public void set(long high, long low, long[] presenceWords, int numWords){
+		this.set(high, low, presenceWords, 0, numWords);
+	}
+
+	/**
+	 *
+	 * Record a whole presence pattern of a kmer that is stored at an offset of a larger array, e.g. a batch of rows.
+	 *
+	 * @param high
+	 * @param low
+	 * @param presenceWords
+	 * @param start
+	 * 		index of the first word of the pattern in presenceWords.
+	 * @param numWords
+	 */
+	public void set(long high, long low, long[] presenceWords, int start, int numWords){
+		this.ensureAccessions(numWords * 64);
+		int slot = this.insert(high, low);
+		long[] page = this.presence[slot >>> PAGE_BITS];
+		int offset = (slot & PAGE_MASK) * this.words;
+		for( int i = 0; i< numWords; i++){
+			page[offset + i] |= presenceWords[start + i];
+		}
+	}
+
+
+	/**
+	 *
+	 * @param slot
+	 * @param accessionIndex
+	 * @return
+	 * 		true if the kmer in that slot is present in the accession.
+	 */
+	public boolean get(int slot, int accessionIndex){
+		if( accessionIndex >= this.words * 64){
+			return false;
+		}
+		return (this.presence[slot >>> PAGE_BITS][(slot & PAGE_MASK) * this.words + (accessionIndex >>> 6)] & (1L << accessionIndex)) != 0;
+	}
+
+	/**
+	 *
+	 * Copy the presence bits of a slot into an array.
+	 *
+	 * @param slot
+	 * @param dest
+	 * 		array of at least getWords() length
+	 */
+	public void getPresence(int slot, long[] dest){
+		System.arraycopy(this.presence[slot >>> PAGE_BITS], (slot & PAGE_MASK) * this.words, dest, 0, this.words);
+	}
+
+
+	/**
+	 *
+	 * @param slot
+	 * @return
+	 * 		number of accessions the kmer in that slot is present in.
+	 */
+	public int cardinality(int slot){
+		int count = 0;
+		long[] page = this.presence[slot >>> PAGE_BITS];
+		int offset = (slot & PAGE_MASK) * this.words;
+		for( int i = 0; i< this.words; i++){
+			count = count + Long.bitCount(page[offset + i]);
+		}
+		return count;
+	}
+
+
+
+	/**
+	 *
+	 * Keep only kmers that are present in at least minCount and at most maxCount accessions. The table is rebuilt to the size of the remaining kmers.
+	 *
+	 * @param minCount
+	 * @param maxCount
+	 */
+	public void retain(int minCount, int maxCount){
+		long kept = 0;
+		for( int slot = 0; slot < this.capacity(); slot++){
+			if( this.isOccupied(slot)){
+				int count = this.cardinality(slot);
+				if( count >= minCount && count <= maxCount){
+					kept++;
+				}else{
+					this.occupied[slot >>> 6] &= ~(1L << slot);
+				}
+			}
+		}
+		this.rehash(tableSize(kept));
+	}
+
+
+
+
+	/**
+	 *
+	 * Get the occupied slots ordered by their kmers in string order. This is used to write rows in a reproducible order.
+	 *
+	 * @return
+	 * 		array of size() slots.
+	 */
+	public int[] sortedSlots(){
+		int[] slots = new int[this.size];
+		int n = 0;
+		for( int slot = 0; slot < this.capacity(); slot++){
+			if( this.isOccupied(slot)){
+				slots[n++] = slot;
+			}
+		}
+		this.sort(slots, 0, n - 1);
+		return slots;
+	}
+
+
+	private int compareSlots(int a, int b){
+		return Kmer.compare(this.getHigh(a), this.low[a], this.getHigh(b), this.low[b]);
+	}
+
+
+	/**
+	 * Quicksort with median of three pivots and insertion sort for short ranges. Recursion goes into the smaller half only.
+	 */
+	private void sort(int[] slots, int left, int right){
+		while( right - left > 16){
+			int mid = (left + right) >>> 1;
+			if( compareSlots(slots[mid], slots[left]) < 0){ swap(slots, mid, left); }
+			if( compareSlots(slots[right], slots[left]) < 0){ swap(slots, right, left); }
+			if( compareSlots(slots[right], slots[mid]) < 0){ swap(slots, right, mid); }
+			int pivot = slots[mid];
+
+			int i = left;
+			int j = right;
+			while( i <= j){
+				while( compareSlots(slots[i], pivot) < 0){ i++; }
+				while( compareSlots(slots[j], pivot) > 0){ j--; }
+				if( i <= j){
+					swap(slots, i, j);
+					i++;
+					j--;
+				}
+			}
+			if( j - left < right - i){
+				sort(slots, left, j);
+				left = i;
+			}else{
+				sort(slots, i, right);
+				right = j;
+			}
+		}
+		for( int i = left + 1; i <= right; i++){
+			int slot = slots[i];
+			int j = i - 1;
+			while( j >= left && compareSlots(slots[j], slot) > 0){
+				slots[j+1] = slots[j];
+				j--;
+			}
+			slots[j+1] = slot;
+		}
+	}
+
+	private static void swap(int[] a, int i, int j){
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+
+
+
+	/**
+	 *
+	 * Make sure the presence bits are wide enough for a number of accessions.
+	 *
+	 * @param numAccessions
+	 */
+	public void ensureAccessions(int numAccessions){
+		int needed = (numAccessions + 63) >>> 6;
+		if( needed <= this.words){
+			return;
+		}
+		long[][] p = allocatePages(this.capacity(), needed);
+		for( int slot = 0; slot < this.capacity(); slot++){
+			System.arraycopy(this.presence[slot >>> PAGE_BITS], (slot & PAGE_MASK) * this.words, p[slot >>> PAGE_BITS], (slot & PAGE_MASK) * needed, this.words);
+		}
+		this.presence = p;
+		this.words = needed;
+	}
+
+
+
+	/**
+	 *
+	 * Remove all kmers. The table keeps its capacity.
+	 *
+	 */
+	public void clear(){
+		Arrays.fill(this.occupied, 0L);
+		for( int i = 0; i< this.presence.length; i++){
+			Arrays.fill(this.presence[i], 0L);
+		}
+		this.size = 0;
+	}
+
+
+
+	private static int tableSize(long expectedKmers){
+		long n = 16;
+		while( n * LOAD_FACTOR < expectedKmers){
+			n = n * 2;
+		}
+		if( n > MAX_CAPACITY){
+			throw tooManyKmers(expectedKmers);
+		}
+		return (int) n;
+	}
+
+	private static IllegalStateException tooManyKmers(long kmers){
+		return new IllegalStateException("Too many kmers for one table: " + kmers + ". Build the matrix out of memory with -tmp.");
+	}
+
+
+	/**
+	 * Presence bits for a number of slots, in pages of PAGE_SLOTS slots. A small table has one page of its own size.
+	 */
+	private static long[][] allocatePages(int capacity, int words){
+		int pageSlots = Math.min(capacity, PAGE_SLOTS);
+		if( (long) pageSlots * words > Integer.MAX_VALUE - 8){
+			throw new IllegalStateException("Too many accessions for one table: " + words * 64 + ".");
+		}
+		long[][] pages = new long[capacity / pageSlots][];
+		for( int i = 0; i< pages.length; i++){
+			pages[i] = new long[pageSlots * words];
+		}
+		return pages;
+	}
+
+
+	private void allocate(int capacity){
+		this.low = new long[capacity];
+		this.high = this.kmerSize > 32 ? new long[capacity] : null;
+		this.occupied = new long[(capacity + 63) >>> 6];
+		this.presence = allocatePages(capacity, this.words);
+		this.mask = capacity - 1;
+		this.size = 0;
+	}
+
+
+	private void rehash(int capacity){
+		long[] oldHigh = this.high;
+		long[] oldLow = this.low;
+		long[] oldOccupied = this.occupied;
+		long[][] oldPresence = this.presence;
+		int oldCapacity = oldLow.length;
+
+		this.allocate(capacity);
+
+		for( int slot = 0; slot < oldCapacity; slot++){
+			if( (oldOccupied[slot >>> 6] & (1L << slot)) == 0){
+				continue;
+			}
+			long h = oldHigh == null ? 0 : oldHigh[slot];
+			int newSlot = this.insert(h, oldLow[slot]);
+			System.arraycopy(oldPresence[slot >>> PAGE_BITS], (slot & PAGE_MASK) * this.words, this.presence[newSlot >>> PAGE_BITS], (newSlot & PAGE_MASK) * this.words, this.words);
+		}
+	}
+
+}
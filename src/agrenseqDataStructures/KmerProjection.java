@@ -2,18 +2,19 @@ package agrenseqDataStructures;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.BitSet;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import support.BioSequence;
 import support.FastaReader;
 
 
@@ -22,6 +23,8 @@ import support.FastaReader;
  * Calculate association scores for kmers and project them onto contigs of an assembly. 
  * An association score is the sum of AgRenSeq phenotype scores of accessions where the kmer is present.
  * The AgRenSeq phenotype score is suposed to be more positive the more the accession is resistant and more negative the more susceptible an accession is.
+ * Several phenotypes, e.g. races or isolates, can be scored in the same pass over the matrix. Each kmer then has one association score per phenotype.
+ * Instead of the sum of scores, the association score can also come from a linear regression of the phenotype on kmer presence and covariates, see RegressionScorer.
  * 
  * 
  * 
@@ -31,9 +34,17 @@ import support.FastaReader;
  */
 public class KmerProjection {
 
-	Phenotype phenotype;
-	HashMap<BitSet, Double> associationMatrix;
+	/**
+	 * number of locks for combining the rows of a matrix that is not canonical.
+	 */
+	private static final int SLOT_LOCKS = 1024;
+
+	Phenotype[] phenotypes;
+	StaticKmerScoreTable associationMatrix;
+	PackedContigs contigs;
 	int kmerSize;
+	PermutationTest permutationTest;
+	Phenotype[] covariates;
 	
 	
 	File assemblyFile;
@@ -47,8 +58,6 @@ public class KmerProjection {
 	 * 
 	 * @param phenotype
 	 * 
-	 * @param kmerSize
-	 * 
 	 * @param assemblyFile
 	 * 		The assemblyFile contains the denovo assembly of the accession where association scores are projected on. This is fasta format.
 	 * 
@@ -62,9 +71,23 @@ public class KmerProjection {
 	 * 
 	 */
 	public KmerProjection( Phenotype phenotype, File assemblyFile, File nlrList, File presenceMatrix )throws IOException{
+		this(new Phenotype[]{phenotype}, assemblyFile, nlrList, presenceMatrix);
+	}
+	
+	/**
+	 * 
+	 * Score several phenotypes at once.
+	 * 
+	 * @param phenotypes
+	 * 		Each kmer gets one association score per phenotype, in this order.
+	 * @param assemblyFile
+	 * @param nlrList
+	 * @param presenceMatrix
+	 * @throws IOException
+	 */
+	public KmerProjection( Phenotype[] phenotypes, File assemblyFile, File nlrList, File presenceMatrix )throws IOException{
 		
-		this.associationMatrix = new HashMap<BitSet, Double>();
-		this.phenotype = phenotype;
+		this.phenotypes = phenotypes;
 		this.assemblyFile = assemblyFile;
 		this.nlrList = nlrList;
 		this.presenceMatrix = presenceMatrix;
@@ -78,7 +101,32 @@ public class KmerProjection {
 	
 	/**
 	 * 
-	 * This takes the first entry in the presence absense matrix and uses that as the kmer length.
+	 * Score permutations of the phenotypes in the same pass over the matrix, see PermutationTest. This has to be set before the matrix is read.
+	 * 
+	 * @param permutations
+	 * 		number of permutations per phenotype. 0 switches permutations off.
+	 * @param seed
+	 */
+	public void setPermutations(int permutations, long seed){
+		this.permutationTest = permutations > 0 ? new PermutationTest(permutations, seed) : null;
+	}
+	
+	
+	/**
+	 * 
+	 * Score kmers by linear regression instead of summing up phenotype scores. The association score is then the signed -log10 p-value of kmer presence. This has to be set before the matrix is read.
+	 * 
+	 * @param covariates
+	 * 		covariates of the accessions, e.g. principal components of population structure. Can be empty.
+	 */
+	public void setRegression(Phenotype[] covariates){
+		this.covariates = covariates;
+	}
+	
+	
+	/**
+	 * 
+	 * This takes the kmer length from the presence absense matrix. For the text format this is the length of the first entry.
 	 * 
 	 * 
 	 * 
@@ -86,24 +134,8 @@ public class KmerProjection {
 	 */
 	public void setKmerSize()throws IOException{
 		
-		BufferedReader in;
-		FileInputStream fis = new FileInputStream(presenceMatrix);
-		byte[] bytes = new byte[2];
-		fis.read(bytes);
-		int head = ((int) bytes[0] & 0xff) | ((bytes[1] << 8) & 0xff00);
-		boolean gzip = GZIPInputStream.GZIP_MAGIC == head;
-		fis.close();
-		if(gzip){
-			in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(presenceMatrix))));
-		}else{
-			in = new BufferedReader(new FileReader(presenceMatrix));
-		}
-		String inputline = in.readLine();
-		while(inputline!= null && inputline.startsWith("#")){
-			inputline = in.readLine();
-		}
-		int kmerSize = inputline.split("\t")[0].length();
-		
+		PresenceMatrixReader in = PresenceMatrixReader.open(presenceMatrix);
+		int kmerSize = in.getKmerSize();
 		in.close();
 		
 		this.kmerSize = kmerSize;
@@ -115,6 +147,8 @@ public class KmerProjection {
 	 * 
 	 * This method will extract kmers from a denovo assembly. 
 	 * The file nlrList is assumed to be a tab separated table. The first column is assumed to contain contig ids. Only contigs where IDs are in that column will be regarded by this method.
+	 * These contigs are kept packed in memory, so the output is written without reading the assembly again.
+	 * An uncompressed assembly is indexed like with samtools faidx, or an existing .fai index is used, and only the listed contigs are read from it.
 	
 	 * @throws IOException
 	 */
@@ -130,123 +164,241 @@ public class KmerProjection {
 		in.close();
 
 		
-		FastaReader fastaReader = new FastaReader(assemblyFile);
-		for (BioSequence seq = fastaReader.readEntry(); seq != null; seq = fastaReader.readEntry()) {
-			if(!nlrContigs.contains(seq.getIdentifier())){
-				continue;
-			}
-			String sequence = seq.getSequence();
-			for( int i = 0; i< sequence.length()-kmerSize; i++){
-				BitSet kmer = Kmer.convert(sequence.substring(i, i+kmerSize));
-				this.associationMatrix.put(kmer, 0.0);
+		KmerScoreTable kmers = new KmerScoreTable(this.kmerSize);
+		this.contigs = new PackedContigs();
+		//other contigs are skipped without reading their sequence. With an index of the assembly they are not read at all.
+		FastaReader fastaReader = FastaReader.select(assemblyFile, nlrContigs);
+		KmerEncoder encoder = new KmerEncoder(this.kmerSize);
+		while( fastaReader.nextHeader()){
+			CharSequence sequence = fastaReader.readSequence();
+			this.contigs.add(fastaReader.getIdentifier(), sequence);
+			encoder.reset(sequence);
+			while( encoder.next()){
+				kmers.insert(encoder.getCanonicalHigh(), encoder.getCanonicalLow());
 			}
 		}
 		fastaReader.close();
-		System.out.println("...finished. Recorded " + this.associationMatrix.size() + " kmers.");
+		
+		//the kmer set does not change anymore, so it is frozen into a perfect hash.
+		this.associationMatrix = new StaticKmerScoreTable(kmers, this.phenotypes.length);
+		System.out.println("...finished. Recorded " + this.associationMatrix.size() + " kmers in " + (this.associationMatrix.getMemory() >>> 10) + " kb and " + this.contigs.size() + " contigs in " + (this.contigs.getMemory() >>> 10) + " kb.");
 	}
 	
 	
 	/**
-	 * This method will read through the file containing the presence/absense matrix and  
+	 * This method will read through the file containing the presence/absense matrix and assigns association scores to the kmers from the assembly.
+	 * The matrix can be in text or binary format.
 	 * 
 	 * 
 	 * @param presenceMatrix
 	 * @throws IOException
 	 */
 	public void readMatrix()throws IOException{
+		this.readMatrix(1);
+	}
+	
+	/**
+	 * 
+	 * Read the presence/absense matrix on several threads. The matrix is split into parts, see PresenceMatrixReader.split, and each part is parsed and scored by a worker.
+	 * The assembly kmers are all in the table already. In a canonical matrix every kmer has one row, so workers write scores into different slots and need no locks.
+	 * 
+	 * A matrix that is not known to be canonical, e.g. any text matrix, can have a row for a kmer and another one for its reverse complement, and these may be in different parts.
+	 * Such a kmer is present in an accession if either row says so, as in KmerMatrix. The workers then only combine the presence bits per slot, under a lock per group of slots, and the slots are scored afterwards.
+	 * 
+	 * @param threads
+	 * @throws IOException
+	 */
+	public void readMatrix(int threads)throws IOException{
 		
 		System.out.println("Reading presence/absense matrix " + presenceMatrix.getAbsolutePath());
 		
-		BufferedReader in;
-		FileInputStream fis = new FileInputStream(presenceMatrix);
-		byte[] bytes = new byte[2];
-		fis.read(bytes);
-		int head = ((int) bytes[0] & 0xff) | ((bytes[1] << 8) & 0xff00);
-		boolean gzip = GZIPInputStream.GZIP_MAGIC == head;
-		fis.close();
-		if(gzip){
-			in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(presenceMatrix))));
+		threads = Math.max(1, threads);
+		PresenceMatrixReader[] readers = PresenceMatrixReader.split(presenceMatrix, threads == 1 ? 1 : threads * 4);
+		
+		//the phenotypes are resolved once against the matrix columns.
+		final PresenceScorer scorer;
+		if( this.covariates != null){
+			if( this.permutationTest != null){
+				throw new IllegalStateException("Permutations are not supported for the regression.");
+			}
+			scorer = new RegressionScorer(this.phenotypes, this.covariates, readers[0].getAccessions());
+			System.out.println("Scoring by linear regression with " + this.covariates.length + " covariates");
+		}else if( this.permutationTest != null){
+			scorer = new AssociationScorer(this.permutationTest.getWeights(this.phenotypes, readers[0].getAccessions()));
+			this.permutationTest.allocate(this.associationMatrix.capacity());
+			System.out.println("Scoring " + this.permutationTest.getPermutations() + " permutations per phenotype");
 		}else{
-			in = new BufferedReader(new FileReader(presenceMatrix));
+			scorer = new AssociationScorer(AssociationScorer.getWeights(this.phenotypes, readers[0].getAccessions()));
 		}
 		
-		HashMap<String, Integer> accessions = new HashMap<String, Integer>();
-		String[] header = in.readLine().substring(1).split(",");  //get rid of the #.
-		for( int i = 0; i< header.length; i++){
-			accessions.put( header[i], i);
+		boolean canonical = true;
+		for( int i = 0; i< readers.length; i++){
+			canonical = canonical && readers[i].isCanonical();
 		}
 		
-		for( String inputline = in.readLine(); inputline != null; inputline = in.readLine()){
-			if( inputline.startsWith("#")){
-				continue;
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		if( canonical){
+			for( int i = 0; i< readers.length; i++){
+				final PresenceMatrixReader in = readers[i];
+				tasks.add(new Callable<Object>(){
+					public Object call()throws IOException{
+						scoreRows(in, scorer);
+						return null;
+					}
+				});
 			}
-			String[] split = inputline.split("\t");
-			
-			BitSet kmerF = Kmer.convert(split[0]);
-			BitSet kmerR = Kmer.convert(new BioSequence("", split[0]).getReverseComplementarySequence()); //jellyfish does canonical kmers. Just checking if the reverse complement is there.
-			
-			double associationScore = 0;
-			if( associationMatrix.containsKey(kmerF)){
-				associationScore = getAssociationScore(split[1], accessions);
-				this.associationMatrix.put(kmerF, associationScore);
+			runAll(tasks, threads);
+		}else{
+			final int words = readers[0].getWords();
+			final int capacity = this.associationMatrix.capacity();
+			if( (long) capacity * words > Integer.MAX_VALUE - 8){
+				throw new IOException("The assembly has too many kmers to combine both orientations of " + readers[0].getAccessions().length + " accessions. Convert the matrix to binary with AgRenSeq_ConvertMatrix.");
 			}
+			final long[] presence = new long[capacity * words];
+			final long[] seen = new long[(capacity + 63) >>> 6];
+			final Object[] locks = new Object[SLOT_LOCKS];
+			for( int i = 0; i< locks.length; i++){
+				locks[i] = new Object();
+			}
+			for( int i = 0; i< readers.length; i++){
+				final PresenceMatrixReader in = readers[i];
+				tasks.add(new Callable<Object>(){
+					public Object call()throws IOException{
+						combineRows(in, presence, seen, words, locks);
+						return null;
+					}
+				});
+			}
+			runAll(tasks, threads);
 			
-			if(associationMatrix.containsKey(kmerR)){
-				if(associationScore ==0){
-					associationScore = getAssociationScore(split[1], accessions);
-				}
-				this.associationMatrix.put(kmerR, associationScore);
+			tasks.clear();
+			for( int t = 0; t < threads; t++){
+				final int start = (int) ((long) capacity * t / threads);
+				final int end = (int) ((long) capacity * (t + 1) / threads);
+				tasks.add(new Callable<Object>(){
+					public Object call(){
+						scoreSlots(presence, seen, words, start, end, scorer);
+						return null;
+					}
+				});
 			}
+			runAll(tasks, threads);
 		}
-		in.close();
 		
+		if( this.permutationTest != null){
+			this.permutationTest.finish();
+		}
+	}
+	
+	
+	private static void runAll(ArrayList<Callable<Object>> tasks, int threads)throws IOException{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for( int i = 0; i< tasks.size(); i++){
+			futures.add(executor.submit(tasks.get(i)));
+		}
+		executor.shutdown();
 		
+		try{
+			for( int i = 0; i< futures.size(); i++){
+				futures.get(i).get();
+			}
+		}catch(InterruptedException e){
+			throw new IOException(e.getMessage());
+		}catch(ExecutionException e){
+			if( e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
 	}
 	
 	
 	/**
 	 * 
-	 * calculate an association score. 
+	 * The slot of the canonical form of the current row, or -1 if the kmer is not in the assembly.
 	 * 
-	 * @param presenceString
-	 * 		String of 0 and 1 according to presence and absence of a kmer in accessions. 
-	 * @param accessions
-	 * 		This points accessions to their accoring index in the presnceString.
-	 * @return
 	 */
-	private double getAssociationScore(String presenceString, HashMap<String, Integer> accessions){
-		
+	private int slotOf(PresenceMatrixReader in, boolean canonical){
+		long high = in.getHigh();
+		long low = in.getLow();
 		
-		
-		char[] a = presenceString.toCharArray();
-		BitSet presence = new BitSet();
-		for( int i = 0; i< a.length; i++){
-			if(a[i] =='1'){
-				presence.set(i);
+		//the assembly kmers are stored canonical. Matrix rows are canonical already unless they come from a dump without -C.
+		if( !canonical){
+			long reverseHigh = Kmer.complementHigh(high, low, this.kmerSize);
+			long reverseLow = Kmer.complementLow(high, low, this.kmerSize);
+			if( !Kmer.isCanonical(high, low, reverseHigh, reverseLow)){
+				high = reverseHigh;
+				low = reverseLow;
 			}
 		}
-		
-		double associationScore = 0;
-		for( Iterator<String> iterator = phenotype.getPhenotypes().keySet().iterator(); iterator.hasNext();){
-			String accession = iterator.next(); 
-			
-			try{
-				int index = accessions.get(accession);
-				if(presence.get(index) && this.phenotype.getPhenotypes().containsKey(accession)){
-					double agRenSeqScore = this.phenotype.getPhenotypes().get(accession);
-					associationScore = associationScore + agRenSeqScore;
+		return this.associationMatrix.indexOf(high, low);
+	}
+	
+	private void scoreRows(PresenceMatrixReader in, PresenceScorer scorer)throws IOException{
+		double[] scores = new double[scorer.getPhenotypeCount()];
+		double[] maxima = this.permutationTest == null ? null : this.permutationTest.newMaxima();
+		while( in.next()){
+			int slot = this.slotOf(in, true);
+			if( slot >= 0){
+				this.score(slot, in.getPresence(), scorer, scores, maxima);
+			}
+		}
+		in.close();
+		if( maxima != null){
+			this.permutationTest.addMaxima(maxima);
+		}
+	}
+	
+	/**
+	 * 
+	 * Combine the presence bits of both orientations of a kmer. Slots that share a word of seen also share a lock.
+	 * 
+	 */
+	private void combineRows(PresenceMatrixReader in, long[] presence, long[] seen, int words, Object[] locks)throws IOException{
+		while( in.next()){
+			int slot = this.slotOf(in, false);
+			if( slot >= 0){
+				long[] row = in.getPresence();
+				int offset = slot * words;
+				synchronized(locks[(slot >>> 6) & (locks.length - 1)]){
+					seen[slot >>> 6] |= 1L << slot;
+					for( int i = 0; i< words; i++){
+						presence[offset + i] |= row[i];
+					}
 				}
-			}catch(NullPointerException e){}	
+			}
 		}
-		return associationScore;
+		in.close();
 	}
 	
+	private void scoreSlots(long[] presence, long[] seen, int words, int start, int end, PresenceScorer scorer){
+		double[] scores = new double[scorer.getPhenotypeCount()];
+		double[] maxima = this.permutationTest == null ? null : this.permutationTest.newMaxima();
+		long[] row = new long[words];
+		for( int slot = start; slot < end; slot++){
+			if( (seen[slot >>> 6] & (1L << slot)) != 0){
+				System.arraycopy(presence, slot * words, row, 0, words);
+				this.score(slot, row, scorer, scores, maxima);
+			}
+		}
+		if( maxima != null){
+			this.permutationTest.addMaxima(maxima);
+		}
+	}
 	
+	private void score(int slot, long[] presence, PresenceScorer scorer, double[] scores, double[] maxima){
+		scorer.score(presence, scores);
+		this.associationMatrix.setScores(slot, scores);
+		if( maxima != null){
+			this.permutationTest.record(slot, scores, maxima);
+		}
+	}
 	
 	
 	/**
 	 * 
-	 * Writes the projection of association scores onto NLR contigs. This will read the denovo assembly, only regards the contigs in the nlrList, and prints scores.
+	 * Writes the projection of association scores onto NLR contigs. This goes through the contigs in the nlrList, as they were kept by readAssembly, and prints scores.
 	 * 
 	 * 
 	 * @param outputFile
@@ -259,52 +411,149 @@ public class KmerProjection {
 	 * @throws IOException
 	 */
 	public void writeAssociationScore(File outputFile)throws IOException{
+		this.writeAssociationScore(new File[]{outputFile});
+	}
+	
+	/**
+	 * 
+	 * Writes the projection of association scores onto NLR contigs for several phenotypes in one pass over the assembly. The format of each file is the same as for a single phenotype.
+	 * 
+	 * @param outputFiles
+	 * 		one output file per phenotype, in the order of the phenotypes.
+	 * @throws IOException
+	 */
+	public void writeAssociationScore(File[] outputFiles)throws IOException{
 		
 		System.out.println("Writing association output");
 		
-		HashSet<String> nlrContigs = new HashSet<String>();
-		BufferedReader in = new BufferedReader(new FileReader(nlrList));
-		for (String inputline = in.readLine(); inputline != null; inputline = in.readLine()) {
-			nlrContigs.add(inputline.split("\t")[0]);
+		int numOutputs = Math.min(outputFiles.length, this.phenotypes.length);
+		BufferedWriter[] out = new BufferedWriter[numOutputs];
+		for( int i = 0; i< numOutputs; i++){
+			out[i] = new BufferedWriter(new FileWriter(outputFiles[i]));
 		}
-		in.close();
-
-		
-		FastaReader fastaReader = new FastaReader(assemblyFile);
-		BufferedWriter out = new BufferedWriter(new FileWriter(outputFile));
+		KmerEncoder encoder = new KmerEncoder(this.kmerSize);
 		int contigCount =0;
 		
 		
-		for (BioSequence seq = fastaReader.readEntry(); seq != null; seq = fastaReader.readEntry()) {
-			if(!nlrContigs.contains(seq.getIdentifier())){
-				continue;
-			}
+		for( int c = 0; c < this.contigs.size(); c++){
+			String identifier = this.contigs.getIdentifier(c);
 			contigCount++;
-			HashMap<Double, Integer> h = new HashMap<Double, Integer>();
-			String sequence = seq.getSequence();
-			for( int i = 0; i< sequence.length()-kmerSize; i++){
-				BitSet kmer = Kmer.convert(sequence.substring(i, i+kmerSize));
-				Double associationScore = this.associationMatrix.get(kmer);
-				if( associationScore!= null && associationScore.doubleValue() != 0.0){
-					int num = 0;
-					if(h.containsKey(associationScore)){
-						num = h.get(associationScore);
+			ArrayList<HashMap<Double, Integer>> hs = new ArrayList<HashMap<Double, Integer>>();
+			for( int i = 0; i< numOutputs; i++){
+				hs.add(new HashMap<Double, Integer>());
+			}
+			encoder.reset(this.contigs.getSequence(c));
+			while( encoder.next()){
+				int slot = this.associationMatrix.indexOf(encoder.getCanonicalHigh(), encoder.getCanonicalLow());
+				if( slot < 0){
+					continue;
+				}
+				for( int i = 0; i< numOutputs; i++){
+					double associationScore = this.associationMatrix.getScore(slot, i);
+					if( associationScore != 0.0){
+						HashMap<Double, Integer> h = hs.get(i);
+						int num = 0;
+						if(h.containsKey(associationScore)){
+							num = h.get(associationScore);
+						}
+						num++;
+						h.put(associationScore, num);
 					}
-					num++;
-					h.put(associationScore, num);
 				}
 			}
 			
-			for( Iterator<Double> iterator = h.keySet().iterator(); iterator.hasNext();){
-				double associationScore = iterator.next();
-				int num = h.get(associationScore);
-				out.write(seq.getIdentifier() + "\t" + contigCount + "\t" + associationScore + "\t" + num);
-				out.newLine();
+			for( int i = 0; i< numOutputs; i++){
+				HashMap<Double, Integer> h = hs.get(i);
+				for( Iterator<Double> iterator = h.keySet().iterator(); iterator.hasNext();){
+					double associationScore = iterator.next();
+					int num = h.get(associationScore);
+					out[i].write(identifier + "\t" + contigCount + "\t" + associationScore + "\t" + num);
+					out[i].newLine();
+				}
 			}
 			
 		}
-		fastaReader.close();
-		out.close();
+		for( int i = 0; i< numOutputs; i++){
+			out[i].close();
+		}
+	}
+	
+	
+	
+	/**
+	 * 
+	 * Writes the empirical significance of the association scores, see setPermutations. There is one line per contig and unique score, like in writeAssociationScore.
+	 * 
+	 * @param outputFiles
+	 * 		one output file per phenotype, in the order of the phenotypes. TSV file.
+	 * 		Columns one to four are the same as in writeAssociationScore.
+	 * 		Fifth column is the smallest empirical p-value of the kmers with that score.
+	 * 		Sixth column is the smallest Benjamini-Hochberg q-value of the kmers with that score.
+	 * 		Seventh column is the p-value of the score corrected for all kmers by the permutation maxima. The smallest value of a contig is the p-value of the contig.
+	 * @throws IOException
+	 */
+	public void writeSignificance(File[] outputFiles)throws IOException{
+		
+		if( this.permutationTest == null){
+			throw new IllegalStateException("No permutations were scored.");
+		}
+		System.out.println("Writing permutation p-values");
+		
+		int numOutputs = Math.min(outputFiles.length, this.phenotypes.length);
+		BufferedWriter[] out = new BufferedWriter[numOutputs];
+		for( int i = 0; i< numOutputs; i++){
+			out[i] = new BufferedWriter(new FileWriter(outputFiles[i]));
+		}
+		KmerEncoder encoder = new KmerEncoder(this.kmerSize);
+		int contigCount =0;
+		
+		for( int c = 0; c < this.contigs.size(); c++){
+			String identifier = this.contigs.getIdentifier(c);
+			contigCount++;
+			
+			//per score the number of kmers and the slot of the kmer with the smallest p-value.
+			ArrayList<HashMap<Double, int[]>> hs = new ArrayList<HashMap<Double, int[]>>();
+			for( int i = 0; i< numOutputs; i++){
+				hs.add(new HashMap<Double, int[]>());
+			}
+			encoder.reset(this.contigs.getSequence(c));
+			while( encoder.next()){
+				int slot = this.associationMatrix.indexOf(encoder.getCanonicalHigh(), encoder.getCanonicalLow());
+				if( slot < 0 || !this.permutationTest.isTested(slot)){
+					continue;
+				}
+				for( int i = 0; i< numOutputs; i++){
+					double associationScore = this.associationMatrix.getScore(slot, i);
+					if( associationScore != 0.0){
+						int[] entry = hs.get(i).get(associationScore);
+						if( entry == null){
+							entry = new int[]{0, slot};
+							hs.get(i).put(associationScore, entry);
+						}
+						entry[0]++;
+						if( this.permutationTest.getPValue(slot, i) < this.permutationTest.getPValue(entry[1], i)){
+							entry[1] = slot;
+						}
+					}
+				}
+			}
+			
+			for( int i = 0; i< numOutputs; i++){
+				HashMap<Double, int[]> h = hs.get(i);
+				for( Iterator<Double> iterator = h.keySet().iterator(); iterator.hasNext();){
+					double associationScore = iterator.next();
+					int[] entry = h.get(associationScore);
+					out[i].write(identifier + "\t" + contigCount + "\t" + associationScore + "\t" + entry[0] + "\t" + 
+								this.permutationTest.getPValue(entry[1], i) + "\t" + 
+								this.permutationTest.getQValue(entry[1], i) + "\t" + 
+								this.permutationTest.getAdjustedPValue(associationScore, i));
+					out[i].newLine();
+				}
+			}
+		}
+		for( int i = 0; i< numOutputs; i++){
+			out[i].close();
+		}
 	}
 	
 	
@@ -324,20 +573,16 @@ public class KmerProjection {
 	 * @throws IOException
 	 */
 	public void writeAssociationScorePerPosition( HashSet<String> contigList, File outputFile)throws IOException{
-		FastaReader fastaReader = new FastaReader(assemblyFile);
+		FastaReader fastaReader = FastaReader.select(assemblyFile, contigList);
 		BufferedWriter out = new BufferedWriter(new FileWriter(outputFile));
+		KmerEncoder encoder = new KmerEncoder(this.kmerSize);
 		
-		
-		for (BioSequence seq = fastaReader.readEntry(); seq != null; seq = fastaReader.readEntry()) {
-			if(!contigList.contains(seq.getIdentifier())){
-				continue;
-			}
-			String sequence = seq.getSequence();
-			for( int i = 0; i< sequence.length()-kmerSize; i++){
-				BitSet kmer = Kmer.convert(sequence.substring(i, i+kmerSize));
-				Double associationScore = this.associationMatrix.get(kmer);
-				if( associationScore!= null && associationScore.doubleValue() != 0.0){
-					out.write(seq.getIdentifier() + "\t" + i + "\t" + associationScore);
+		while( fastaReader.nextHeader()){
+			encoder.reset(fastaReader.readSequence());
+			while( encoder.next()){
+				double associationScore = this.associationMatrix.get(encoder.getCanonicalHigh(), encoder.getCanonicalLow());
+				if( associationScore != 0.0){
+					out.write(fastaReader.getIdentifier() + "\t" + encoder.getPosition() + "\t" + associationScore);
 					out.newLine();
 				}
 			}
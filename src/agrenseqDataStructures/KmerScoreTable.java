@@ -0,0 +1,236 @@
+package agrenseqDataStructures;
+
+
+/**
+ *
+ * A hash table from packed kmers to association scores. Keys and scores live in primitive arrays, so no objects are created per kmer and scores are not boxed.
+ * The table uses open addressing with linear probing. The high word of a kmer is only stored for kmers longer than 32 bases.
+ * A kmer can have several scores, one per column, e.g. one per phenotype. The scores of a slot are next to each other.
+ *
+ * @author steuernb
+ *
+ */
+public class KmerScoreTable {
+
+	private static final double LOAD_FACTOR = 0.75;
+
+	int kmerSize;
+
+	long[] high;
+	long[] low;
+	long[] occupied;
+	double[] scores;
+	int columns;
+
+	int size;
+	int mask;
+
+
+
+	public KmerScoreTable(int kmerSize){
+		this(kmerSize, 1);
+	}
+
+	/**
+	 *
+	 * @param kmerSize
+	 * @param columns
+	 * 		number of scores per kmer.
+	 */
+	public KmerScoreTable(int kmerSize, int columns){
+		if( kmerSize > Kmer.MAX_KMER_SIZE){
+			throw new IllegalArgumentException("Kmer size " + kmerSize + " exceeds the maximum of " + Kmer.MAX_KMER_SIZE);
+		}
+		this.kmerSize = kmerSize;
+		this.columns = Math.max(1, columns);
+		this.allocate(1024);
+	}
+
+
+	public int getKmerSize(){
+		return this.kmerSize;
+	}
+
+	public int getColumns(){
+		return this.columns;
+	}
+
+	/**
+	 * @return
+	 * 		number of kmers in the table.
+	 */
+	public int size(){
+		return this.size;
+	}
+
+	/**
+	 * @return
+	 * 		number of slots in the table.
+	 */
+	public int capacity(){
+		return this.low.length;
+	}
+
+	public boolean isOccupied(int slot){
+		return (this.occupied[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	public long getHigh(int slot){
+		return this.high == null ? 0 : this.high[slot];
+	}
+
+	public long getLow(int slot){
+		return this.low[slot];
+	}
+
+
+
+	/**
+	 *
+	 * Find the slot of a kmer.
+	 *
+	 * @param high
+	 * @param low
+	 * @return
+	 * 		the slot or -1 if the kmer is not in the table.
+	 */
+	public int indexOf(long high, long low){
+		int slot = (int) Kmer.hash(high, low) & this.mask;
+		while( this.isOccupied(slot)){
+			if( this.low[slot] == low && (this.high == null || this.high[slot] == high)){
+				return slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	public boolean containsKey(long high, long low){
+		return this.indexOf(high, low) >= 0;
+	}
+
+
+	/**
+	 *
+	 * Set the score of a kmer. The kmer is added if it is not in the table yet. Other columns of a new kmer are 0.
+	 *
+	 * @param high
+	 * @param low
+	 * @param score
+	 */
+	public void put(long high, long low, double score){
+		int slot = this.insert(high, low);
+		this.scores[slot * this.columns] = score;
+	}
+
+	/**
+	 *
+	 * Add a kmer to the table if it is not in there yet.
+	 *
+	 * @param high
+	 * @param low
+	 * @return
+	 * 		the slot of the kmer.
+	 */
+	public int insert(long high, long low){
+		if( this.size + 1 > this.capacity() * LOAD_FACTOR){
+			this.rehash(this.capacity() * 2);
+		}
+		int slot = (int) Kmer.hash(high, low) & this.mask;
+		while( this.isOccupied(slot)){
+			if( this.low[slot] == low && (this.high == null || this.high[slot] == high)){
+				return slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		this.occupied[slot >>> 6] |= 1L << slot;
+		this.low[slot] = low;
+		if( this.high != null){
+			this.high[slot] = high;
+		}
+		this.size++;
+		return slot;
+	}
+
+
+	/**
+	 *
+	 * @param high
+	 * @param low
+	 * @return
+	 * 		the score of the kmer or 0 if the kmer is not in the table.
+	 */
+	public double get(long high, long low){
+		return this.get(high, low, 0);
+	}
+
+	/**
+	 *
+	 * @param high
+	 * @param low
+	 * @param column
+	 * @return
+	 * 		the score of the kmer in a column or 0 if the kmer is not in the table.
+	 */
+	public double get(long high, long low, int column){
+		int slot = this.indexOf(high, low);
+		if( slot < 0){
+			return 0;
+		}
+		return this.scores[slot * this.columns + column];
+	}
+
+	public double getScore(int slot){
+		return this.scores[slot * this.columns];
+	}
+
+	public void setScore(int slot, double score){
+		this.scores[slot * this.columns] = score;
+	}
+
+	public double getScore(int slot, int column){
+		return this.scores[slot * this.columns + column];
+	}
+
+	/**
+	 *
+	 * Set all columns of a slot at once.
+	 *
+	 * @param slot
+	 * @param scores
+	 * 		at least getColumns() scores.
+	 */
+	public void setScores(int slot, double[] scores){
+		System.arraycopy(scores, 0, this.scores, slot * this.columns, this.columns);
+	}
+
+
+
+	private void allocate(int capacity){
+		this.low = new long[capacity];
+		this.high = this.kmerSize > 32 ? new long[capacity] : null;
+		this.occupied = new long[(capacity + 63) >>> 6];
+		this.scores = new double[capacity * this.columns];
+		this.mask = capacity - 1;
+		this.size = 0;
+	}
+
+
+	private void rehash(int capacity){
+		long[] oldHigh = this.high;
+		long[] oldLow = this.low;
+		long[] oldOccupied = this.occupied;
+		double[] oldScores = this.scores;
+		int oldCapacity = oldLow.length;
+
+		this.allocate(capacity);
+
+		for( int slot = 0; slot < oldCapacity; slot++){
+			if( (oldOccupied[slot >>> 6] & (1L << slot)) != 0){
+				int newSlot = this.insert(oldHigh == null ? 0 : oldHigh[slot], oldLow[slot]);
+				System.arraycopy(oldScores, slot * this.columns, this.scores, newSlot * this.columns, this.columns);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+package agrenseqDataStructures;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ *
+ * A count-min sketch that estimates in how many accessions a kmer is present. It is used to drop rare kmers before they are stored in a matrix.
+ * Each kmer is added once per accession. The estimate is never lower than the true number, so a kmer with an estimate below the threshold can safely be left out.
+ *
+ * The sketch has 4 rows of byte counters. Counters stop at a maximum, usually the threshold, since larger numbers do not change the decision.
+ * Updates are conservative: only the counters that hold the current minimum are increased, which keeps the overestimate small.
+ *
+ * For reading dumps in parallel the rows are split into stripes by the hash of the kmer, like the stripes of KmerMatrix. All counters of a kmer are in its stripe, so one lock per stripe keeps the updates exact.
+ *
+ * @author steuernb
+ *
+ */
+public class KmerSketch {
+
+	private static final int DEPTH = 4;
+	private static final int BATCH_SIZE = 4096;
+
+	byte[][] counters;
+	int maximum;
+
+	int stripeBits;
+	int stripeShift;
+	int stripeMask;
+	Object[] locks;
+
+
+
+	/**
+	 *
+	 * @param memory
+	 * 		bytes the sketch may use. The width of a row is rounded down to a power of two.
+	 * @param maximum
+	 * 		counters stop at this value. At most 127.
+	 */
+	public KmerSketch(long memory, int maximum){
+		this(memory, maximum, 1);
+	}
+
+	/**
+	 *
+	 * @param memory
+	 * 		bytes the sketch may use. The width of a row is rounded down to a power of two.
+	 * @param maximum
+	 * 		counters stop at this value. At most 127.
+	 * @param stripes
+	 * 		number of independently locked parts of the sketch. Rounded up to a power of two. Use more stripes than threads when reading dumps in parallel.
+	 */
+	public KmerSketch(long memory, int maximum, int stripes){
+		long width = 1024;
+		while( width * 2 * DEPTH <= memory && width < (1 << 30)){
+			width = width * 2;
+		}
+		this.counters = new byte[DEPTH][(int) width];
+		this.maximum = Math.max(1, Math.min(Byte.MAX_VALUE, maximum));
+
+		//a stripe keeps at least 256 counters per row.
+		this.stripeBits = 0;
+		while( (1 << this.stripeBits) < stripes && (width >>> (this.stripeBits + 1)) >= 256){
+			this.stripeBits++;
+		}
+		this.stripeShift = Long.numberOfTrailingZeros(width) - this.stripeBits;
+		this.stripeMask = (1 << this.stripeShift) - 1;
+		this.locks = new Object[1 << this.stripeBits];
+		for( int i = 0; i< this.locks.length; i++){
+			this.locks[i] = new Object();
+		}
+	}
+
+
+	private int stripeOf(long hash){
+		if( this.stripeBits == 0){
+			return 0;
+		}
+		return (int) (hash >>> (64 - this.stripeBits));
+	}
+
+
+
+	/**
+	 *
+	 * Count a kmer once more.
+	 *
+	 * @param high
+	 * @param low
+	 */
+	public void add(long high, long low){
+		long hash = Kmer.hash(high, low);
+		int h1 = (int) hash;
+		int h2 = ((int) (hash >>> 32)) | 1;
+		int base = this.stripeOf(hash) << this.stripeShift;
+
+		int min = this.maximum;
+		for( int i = 0; i< DEPTH; i++){
+			min = Math.min(min, this.counters[i][base | ((h1 + i * h2) & this.stripeMask)]);
+		}
+		if( min >= this.maximum){
+			return;
+		}
+		for( int i = 0; i< DEPTH; i++){
+			int index = base | ((h1 + i * h2) & this.stripeMask);
+			if( this.counters[i][index] == min){
+				this.counters[i][index] = (byte) (min + 1);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * Count a batch of kmers that are all in one stripe. This is safe to call from several threads.
+	 *
+	 */
+	private void flush(int stripe, long[] high, long[] low, int n){
+		synchronized(this.locks[stripe]){
+			for( int i = 0; i< n; i++){
+				this.add(high[i], low[i]);
+			}
+		}
+	}
+
+
+	/**
+	 *
+	 * @param high
+	 * @param low
+	 * @return
+	 * 		an upper bound for the number of times the kmer was added, or the maximum of the counters.
+	 */
+	public int estimate(long high, long low){
+		long hash = Kmer.hash(high, low);
+		int h1 = (int) hash;
+		int h2 = ((int) (hash >>> 32)) | 1;
+
+		int base = this.stripeOf(hash) << this.stripeShift;
+
+		int min = this.maximum;
+		for( int i = 0; i< DEPTH; i++){
+			min = Math.min(min, this.counters[i][base | ((h1 + i * h2) & this.stripeMask)]);
+		}
+		return min;
+	}
+
+
+	/**
+	 * @return
+	 * 		bytes used by the counters.
+	 */
+	public long getMemory(){
+		return (long) DEPTH * this.counters[0].length;
+	}
+
+
+
+	/**
+	 *
+	 * Count every kmer of a data set that has at least minCount occurrences once. The source is closed afterwards.
+	 * Kmers are collected per stripe and counted in batches, so the lock of a stripe is taken once per batch. This is safe to call from several threads.
+	 *
+	 * @param in
+	 * @param minCount
+	 * @throws IOException
+	 */
+	public void addKmerSet(KmerCountSource in, int minCount)throws IOException{
+		int stripes = this.locks.length;
+		long[][] batchHigh = new long[stripes][BATCH_SIZE];
+		long[][] batchLow = new long[stripes][BATCH_SIZE];
+		int[] batchCount = new int[stripes];
+		while( in.next()){
+			if( in.getCount() >= minCount){
+				int stripe = this.stripeOf(Kmer.hash(in.getHigh(), in.getLow()));
+				int n = batchCount[stripe];
+				batchHigh[stripe][n] = in.getHigh();
+				batchLow[stripe][n] = in.getLow();
+				batchCount[stripe] = n + 1;
+				if( n + 1 == BATCH_SIZE){
+					this.flush(stripe, batchHigh[stripe], batchLow[stripe], BATCH_SIZE);
+					batchCount[stripe] = 0;
+				}
+			}
+		}
+		for( int stripe = 0; stripe < stripes; stripe++){
+			this.flush(stripe, batchHigh[stripe], batchLow[stripe], batchCount[stripe]);
+		}
+		in.close();
+	}
+
+
+	/**
+	 *
+	 * First pass of a two pass matrix build: count the accessions of every kmer in a set of kmer dumps.
+	 *
+	 * @param kmerDumps
+	 * @param minCount
+	 * 		minimum kmer count to consider a kmer present.
+	 * @param threshold
+	 * 		the threshold the matrix will be reduced with. The counters stop here.
+	 * @param memory
+	 * 		bytes for the sketch.
+	 * @param threads
+	 * 		number of dumps that are read in parallel.
+	 * @return
+	 * @throws IOException
+	 */
+	public static KmerSketch fromKmerDumps(File[] kmerDumps, final int minCount, int threshold, long memory, int threads)throws IOException{
+		final KmerSketch sketch = new KmerSketch(memory, threshold, threads > 1 ? threads * 8 : 1);
+
+		System.out.println("Counting kmer occurrence in " + kmerDumps.length + " dumps with a sketch of " + (sketch.getMemory() >> 20) + " MB");
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		for( int i = 0; i< kmerDumps.length; i++){
+			final File kmerDump = kmerDumps[i];
+			futures.add(executor.submit(new Callable<Object>(){
+				public Object call()throws IOException{
+					sketch.addKmerSet(new KmerDumpReader(kmerDump), minCount);
+					return null;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		try{
+			for( int i = 0; i< futures.size(); i++){
+				futures.get(i).get();
+			}
+		}catch(InterruptedException e){
+			throw new IOException(e.getMessage());
+		}catch(ExecutionException e){
+			if( e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		return sketch;
+	}
+
+}
@@ -0,0 +1,177 @@
+package agrenseqDataStructures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ *
+ * Contigs kept in memory with 2 bits per base, e.g. the NLR contigs of an assembly, so they can be scanned for kmers again without reading the assembly.
+ * Bases other than A, C, G and T are marked in a separate bit set and read back as N. They end a kmer window in the KmerEncoder as before, so kmers and their positions are the same as in the original sequence.
+ * With the mark a base takes 3 bits instead of the 16 of a char in a String.
+ *
+ * Typical use:
+ * <pre>
+ * encoder.reset(contigs.getSequence(i));
+ * while( encoder.next()){
+ * 	...
+ * }
+ * </pre>
+ *
+ * @author steuernb
+ *
+ */
+public class PackedContigs {
+
+	private static final char[] BASES = {'T', 'G', 'C', 'A'};
+
+	ArrayList<String> identifiers;
+
+	/**
+	 * offset of the first base of each contig, plus one entry for the end.
+	 */
+	long[] starts;
+	long length;
+
+	/**
+	 * 32 bases per long, first base in the lowest bits.
+	 */
+	long[] bases;
+
+	/**
+	 * one bit per base that is not A, C, G or T.
+	 */
+	long[] ambiguous;
+
+
+
+	public PackedContigs(){
+		this.identifiers = new ArrayList<String>();
+		this.starts = new long[16];
+		this.length = 0;
+		this.bases = new long[1024];
+		this.ambiguous = new long[512];
+	}
+
+
+
+	/**
+	 *
+	 * Append a contig.
+	 *
+	 * @param identifier
+	 * @param sequence
+	 */
+	public void add(String identifier, CharSequence sequence){
+		int n = this.identifiers.size();
+		if( n + 2 > this.starts.length){
+			this.starts = Arrays.copyOf(this.starts, this.starts.length * 2);
+		}
+		long end = this.length + sequence.length();
+		if( ((end + 31) >>> 5) > this.bases.length){
+			this.bases = Arrays.copyOf(this.bases, (int) Math.max(this.bases.length * 2L, (end + 31) >>> 5));
+			this.ambiguous = Arrays.copyOf(this.ambiguous, (this.bases.length + 1) >>> 1);
+		}
+
+		for( int i = 0; i< sequence.length(); i++){
+			long p = this.length + i;
+			int code = Kmer.encode(sequence.charAt(i));
+			if( code < 0){
+				this.ambiguous[(int) (p >>> 6)] |= 1L << p;
+				code = 0;
+			}
+			this.bases[(int) (p >>> 5)] |= ((long) code) << ((p & 31) << 1);
+		}
+
+		this.identifiers.add(identifier);
+		this.starts[n] = this.length;
+		this.length = end;
+		this.starts[n + 1] = end;
+	}
+
+
+
+	/**
+	 * @return
+	 * 		number of contigs.
+	 */
+	public int size(){
+		return this.identifiers.size();
+	}
+
+	public String getIdentifier(int contig){
+		return this.identifiers.get(contig);
+	}
+
+	public int getLength(int contig){
+		return (int) (this.starts[contig + 1] - this.starts[contig]);
+	}
+
+	/**
+	 *
+	 * @param contig
+	 * @return
+	 * 		a view of the sequence of a contig in upper case. Bases that were not A, C, G or T are N. Nothing is copied.
+	 */
+	public CharSequence getSequence(int contig){
+		return new Sequence(this.starts[contig], this.starts[contig + 1]);
+	}
+
+	/**
+	 * @return
+	 * 		approximate memory in bytes, without the identifiers.
+	 */
+	public long getMemory(){
+		return (long) this.bases.length * 8 + (long) this.ambiguous.length * 8 + (long) this.starts.length * 8;
+	}
+
+
+
+	private char charAt(long p){
+		if( (this.ambiguous[(int) (p >>> 6)] & (1L << p)) != 0){
+			return 'N';
+		}
+		return BASES[(int) (this.bases[(int) (p >>> 5)] >>> ((p & 31) << 1)) & 3];
+	}
+
+
+	/**
+	 * The bases of one contig between two offsets.
+	 */
+	private class Sequence implements CharSequence {
+		long start;
+		long end;
+
+		Sequence(long start, long end){
+			this.start = start;
+			this.end = end;
+		}
+
+		public int length(){
+			return (int) (this.end - this.start);
+		}
+
+		public char charAt(int index){
+			if( index < 0 || index >= this.length()){
+				throw new IndexOutOfBoundsException("Index " + index + " of a sequence of length " + this.length());
+			}
+			return PackedContigs.this.charAt(this.start + index);
+		}
+
+		public CharSequence subSequence(int start, int end){
+			if( start < 0 || end > this.length() || start > end){
+				throw new IndexOutOfBoundsException("Range " + start + " to " + end + " of a sequence of length " + this.length());
+			}
+			return new Sequence(this.start + start, this.start + end);
+		}
+
+		public String toString(){
+			char[] c = new char[this.length()];
+			for( int i = 0; i< c.length; i++){
+				c[i] = PackedContigs.this.charAt(this.start + i);
+			}
+			return new String(c);
+		}
+	}
+
+}
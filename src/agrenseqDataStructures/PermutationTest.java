@@ -0,0 +1,286 @@
+package agrenseqDataStructures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ *
+ * Empirical significance of association scores by permutation of the phenotype.
+ * The phenotype scores are shuffled among the accessions that have a phenotype. Every permutation is one more row of weights for the AssociationScorer,
+ * so a row of the matrix is decoded once and scored against the observed and all permuted phenotypes together.
+ *
+ * For each kmer the number of permutations that score at least as high as the observed phenotype is counted. This gives an empirical p-value per kmer and, with Benjamini-Hochberg, a q-value.
+ * For each permutation the highest score over all kmers is kept. Comparing a score to these maxima gives a p-value that is corrected for testing all kmers (Westfall-Young maxT), and the p-value of a contig is that of its highest scoring kmer.
+ *
+ * The weights for the AssociationScorer are ordered with the observed phenotypes first and then, for every permutation, one row per phenotype.
+ *
+ * @author steuernb
+ *
+ */
+public class PermutationTest {
+
+	/**
+	 * Permuted and observed scores sum the same weights in a different order, so equal scores can differ in the last bits.
+	 */
+	private static final double EPSILON = 1e-9;
+
+	int permutations;
+	long seed;
+	int phenotypes;
+
+	/**
+	 * per slot and phenotype the number of permutations scoring at least as high as observed, plus 1. 0 means the kmer was not in the matrix.
+	 */
+	int[] exceedances;
+
+	/**
+	 * per phenotype the sorted highest score of each permutation.
+	 */
+	double[][] maxima;
+	double[][] qValues;
+
+
+
+	/**
+	 *
+	 * @param permutations
+	 * 		number of permutations of each phenotype.
+	 * @param seed
+	 * 		seed of the random shuffles, so a run can be repeated.
+	 */
+	public PermutationTest(int permutations, long seed){
+		this.permutations = permutations;
+		this.seed = seed;
+	}
+
+
+
+	public int getPermutations(){
+		return this.permutations;
+	}
+
+
+
+	/**
+	 *
+	 * Resolve the phenotypes against the matrix columns and add the permuted phenotypes.
+	 *
+	 * @param phenotypes
+	 * @param accessions
+	 * 		accession names in matrix column order.
+	 * @return
+	 * 		weights for an AssociationScorer. The observed phenotypes come first, then one row per permutation and phenotype.
+	 */
+	public double[][] getWeights(Phenotype[] phenotypes, String[] accessions){
+		this.phenotypes = phenotypes.length;
+		double[][] observed = AssociationScorer.getWeights(phenotypes, accessions);
+		double[][] weights = new double[phenotypes.length * (this.permutations + 1)][];
+		Random random = new Random(this.seed);
+
+		for( int f = 0; f < phenotypes.length; f++){
+			weights[f] = observed[f];
+
+			//only accessions with a phenotype swap their scores.
+			ArrayList<Integer> columns = new ArrayList<Integer>();
+			for( int i = 0; i< accessions.length; i++){
+				if( phenotypes[f].getPhenotypes().containsKey(accessions[i])){
+					columns.add(i);
+				}
+			}
+
+			for( int n = 0; n < this.permutations; n++){
+				double[] w = new double[accessions.length];
+				for( int i = 0; i< columns.size(); i++){
+					w[columns.get(i)] = observed[f][columns.get(i)];
+				}
+				for( int i = columns.size() - 1; i > 0; i--){
+					int j = random.nextInt(i + 1);
+					int a = columns.get(i);
+					int b = columns.get(j);
+					double d = w[a];
+					w[a] = w[b];
+					w[b] = d;
+				}
+				weights[(n + 1) * phenotypes.length + f] = w;
+			}
+		}
+		return weights;
+	}
+
+
+
+	/**
+	 *
+	 * Make room for the kmers of a score table. This is called before the matrix is read.
+	 *
+	 * @param capacity
+	 * 		number of slots of the score table.
+	 */
+	public void allocate(int capacity){
+		this.exceedances = new int[capacity * this.phenotypes];
+		this.maxima = null;
+		this.qValues = null;
+	}
+
+	/**
+	 * @return
+	 * 		an array for the highest permuted scores of one worker, to be passed to record() and merged with addMaxima().
+	 */
+	public double[] newMaxima(){
+		double[] maxima = new double[this.permutations * this.phenotypes];
+		Arrays.fill(maxima, Double.NEGATIVE_INFINITY);
+		return maxima;
+	}
+
+
+
+	/**
+	 *
+	 * Count the permutations that reach the observed score of a kmer. Workers record different slots, so no locks are needed.
+	 *
+	 * @param slot
+	 * 		slot of the kmer in the score table.
+	 * @param scores
+	 * 		scores of the kmer, ordered like the weights.
+	 * @param maxima
+	 * 		highest permuted scores of this worker.
+	 */
+	public void record(int slot, double[] scores, double[] maxima){
+		int p = this.phenotypes;
+		for( int f = 0; f < p; f++){
+			double observed = scores[f] - EPSILON;
+			int count = 0;
+			for( int n = 0; n < this.permutations; n++){
+				double score = scores[(n + 1) * p + f];
+				if( score >= observed){
+					count++;
+				}
+				if( score > maxima[n * p + f]){
+					maxima[n * p + f] = score;
+				}
+			}
+			this.exceedances[slot * p + f] = count + 1;
+		}
+	}
+
+	/**
+	 * Merge the highest permuted scores of a worker.
+	 *
+	 * @param maxima
+	 */
+	public synchronized void addMaxima(double[] maxima){
+		if( this.maxima == null){
+			this.maxima = new double[this.phenotypes][this.permutations];
+			for( int f = 0; f < this.phenotypes; f++){
+				Arrays.fill(this.maxima[f], Double.NEGATIVE_INFINITY);
+			}
+		}
+		for( int n = 0; n < this.permutations; n++){
+			for( int f = 0; f < this.phenotypes; f++){
+				this.maxima[f][n] = Math.max(this.maxima[f][n], maxima[n * this.phenotypes + f]);
+			}
+		}
+	}
+
+
+
+	/**
+	 *
+	 * Sort the maxima and calculate the q-values once all rows are recorded.
+	 *
+	 */
+	public void finish(){
+		this.addMaxima(this.newMaxima());
+		this.qValues = new double[this.phenotypes][];
+		for( int f = 0; f < this.phenotypes; f++){
+			Arrays.sort(this.maxima[f]);
+
+			//the p-values can only take permutations+1 values, so they are sorted by counting.
+			long[] counts = new long[this.permutations + 1];
+			long tests = 0;
+			for( int slot = 0; slot * this.phenotypes < this.exceedances.length; slot++){
+				int e = this.exceedances[slot * this.phenotypes + f];
+				if( e > 0){
+					counts[e - 1]++;
+					tests++;
+				}
+			}
+
+			//Benjamini-Hochberg. Tied p-values share the highest rank.
+			double[] q = new double[this.permutations + 1];
+			long rank = tests;
+			double min = 1;
+			for( int c = this.permutations; c >= 0; c--){
+				if( counts[c] > 0){
+					min = Math.min(min, this.pValue(c + 1) * tests / rank);
+					rank = rank - counts[c];
+				}
+				q[c] = min;
+			}
+			this.qValues[f] = q;
+		}
+	}
+
+
+	private double pValue(int exceedances){
+		return (double) exceedances / (this.permutations + 1);
+	}
+
+
+
+	/**
+	 * @return
+	 * 		true if the kmer in that slot was in the matrix.
+	 */
+	public boolean isTested(int slot){
+		return this.exceedances[slot * this.phenotypes] > 0;
+	}
+
+	/**
+	 *
+	 * @param slot
+	 * @param phenotype
+	 * @return
+	 * 		the empirical p-value of the kmer, (1 + permutations scoring at least as high) / (1 + permutations).
+	 */
+	public double getPValue(int slot, int phenotype){
+		return this.pValue(this.exceedances[slot * this.phenotypes + phenotype]);
+	}
+
+	/**
+	 *
+	 * @param slot
+	 * @param phenotype
+	 * @return
+	 * 		the Benjamini-Hochberg q-value of the kmer over all kmers that were in the matrix.
+	 */
+	public double getQValue(int slot, int phenotype){
+		return this.qValues[phenotype][this.exceedances[slot * this.phenotypes + phenotype] - 1];
+	}
+
+	/**
+	 *
+	 * @param score
+	 * @param phenotype
+	 * @return
+	 * 		the p-value of a score corrected for all kmers, the fraction of permutations where any kmer scores at least that high.
+	 */
+	public double getAdjustedPValue(double score, int phenotype){
+		double[] m = this.maxima[phenotype];
+		double s = score - EPSILON;
+		int low = 0;
+		int high = m.length;
+		while( low < high){
+			int mid = (low + high) >>> 1;
+			if( m[mid] >= s){
+				high = mid;
+			}else{
+				low = mid + 1;
+			}
+		}
+		return this.pValue(m.length - low + 1);
+	}
+
+}
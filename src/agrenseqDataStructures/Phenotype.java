@@ -23,6 +23,7 @@ public class Phenotype {
 
 	
 	HashMap<String,Double> phenoScores;
+	String name;
 	
 	/**
 	 * Initialize an empty Phenotype data structure
@@ -60,9 +61,76 @@ public class Phenotype {
 		
 		phenoScores = new HashMap<String,Double>();
 		readScores(phenotypeFile);
+		this.name = phenotypeFile.getName().replaceAll("\\.[^.]*$", "");
 		
 	}
 	
+	
+	/**
+	 * 
+	 * Read a table with one phenotype per column. The first column has accessions, every other column is a phenotype of its own, e.g. one per race or isolate.
+	 * If none of the scores in the first line is numeric, the first line is taken as header with the phenotype names. Otherwise phenotypes are named after the file and the column.
+	 * Entries that are not numeric values are left out, so an accession can be missing from single phenotypes.
+	 * 
+	 * @param phenotypeFile
+	 * @return
+	 * 		one Phenotype per column.
+	 * @throws IOException
+	 */
+	public static Phenotype[] readColumns(File phenotypeFile)throws IOException{
+		
+		BufferedReader in = new BufferedReader(new FileReader(phenotypeFile));
+		
+		String inputline = in.readLine();
+		if( inputline == null){
+			in.close();
+			return new Phenotype[0];
+		}
+		String[] split = inputline.split("\t");
+		Phenotype[] phenotypes = new Phenotype[split.length - 1];
+		boolean header = true;
+		for( int i = 1; i< split.length; i++){
+			try{
+				Double.parseDouble(split[i]);
+				header = false;
+			}catch(NumberFormatException e){}
+		}
+		String baseName = phenotypeFile.getName().replaceAll("\\.[^.]*$", "");
+		for( int i = 0; i< phenotypes.length; i++){
+			phenotypes[i] = new Phenotype();
+			phenotypes[i].setName(header ? split[i+1].trim() : baseName + "_" + (i+1));
+		}
+		if( header){
+			inputline = in.readLine();
+		}
+		
+		for (; inputline != null; inputline = in.readLine()) {
+			split = inputline.split("\t");
+			for( int i = 1; i< split.length && i <= phenotypes.length; i++){
+				try{
+					phenotypes[i-1].getPhenotypes().put(split[0], Double.parseDouble(split[i]));
+				}catch(NumberFormatException e){}
+			}
+		}
+		in.close();
+		
+		return phenotypes;
+	}
+	
+	
+	/**
+	 * 
+	 * @return
+	 * 		the name of this phenotype, e.g. the race. This is used to name output files when several phenotypes are scored at once.
+	 */
+	public String getName(){
+		return this.name;
+	}
+	
+	public void setName(String name){
+		this.name = name;
+	}
+	
 	/**
 	 * 
 	 * Get the HashMap that contains the AgRenSeq scores. 
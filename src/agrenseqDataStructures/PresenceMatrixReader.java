@@ -0,0 +1,138 @@
+package agrenseqDataStructures;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import support.CompressedInput;
+
+
+/**
+ *
+ * Reads a presence/absence matrix row by row. Each row is a packed kmer and one presence bit per accession. Bit i of word i/64 stands for accession i.
+ * The row is kept in fields of the reader and overwritten by the next call of next(), so nothing is allocated per row.
+ *
+ * Use open() to get a reader for either the text or the binary format.
+ *
+ * @author steuernb
+ *
+ */
+public abstract class PresenceMatrixReader {
+
+	String[] accessions;
+	int kmerSize;
+	int words;
+
+	long high;
+	long low;
+	long[] presence;
+
+
+
+	/**
+	 *
+	 * Open a presence/absence matrix. The format is detected from the first bytes of the file. Text matrices may be gzipped or bgzipped.
+	 * The file is opened once; a text matrix is read from the same stream the format was detected on.
+	 *
+	 * @param matrixFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static PresenceMatrixReader open(File matrixFile)throws IOException{
+		BufferedInputStream in = new BufferedInputStream(new FileInputStream(matrixFile), 1 << 16);
+		if( BinaryPresenceMatrixReader.isBinary(CompressedInput.peek(in, BinaryPresenceMatrixReader.MAGIC.length))){
+			in.close();
+			return new BinaryPresenceMatrixReader(matrixFile);
+		}
+		return new TextPresenceMatrixReader(matrixFile, CompressedInput.open(in));
+	}
+
+
+
+	/**
+	 *
+	 * Open a presence/absence matrix as several readers for consecutive parts of the file, so it can be read on several threads. Together the readers return every row exactly once.
+	 * A binary matrix is split into row ranges, a text matrix into byte ranges aligned to lines. A gzipped text matrix that is not BGZF cannot be split and comes back as one reader.
+	 *
+	 * @param matrixFile
+	 * @param parts
+	 * @return
+	 * @throws IOException
+	 */
+	public static PresenceMatrixReader[] split(File matrixFile, int parts)throws IOException{
+		if( BinaryPresenceMatrixReader.isBinary(matrixFile)){
+			return BinaryPresenceMatrixReader.split(matrixFile, parts);
+		}
+		return TextPresenceMatrixReader.split(matrixFile, parts);
+	}
+
+
+
+	/**
+	 *
+	 * Move to the next row.
+	 *
+	 * @return
+	 * 		false if there are no more rows.
+	 * @throws IOException
+	 */
+	public abstract boolean next()throws IOException;
+
+	public abstract void close()throws IOException;
+
+	/**
+	 * @return
+	 * 		true if every kmer in this matrix is known to be canonical.
+	 */
+	public abstract boolean isCanonical();
+
+
+
+	/**
+	 * @return
+	 * 		the accession names in the order of the presence bits.
+	 */
+	public String[] getAccessions(){
+		return this.accessions;
+	}
+
+	public int getKmerSize(){
+		return this.kmerSize;
+	}
+
+	/**
+	 * @return
+	 * 		the number of longs in getPresence().
+	 */
+	public int getWords(){
+		return this.words;
+	}
+
+	public long getHigh(){
+		return this.high;
+	}
+
+	public long getLow(){
+		return this.low;
+	}
+
+	/**
+	 * @return
+	 * 		the presence bits of the current row. The array is reused for the next row.
+	 */
+	public long[] getPresence(){
+		return this.presence;
+	}
+
+	/**
+	 *
+	 * @param accessionIndex
+	 * @return
+	 * 		true if the kmer of the current row is present in that accession.
+	 */
+	public boolean isPresent(int accessionIndex){
+		return (this.presence[accessionIndex >>> 6] & (1L << accessionIndex)) != 0;
+	}
+
+}
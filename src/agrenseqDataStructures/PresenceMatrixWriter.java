@@ -0,0 +1,95 @@
+package agrenseqDataStructures;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ *
+ * Writes a presence/absence matrix row by row. This is the counterpart of PresenceMatrixReader.
+ *
+ * @author steuernb
+ *
+ */
+public abstract class PresenceMatrixWriter {
+
+	String[] accessions;
+	int kmerSize;
+
+
+
+	/**
+	 *
+	 * Open a writer for a presence/absence matrix.
+	 *
+	 * @param outputFile
+	 * @param kmerSize
+	 * @param accessions
+	 * 		accession names in the order of the presence bits.
+	 * @param binary
+	 * 		write the binary format instead of text.
+	 * @param canonical
+	 * 		all kmers that will be written are canonical. This is only recorded in the binary format.
+	 * @return
+	 * @throws IOException
+	 */
+	public static PresenceMatrixWriter open(File outputFile, int kmerSize, String[] accessions, boolean binary, boolean canonical)throws IOException{
+		return open(outputFile, kmerSize, accessions, binary, canonical, false, false);
+	}
+
+	/**
+	 *
+	 * Open a writer for a presence/absence matrix.
+	 *
+	 * @param outputFile
+	 * @param kmerSize
+	 * @param accessions
+	 * 		accession names in the order of the presence bits.
+	 * @param binary
+	 * 		write the binary format instead of text.
+	 * @param canonical
+	 * 		all kmers that will be written are canonical. This is only recorded in the binary format.
+	 * @param sorted
+	 * 		rows will be written in string order of their kmers. This is only recorded in the binary format.
+	 * @param bgzf
+	 * 		compress a text matrix to BGZF. The binary format is memory mapped and cannot be compressed.
+	 * @return
+	 * @throws IOException
+	 */
+	public static PresenceMatrixWriter open(File outputFile, int kmerSize, String[] accessions, boolean binary, boolean canonical, boolean sorted, boolean bgzf)throws IOException{
+		if( binary){
+			if( bgzf){
+				throw new IllegalArgumentException("The binary matrix format cannot be compressed.");
+			}
+			return new BinaryPresenceMatrixWriter(outputFile, kmerSize, accessions, canonical, sorted);
+		}
+		return new TextPresenceMatrixWriter(outputFile, kmerSize, accessions, bgzf);
+	}
+
+
+
+	/**
+	 *
+	 * Write one row of the matrix.
+	 *
+	 * @param high
+	 * @param low
+	 * @param presence
+	 * 		presence bits, bit i of word i/64 stands for accession i.
+	 * @throws IOException
+	 */
+	public abstract void writeRow(long high, long low, long[] presence)throws IOException;
+
+	public abstract void close()throws IOException;
+
+
+
+	public String[] getAccessions(){
+		return this.accessions;
+	}
+
+	public int getKmerSize(){
+		return this.kmerSize;
+	}
+
+}
@@ -0,0 +1,552 @@
+package agrenseqDataStructures;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *
+ * Principal components of the accessions in a presence/absence matrix, e.g. to correct associations for population structure.
+ * Each kmer row is centered on its mean presence, as is usual for genotype matrices, so the components describe how accessions share kmers.
+ *
+ * The matrix is never held in memory. This is a randomized subspace iteration: every pass over the matrix multiplies the centered matrix A with its transpose and a small block Q of accession vectors, A'AQ.
+ * For a row x the product xQ comes from the per-byte tables of an AssociationScorer. Adding x'(xQ) back to the accessions is done per byte as well:
+ * the row result is added to a bin for the value of every non-zero byte of x, and the bins are spread onto the accessions after the pass. A row therefore costs a few operations per non-zero byte.
+ * After the last pass the components come from a Nystrom approximation of A'A with Q and A'AQ.
+ *
+ * @author steuernb
+ *
+ */
+public class PresencePCA {
+
+	private static final int JACOBI_SWEEPS = 100;
+
+	File presenceMatrix;
+	int components;
+	int oversampling;
+	int passes;
+	long seed;
+
+	String[] accessions;
+	double[][] vectors;
+	double[] eigenvalues;
+	long rows;
+
+
+
+	/**
+	 *
+	 * @param presenceMatrix
+	 * 		presence/absence matrix in text or binary format.
+	 * @param components
+	 * 		number of principal components.
+	 */
+	public PresencePCA(File presenceMatrix, int components){
+		this.presenceMatrix = presenceMatrix;
+		this.components = components;
+		this.oversampling = 10;
+		this.passes = 3;
+		this.seed = 1;
+	}
+
+
+	/**
+	 *
+	 * @param passes
+	 * 		number of passes over the matrix. More passes give more accurate components. Default 3.
+	 */
+	public void setPasses(int passes){
+		this.passes = Math.max(1, passes);
+	}
+
+	/**
+	 *
+	 * @param oversampling
+	 * 		number of vectors in the block on top of the components. Default 10.
+	 */
+	public void setOversampling(int oversampling){
+		this.oversampling = Math.max(0, oversampling);
+	}
+
+	public void setSeed(long seed){
+		this.seed = seed;
+	}
+
+
+
+	/**
+	 *
+	 * Calculate the principal components.
+	 *
+	 * @param threads
+	 * 		parts of the matrix are read in parallel, see PresenceMatrixReader.split.
+	 * @throws IOException
+	 */
+	public void run(int threads)throws IOException{
+		PresenceMatrixReader in = PresenceMatrixReader.open(this.presenceMatrix);
+		this.accessions = in.getAccessions();
+		in.close();
+
+		int n = this.accessions.length;
+		int block = Math.min(n, this.components + this.oversampling);
+
+		//start with a random block of accession vectors.
+		Random random = new Random(this.seed);
+		double[][] q = new double[block][n];
+		for( int j = 0; j< block; j++){
+			for( int i = 0; i< n; i++){
+				q[j][i] = random.nextGaussian();
+			}
+		}
+		q = orthonormalize(q);
+
+		double[][] z = null;
+		for( int pass = 1; pass <= this.passes; pass++){
+			System.out.println("Pass " + pass + " of " + this.passes + " over " + this.presenceMatrix.getAbsolutePath());
+			z = this.multiply(q, threads);
+			if( pass < this.passes){
+				q = orthonormalize(z);
+				block = q.length;
+			}
+		}
+
+		/*
+		 * Nystrom approximation A'A ~ Z (Q'Z)^-1 Z' with Z = A'AQ. This is more accurate than the eigenvectors of Q'A'AQ without another pass.
+		 * Q'Z is factorized as LL' and the components are the left singular vectors of F = Z L'^-1. A small shift keeps the factorization stable.
+		 */
+		double norm = 0;
+		for( int j = 0; j< block; j++){
+			norm = Math.max(norm, Math.sqrt(dot(z[j], z[j])));
+		}
+		double shift = 1e-12 * norm * n;
+		for( int j = 0; j< block; j++){
+			for( int i = 0; i< n; i++){
+				z[j][i] = z[j][i] + shift * q[j][i];
+			}
+		}
+		double[][] l = new double[block][block];
+		for( int a = 0; a< block; a++){
+			for( int b = 0; b<= a; b++){
+				double d = (dot(q[a], z[b]) + dot(q[b], z[a])) / 2;
+				for( int k = 0; k< b; k++){
+					d = d - l[a][k] * l[b][k];
+				}
+				if( a == b){
+					l[a][a] = Math.sqrt(Math.max(d, shift));
+				}else{
+					l[a][b] = d / l[b][b];
+				}
+			}
+		}
+		//F' = L^-1 Z', forward substitution.
+		double[][] f = new double[block][];
+		for( int a = 0; a< block; a++){
+			f[a] = z[a].clone();
+			for( int k = 0; k< a; k++){
+				for( int i = 0; i< n; i++){
+					f[a][i] = f[a][i] - l[a][k] * f[k][i];
+				}
+			}
+			for( int i = 0; i< n; i++){
+				f[a][i] = f[a][i] / l[a][a];
+			}
+		}
+		double[][] h = new double[block][block];
+		for( int a = 0; a< block; a++){
+			for( int b = 0; b< block; b++){
+				h[a][b] = dot(f[a], f[b]);
+			}
+		}
+		double[][] eigenvectors = new double[block][block];
+		double[] values = symmetricEigen(h, eigenvectors);
+
+		Integer[] order = new Integer[block];
+		for( int i = 0; i< block; i++){
+			order[i] = i;
+		}
+		final double[] v = values;
+		Arrays.sort(order, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				return Double.compare(v[b], v[a]);
+			}
+		});
+
+		int c = Math.min(this.components, block);
+		this.vectors = new double[c][n];
+		this.eigenvalues = new double[c];
+		for( int k = 0; k< c; k++){
+			int e = order[k];
+			this.eigenvalues[k] = Math.max(0, values[e] - shift);
+			double sigma = Math.sqrt(Math.max(values[e], 0));
+			for( int j = 0; j< block && sigma > 0; j++){
+				for( int i = 0; i< n; i++){
+					this.vectors[k][i] += f[j][i] * eigenvectors[j][e] / sigma;
+				}
+			}
+
+			//the sign of an eigenvector is arbitrary. Make the largest entry positive so results are reproducible.
+			int largest = 0;
+			for( int i = 0; i< n; i++){
+				if( Math.abs(this.vectors[k][i]) > Math.abs(this.vectors[k][largest])){
+					largest = i;
+				}
+			}
+			if( this.vectors[k][largest] < 0){
+				for( int i = 0; i< n; i++){
+					this.vectors[k][i] = -this.vectors[k][i];
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 *
+	 * One pass over the matrix.
+	 *
+	 * @param q
+	 * 		block of accession vectors, one vector per row.
+	 * @return
+	 * 		A'AQ with the centered matrix A, one vector per row.
+	 * @throws IOException
+	 */
+	private double[][] multiply(double[][] q, int threads)throws IOException{
+		final int n = this.accessions.length;
+		final int block = q.length;
+		final AssociationScorer scorer = new AssociationScorer(q);
+
+		//column sums of Q, to center the rows.
+		final double[] sums = new double[block];
+		for( int j = 0; j< block; j++){
+			for( int i = 0; i< n; i++){
+				sums[j] += q[j][i];
+			}
+		}
+
+		threads = Math.max(1, threads);
+		final PresenceMatrixReader[] readers = PresenceMatrixReader.split(this.presenceMatrix, threads == 1 ? 1 : threads * 4);
+		final AtomicInteger next = new AtomicInteger(0);
+
+		//one product per thread, the threads take parts of the matrix until all are read.
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Product>> futures = new ArrayList<Future<Product>>();
+		for( int i = 0; i< threads; i++){
+			futures.add(executor.submit(new Callable<Product>(){
+				public Product call()throws IOException{
+					Product product = new Product(n, block);
+					for( int part = next.getAndIncrement(); part < readers.length; part = next.getAndIncrement()){
+						product.add(readers[part], scorer, sums);
+					}
+					return product;
+				}
+			}));
+		}
+		executor.shutdown();
+
+		Product total = new Product(n, block);
+		try{
+			for( int i = 0; i< futures.size(); i++){
+				total.add(futures.get(i).get());
+			}
+		}catch(InterruptedException e){
+			throw new IOException(e.getMessage());
+		}catch(ExecutionException e){
+			if( e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		this.rows = total.rows;
+		return total.getResult();
+	}
+
+
+
+	/**
+	 *
+	 * The part of A'AQ from the rows that one worker has read.
+	 *
+	 */
+	private static class Product {
+		int accessions;
+		int block;
+		int bytes;
+
+		/**
+		 * per byte of the presence bits, per byte value and per vector of the block the sum of (xQ) of the rows with that value.
+		 */
+		double[] bins;
+
+		/**
+		 * sum of the mean presence times (xQ) over all rows. This is subtracted from every accession to center the rows.
+		 */
+		double[] center;
+		long rows;
+
+		Product(int accessions, int block){
+			this.accessions = accessions;
+			this.block = block;
+			this.bytes = (accessions + 7) >>> 3;
+			this.bins = new double[this.bytes * 256 * block];
+			this.center = new double[block];
+		}
+
+		void add(PresenceMatrixReader in, AssociationScorer scorer, double[] sums)throws IOException{
+			double[] r = new double[this.block];
+			while( in.next()){
+				long[] presence = in.getPresence();
+				int words = Math.min(presence.length, (this.bytes + 7) >>> 3);
+				int count = 0;
+				for( int w = 0; w < words; w++){
+					count = count + Long.bitCount(presence[w]);
+				}
+				if( count == 0 || count >= this.accessions){
+					continue;
+				}
+				this.rows++;
+				double mean = (double) count / this.accessions;
+
+				//(x - mean) Q
+				scorer.score(presence, r);
+				for( int j = 0; j< this.block; j++){
+					r[j] = r[j] - mean * sums[j];
+					this.center[j] = this.center[j] + mean * r[j];
+				}
+
+				for( int w = 0; w < words; w++){
+					long word = presence[w];
+					while( word != 0){
+						int shift = Long.numberOfTrailingZeros(word) & ~7;
+						int b = w * 8 + (shift >>> 3);
+						if( b >= this.bytes){
+							break;
+						}
+						int offset = (b * 256 + ((int) (word >>> shift) & 0xff)) * this.block;
+						for( int j = 0; j< this.block; j++){
+							this.bins[offset + j] += r[j];
+						}
+						word = word & ~(0xffL << shift);
+					}
+				}
+			}
+			in.close();
+		}
+
+		void add(Product other){
+			for( int i = 0; i< this.bins.length; i++){
+				this.bins[i] += other.bins[i];
+			}
+			for( int j = 0; j< this.block; j++){
+				this.center[j] += other.center[j];
+			}
+			this.rows = this.rows + other.rows;
+		}
+
+		/**
+		 * Spread the bins onto the accessions.
+		 */
+		double[][] getResult(){
+			double[][] z = new double[this.block][this.accessions];
+			for( int i = 0; i< this.accessions; i++){
+				int b = i >>> 3;
+				int bit = 1 << (i & 7);
+				for( int v = 1; v < 256; v++){
+					if( (v & bit) == 0){
+						continue;
+					}
+					int offset = (b * 256 + v) * this.block;
+					for( int j = 0; j< this.block; j++){
+						z[j][i] += this.bins[offset + j];
+					}
+				}
+				for( int j = 0; j< this.block; j++){
+					z[j][i] -= this.center[j];
+				}
+			}
+			return z;
+		}
+	}
+
+
+
+	private static double dot(double[] a, double[] b){
+		double d = 0;
+		for( int i = 0; i< a.length; i++){
+			d = d + a[i] * b[i];
+		}
+		return d;
+	}
+
+	/**
+	 *
+	 * Modified Gram-Schmidt. Vectors that are linear combinations of earlier ones are dropped.
+	 *
+	 * @param vectors
+	 * @return
+	 * 		orthonormal vectors that span the same space.
+	 */
+	private static double[][] orthonormalize(double[][] vectors){
+		ArrayList<double[]> basis = new ArrayList<double[]>();
+		for( int j = 0; j< vectors.length; j++){
+			double[] v = vectors[j].clone();
+			double length = Math.sqrt(dot(v, v));
+			for( int k = 0; k< basis.size(); k++){
+				double d = dot(v, basis.get(k));
+				double[] u = basis.get(k);
+				for( int i = 0; i< v.length; i++){
+					v[i] = v[i] - d * u[i];
+				}
+			}
+			double norm = Math.sqrt(dot(v, v));
+			if( norm > 1e-10 * length && norm > 0){
+				for( int i = 0; i< v.length; i++){
+					v[i] = v[i] / norm;
+				}
+				basis.add(v);
+			}
+		}
+		return basis.toArray(new double[basis.size()][]);
+	}
+
+
+
+	/**
+	 *
+	 * Eigenvalues and eigenvectors of a small symmetric matrix, cyclic Jacobi rotations.
+	 *
+	 * @param a
+	 * 		symmetric matrix. It is overwritten.
+	 * @param vectors
+	 * 		receives the eigenvectors as columns.
+	 * @return
+	 * 		the eigenvalues.
+	 */
+	private static double[] symmetricEigen(double[][] a, double[][] vectors){
+		int n = a.length;
+		for( int i = 0; i< n; i++){
+			for( int j = 0; j< n; j++){
+				vectors[i][j] = i == j ? 1 : 0;
+			}
+		}
+		for( int sweep = 0; sweep < JACOBI_SWEEPS; sweep++){
+			double off = 0;
+			double diagonal = 0;
+			for( int i = 0; i< n; i++){
+				diagonal = diagonal + a[i][i] * a[i][i];
+				for( int j = i + 1; j< n; j++){
+					off = off + a[i][j] * a[i][j];
+				}
+			}
+			if( off <= 1e-30 * diagonal || off == 0){
+				break;
+			}
+			for( int p = 0; p < n; p++){
+				for( int r = p + 1; r < n; r++){
+					if( a[p][r] == 0){
+						continue;
+					}
+					double theta = (a[r][r] - a[p][p]) / (2 * a[p][r]);
+					double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					if( theta == 0){
+						t = 1;
+					}
+					double c = 1 / Math.sqrt(t * t + 1);
+					double s = t * c;
+					for( int k = 0; k< n; k++){
+						double akp = a[k][p];
+						double akr = a[k][r];
+						a[k][p] = c * akp - s * akr;
+						a[k][r] = s * akp + c * akr;
+					}
+					for( int k = 0; k< n; k++){
+						double apk = a[p][k];
+						double ark = a[r][k];
+						a[p][k] = c * apk - s * ark;
+						a[r][k] = s * apk + c * ark;
+					}
+					for( int k = 0; k< n; k++){
+						double vkp = vectors[k][p];
+						double vkr = vectors[k][r];
+						vectors[k][p] = c * vkp - s * vkr;
+						vectors[k][r] = s * vkp + c * vkr;
+					}
+				}
+			}
+		}
+		double[] values = new double[n];
+		for( int i = 0; i< n; i++){
+			values[i] = a[i][i];
+		}
+		return values;
+	}
+
+
+
+	public String[] getAccessions(){
+		return this.accessions;
+	}
+
+	/**
+	 * @return
+	 * 		one unit vector per component with an entry per accession.
+	 */
+	public double[][] getComponents(){
+		return this.vectors;
+	}
+
+	/**
+	 * @return
+	 * 		eigenvalues of A'A for the components, in decreasing order.
+	 */
+	public double[] getEigenvalues(){
+		return this.eigenvalues;
+	}
+
+	/**
+	 * @return
+	 * 		number of kmers that are neither absent from nor present in all accessions, and so carry information.
+	 */
+	public long getRowCount(){
+		return this.rows;
+	}
+
+
+
+	/**
+	 *
+	 * Write the components as tab separated table that can be used as covariates. The first line names the components, then there is one line per accession.
+	 *
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	public void write(File outputFile)throws IOException{
+		BufferedWriter out = new BufferedWriter(new FileWriter(outputFile));
+		out.write("accession");
+		for( int k = 0; k< this.vectors.length; k++){
+			out.write("\tPC" + (k + 1));
+		}
+		out.newLine();
+		for( int i = 0; i< this.accessions.length; i++){
+			out.write(this.accessions[i]);
+			for( int k = 0; k< this.vectors.length; k++){
+				out.write("\t" + this.vectors[k][i]);
+			}
+			out.newLine();
+		}
+		out.close();
+	}
+
+}
@@ -0,0 +1,28 @@
+package agrenseqDataStructures;
+
+
+/**
+ *
+ * Calculates the association scores of a kmer from its presence bits, one score per phenotype. Implementations are used by several threads at once.
+ *
+ * @author steuernb
+ *
+ */
+public interface PresenceScorer {
+
+	/**
+	 *
+	 * @param presence
+	 * 		presence bits of a kmer. Bit i of word i/64 stands for accession i.
+	 * @param scores
+	 * 		receives one association score per phenotype.
+	 */
+	public void score(long[] presence, double[] scores);
+
+	/**
+	 * @return
+	 * 		number of scores per kmer.
+	 */
+	public int getPhenotypeCount();
+
+}
@@ -0,0 +1,257 @@
+package agrenseqDataStructures;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import support.Statistics;
+
+
+/**
+ *
+ * Association by linear regression, phenotype ~ intercept + covariates + presence of the kmer. Only accessions with a phenotype and all covariates are in the model.
+ * The score of a kmer is -log10 of the p-value of the presence coefficient, negative if presence goes with susceptibility.
+ *
+ * The model without the kmer is the same for all kmers. Phenotype and covariates are orthogonalized once, then a kmer only needs the sums of a few vectors over the accessions it is present in:
+ * the residual phenotype, the model accessions and the orthonormal covariates. These sums come from the per-byte tables of an AssociationScorer.
+ * Kmers with the same presence pattern in the model accessions have the same score, so scores are cached per pattern and thread.
+ *
+ * @author steuernb
+ *
+ */
+public class RegressionScorer implements PresenceScorer {
+
+	private static final int MAX_CACHE_SIZE = 1 << 16;
+
+	/**
+	 * vectors that are not longer than this after orthogonalization are linear combinations of the others and dropped.
+	 */
+	private static final double MIN_NORM = 1e-9;
+
+	/**
+	 * -log10 of the smallest double, the score of a perfect fit.
+	 */
+	private static final double MAX_SCORE = 323.3;
+
+	int phenotypes;
+	int accessions;
+
+	AssociationScorer sums;
+
+	/**
+	 * per phenotype the position of its sums, the number of orthonormal covariates, the degrees of freedom and the residual sum of squares without the kmer.
+	 */
+	int[] offset;
+	int[] covariates;
+	int[] degreesOfFreedom;
+	double[] residualSquares;
+
+	/**
+	 * presence bits of accessions that are in any model.
+	 */
+	long[] mask;
+
+	ThreadLocal<Worker> workers;
+
+
+
+	/**
+	 *
+	 * @param phenotypes
+	 * @param covariates
+	 * 		covariates of the accessions, e.g. principal components. Can be empty.
+	 * @param accessions
+	 * 		accession names in matrix column order.
+	 */
+	public RegressionScorer(Phenotype[] phenotypes, Phenotype[] covariates, String[] accessions){
+		this.phenotypes = phenotypes.length;
+		this.accessions = accessions.length;
+		this.offset = new int[this.phenotypes];
+		this.covariates = new int[this.phenotypes];
+		this.degreesOfFreedom = new int[this.phenotypes];
+		this.residualSquares = new double[this.phenotypes];
+		this.mask = new long[Math.max(1, (accessions.length + 63) >>> 6)];
+
+		ArrayList<double[]> weights = new ArrayList<double[]>();
+		for( int f = 0; f < phenotypes.length; f++){
+
+			double[] y = new double[accessions.length];
+			double[] inModel = new double[accessions.length];
+			int n = 0;
+			for( int i = 0; i< accessions.length; i++){
+				Double score = phenotypes[f].getPhenotypes().get(accessions[i]);
+				boolean complete = score != null;
+				for( int c = 0; c < covariates.length && complete; c++){
+					complete = covariates[c].getPhenotypes().containsKey(accessions[i]);
+				}
+				if( complete){
+					y[i] = score.doubleValue();
+					inModel[i] = 1;
+					this.mask[i >>> 6] |= 1L << i;
+					n++;
+				}
+			}
+
+			//orthonormal basis of intercept and covariates, modified Gram-Schmidt.
+			ArrayList<double[]> basis = new ArrayList<double[]>();
+			for( int c = -1; c < covariates.length; c++){
+				double[] v = new double[accessions.length];
+				for( int i = 0; i< accessions.length; i++){
+					if( inModel[i] != 0){
+						v[i] = c < 0 ? 1 : covariates[c].getPhenotypes().get(accessions[i]).doubleValue();
+					}
+				}
+				for( int j = 0; j< basis.size(); j++){
+					subtract(v, basis.get(j));
+				}
+				double norm = Math.sqrt(dot(v, v));
+				if( norm > MIN_NORM){
+					for( int i = 0; i< v.length; i++){
+						v[i] = v[i] / norm;
+					}
+					basis.add(v);
+				}
+			}
+
+			double[] residual = y.clone();
+			for( int j = 0; j< basis.size(); j++){
+				subtract(residual, basis.get(j));
+			}
+
+			this.offset[f] = weights.size();
+			this.covariates[f] = basis.size();
+			this.degreesOfFreedom[f] = n - basis.size() - 1;
+			this.residualSquares[f] = dot(residual, residual);
+			weights.add(residual);
+			weights.add(inModel);
+			weights.addAll(basis);
+		}
+
+		this.sums = new AssociationScorer(weights.toArray(new double[weights.size()][]));
+		this.workers = new ThreadLocal<Worker>(){
+			protected Worker initialValue(){
+				return new Worker();
+			}
+		};
+	}
+
+
+	private static double dot(double[] a, double[] b){
+		double d = 0;
+		for( int i = 0; i< a.length; i++){
+			d = d + a[i] * b[i];
+		}
+		return d;
+	}
+
+	/**
+	 * Remove the part of v along the unit vector u.
+	 */
+	private static void subtract(double[] v, double[] u){
+		double d = dot(v, u);
+		for( int i = 0; i< v.length; i++){
+			v[i] = v[i] - d * u[i];
+		}
+	}
+
+
+
+	public void score(long[] presence, double[] scores){
+		Worker worker = this.workers.get();
+		long[] words = worker.pattern.words;
+		for( int i = 0; i< words.length; i++){
+			words[i] = i < presence.length ? presence[i] & this.mask[i] : 0;
+		}
+
+		double[] cached = worker.cache.get(worker.pattern);
+		if( cached == null){
+			cached = new double[this.phenotypes];
+			this.sums.score(words, worker.sums);
+			for( int f = 0; f < this.phenotypes; f++){
+				cached[f] = this.score(f, worker.sums);
+			}
+			if( worker.cache.size() >= MAX_CACHE_SIZE){
+				worker.cache.clear();
+			}
+			worker.cache.put(new Pattern(words.clone()), cached);
+		}
+		System.arraycopy(cached, 0, scores, 0, this.phenotypes);
+	}
+
+
+	/**
+	 * Fit the presence of a kmer against the residual phenotype of one phenotype.
+	 */
+	private double score(int f, double[] sums){
+		int df = this.degreesOfFreedom[f];
+		if( df < 1){
+			return 0;
+		}
+		int o = this.offset[f];
+		double xy = sums[o];
+
+		//squared length of the presence vector after removing intercept and covariates.
+		double xx = sums[o + 1];
+		for( int j = 0; j< this.covariates[f]; j++){
+			xx = xx - sums[o + 2 + j] * sums[o + 2 + j];
+		}
+		if( xx < MIN_NORM){
+			return 0;
+		}
+
+		double beta = xy / xx;
+		double rss = this.residualSquares[f] - xy * beta;
+		double p;
+		if( rss <= 0){
+			p = 0;
+		}else{
+			double t = beta / Math.sqrt(rss / df / xx);
+			p = Statistics.studentTPValue(t, df);
+		}
+		double score = p <= 0 ? MAX_SCORE : -Math.log10(p);
+		return beta < 0 ? -score : score;
+	}
+
+
+
+	public int getPhenotypeCount(){
+		return this.phenotypes;
+	}
+
+
+
+	/**
+	 * Buffers and the pattern cache of one thread.
+	 */
+	private class Worker {
+		Pattern pattern;
+		double[] sums;
+		HashMap<Pattern, double[]> cache;
+
+		Worker(){
+			this.pattern = new Pattern(new long[mask.length]);
+			this.sums = new double[RegressionScorer.this.sums.getPhenotypeCount()];
+			this.cache = new HashMap<Pattern, double[]>();
+		}
+	}
+
+	/**
+	 * Presence bits of the model accessions as a hash key.
+	 */
+	private static class Pattern {
+		long[] words;
+
+		Pattern(long[] words){
+			this.words = words;
+		}
+
+		public int hashCode(){
+			return Arrays.hashCode(this.words);
+		}
+
+		public boolean equals(Object o){
+			return o instanceof Pattern && Arrays.equals(this.words, ((Pattern) o).words);
+		}
+	}
+
+}
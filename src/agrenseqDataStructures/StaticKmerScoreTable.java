@@ -0,0 +1,396 @@
+package agrenseqDataStructures;
+
+import java.util.Random;
+
+/**
+ *
+ * An immutable table from packed kmers to scores, for a set of kmers that is known in advance, e.g. the kmers of an assembly.
+ * Kmers are mapped to 0..size-1 by a minimal perfect hash, so the scores are a dense array without empty slots and the kmers themselves are not stored.
+ *
+ * The perfect hash follows PTHash: kmers are hashed into buckets of about four kmers. For every bucket a pilot value is searched, so that the positions of its kmers, mixed with the pilot, hit free places.
+ * Large buckets are placed first while the table is still empty. The table has a few more places than kmers, so the last buckets find places quickly. Kmers on the places after size()-1 are moved to the free places before.
+ * A lookup is one read of the pilot and one of the index, so misses are as cheap as hits. The pilots take about one byte per kmer.
+ *
+ * A kmer that is not in the set also maps to some index, so every index has a 32 bit fingerprint of its kmer. A kmer that is not in the set is taken for a member with a probability of 2^-32.
+ * With one double score a kmer takes about 13 bytes.
+ *
+ * @author steuernb
+ *
+ */
+public class StaticKmerScoreTable {
+
+	private static final double BUCKET_SIZE = 4.0;
+	private static final double LOAD_FACTOR = 0.98;
+
+	/**
+	 * a bucket that gets no pilot within this many tries has kmers with equal hashes. Its kmers are kept in a small hash table.
+	 */
+	private static final int MAX_TRIES = 1 << 20;
+	private static final int NO_PILOT = -1;
+
+	int kmerSize;
+	int columns;
+	int size;
+
+	int[] pilots;
+	int tableSize;
+
+	/**
+	 * where the places from size() to tableSize-1 are moved to.
+	 */
+	int[] remap;
+
+	/**
+	 * kmers of buckets without pilot. The score column holds the index. This is null if all buckets have a pilot.
+	 */
+	KmerScoreTable fallback;
+
+	int[] fingerprints;
+	double[] scores;
+
+
+
+	/**
+	 *
+	 * Check the table against a KmerScoreTable with the same random kmers: every kmer has its own index between 0 and size()-1 and the same scores,
+	 * and kmers that are not in the set are found no more often than the 32 bit fingerprints allow. The first mismatch is printed and the check exits with 1.
+	 *
+	 * @param args
+	 * 		optional number of absent kmers to look up per table, default 1000000.
+	 */
+	public static void main(String[] args) {
+		int absent = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		Random random = new Random(1);
+		int[] sizes = {0, 1, 2, 5, 100, 10000, 500000};
+		int[] kmerSizes = {31, 51};
+		for( int s = 0; s < sizes.length; s++){
+			for( int k = 0; k < kmerSizes.length; k++){
+				int kmerSize = kmerSizes[k];
+				long highMask = kmerSize > 32 ? (1L << (2 * kmerSize - 64)) - 1 : 0;
+				long lowMask = kmerSize >= 32 ? -1L : (1L << (2 * kmerSize)) - 1;
+				KmerScoreTable kmers = new KmerScoreTable(kmerSize, 2);
+				while( kmers.size() < sizes[s]){
+					long high = random.nextLong() & highMask;
+					long low = random.nextLong() & lowMask;
+					kmers.setScores(kmers.insert(high, low), new double[]{random.nextDouble(), random.nextDouble()});
+				}
+
+				StaticKmerScoreTable table = new StaticKmerScoreTable(kmers, 2);
+				boolean[] used = new boolean[table.size()];
+				for( int slot = 0; slot < kmers.capacity(); slot++){
+					if( !kmers.isOccupied(slot)){
+						continue;
+					}
+					long high = kmers.getHigh(slot);
+					long low = kmers.getLow(slot);
+					int index = table.indexOf(high, low);
+					if( index < 0 || index >= table.size() || used[index]){
+						System.out.println("Kmer " + Kmer.convert(high, low, kmerSize) + " of " + table.size() + " has index " + index + ", which is missing, out of range or taken.");
+						System.exit(1);
+					}
+					used[index] = true;
+					table.setScores(index, new double[]{kmers.getScore(slot, 0), kmers.getScore(slot, 1)});
+				}
+				for( int slot = 0; slot < kmers.capacity(); slot++){
+					if( kmers.isOccupied(slot)){
+						long high = kmers.getHigh(slot);
+						long low = kmers.getLow(slot);
+						if( table.get(high, low, 0) != kmers.get(high, low, 0) || table.get(high, low, 1) != kmers.get(high, low, 1)){
+							System.out.println("Kmer " + Kmer.convert(high, low, kmerSize) + " has other scores than in the KmerScoreTable.");
+							System.exit(1);
+						}
+					}
+				}
+
+				int found = 0;
+				for( int i = 0; i< absent; i++){
+					long high = random.nextLong() & highMask;
+					long low = random.nextLong() & lowMask;
+					if( !kmers.containsKey(high, low) && table.containsKey(high, low)){
+						found++;
+					}
+				}
+				//the expected number is absent * 2^-32.
+				if( found > 2){
+					System.out.println(found + " of " + absent + " absent kmers were found in a table of " + table.size() + " kmers of size " + kmerSize + ".");
+					System.exit(1);
+				}
+			}
+		}
+		System.out.println("Static tables agree with KmerScoreTable for up to " + sizes[sizes.length - 1] + " kmers.");
+	}
+
+
+
+	/**
+	 *
+	 * Build the table for the kmers of another table.
+	 *
+	 * @param kmers
+	 * 		the kmer set. Only the kmers are taken, not the scores.
+	 * @param columns
+	 * 		number of scores per kmer.
+	 */
+	public StaticKmerScoreTable(KmerScoreTable kmers, int columns){
+		this.kmerSize = kmers.getKmerSize();
+		this.columns = Math.max(1, columns);
+		this.size = kmers.size();
+		this.tableSize = Math.max(1, (int) Math.ceil(this.size / LOAD_FACTOR));
+		int buckets = Math.max(1, (int) Math.ceil(this.size / BUCKET_SIZE));
+		this.pilots = new int[buckets];
+
+		//sort the kmers by bucket.
+		int[] bucketStart = new int[buckets + 1];
+		for( int slot = 0; slot < kmers.capacity(); slot++){
+			if( kmers.isOccupied(slot)){
+				bucketStart[bucket(Kmer.hash(kmers.getHigh(slot), kmers.getLow(slot)), buckets) + 1]++;
+			}
+		}
+		int maxBucket = 0;
+		for( int b = 0; b < buckets; b++){
+			maxBucket = Math.max(maxBucket, bucketStart[b + 1]);
+			bucketStart[b + 1] += bucketStart[b];
+		}
+		long[] hash = new long[this.size];
+		int[] sourceSlot = new int[this.size];
+		int[] fill = new int[buckets];
+		for( int slot = 0; slot < kmers.capacity(); slot++){
+			if( kmers.isOccupied(slot)){
+				long h = Kmer.hash(kmers.getHigh(slot), kmers.getLow(slot));
+				int b = bucket(h, buckets);
+				int i = bucketStart[b] + fill[b]++;
+				hash[i] = h;
+				sourceSlot[i] = slot;
+			}
+		}
+
+		//largest buckets first.
+		int[] sizeStart = new int[maxBucket + 2];
+		for( int b = 0; b < buckets; b++){
+			sizeStart[maxBucket - (bucketStart[b + 1] - bucketStart[b]) + 1]++;
+		}
+		for( int i = 0; i <= maxBucket; i++){
+			sizeStart[i + 1] += sizeStart[i];
+		}
+		int[] order = new int[buckets];
+		for( int b = 0; b < buckets; b++){
+			order[sizeStart[maxBucket - (bucketStart[b + 1] - bucketStart[b])]++] = b;
+		}
+
+		long[] taken = new long[(this.tableSize + 63) >>> 6];
+		int[] positions = new int[maxBucket];
+		this.fingerprints = new int[this.size];
+		int[] placeOf = new int[this.size];
+		for( int o = 0; o < buckets; o++){
+			int b = order[o];
+			int start = bucketStart[b];
+			int end = bucketStart[b + 1];
+			if( start == end){
+				this.pilots[b] = 0;
+				continue;
+			}
+			int pilot = 0;
+			for( ; pilot < MAX_TRIES; pilot++){
+				int placed = 0;
+				for( int i = start; i < end; i++){
+					int p = position(hash[i], pilot, this.tableSize);
+					if( (taken[p >>> 6] & (1L << p)) != 0){
+						break;
+					}
+					taken[p >>> 6] |= 1L << p;
+					positions[placed++] = p;
+				}
+				if( placed == end - start){
+					break;
+				}
+				for( int i = 0; i< placed; i++){
+					taken[positions[i] >>> 6] &= ~(1L << positions[i]);
+				}
+			}
+			if( pilot == MAX_TRIES){
+				this.pilots[b] = NO_PILOT;
+				continue;
+			}
+			this.pilots[b] = pilot;
+			for( int i = start; i < end; i++){
+				placeOf[i] = positions[i - start];
+			}
+		}
+
+		//the places after size()-1 are moved to free places before, in order. Fallback kmers take the remaining free places.
+		this.remap = new int[this.tableSize - this.size];
+		int free = 0;
+		for( int p = this.size; p < this.tableSize; p++){
+			if( (taken[p >>> 6] & (1L << p)) != 0){
+				while( (taken[free >>> 6] & (1L << free)) != 0){
+					free++;
+				}
+				this.remap[p - this.size] = free;
+				free++;
+			}
+		}
+		for( int b = 0; b < buckets; b++){
+			if( this.pilots[b] != NO_PILOT){
+				continue;
+			}
+			for( int i = bucketStart[b]; i < bucketStart[b + 1]; i++){
+				while( (taken[free >>> 6] & (1L << free)) != 0){
+					free++;
+				}
+				placeOf[i] = free;
+				free++;
+				if( this.fallback == null){
+					this.fallback = new KmerScoreTable(this.kmerSize);
+				}
+				this.fallback.put(kmers.getHigh(sourceSlot[i]), kmers.getLow(sourceSlot[i]), placeOf[i]);
+			}
+		}
+
+		for( int i = 0; i< this.size; i++){
+			int index = placeOf[i] < this.size ? placeOf[i] : this.remap[placeOf[i] - this.size];
+			this.fingerprints[index] = fingerprint(hash[i]);
+		}
+		this.scores = new double[this.size * this.columns];
+	}
+
+
+
+	/**
+	 * The bucket comes from the upper half of the kmer hash, the fingerprint from the lower half.
+	 */
+	private static int bucket(long hash, int buckets){
+		return (int) (((hash >>> 32) * buckets) >>> 32);
+	}
+
+	private static int fingerprint(long hash){
+		return (int) hash;
+	}
+
+	private static int position(long hash, int pilot, int tableSize){
+		long h = hash ^ (pilot * 0x9E3779B97F4A7C15L);
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h = h ^ (h >>> 31);
+		return (int) (((h >>> 32) * tableSize) >>> 32);
+	}
+
+
+
+	/**
+	 *
+	 * Find the index of a kmer.
+	 *
+	 * @param high
+	 * @param low
+	 * @return
+	 * 		the index between 0 and size()-1, or -1 if the kmer is not in the table.
+	 */
+	public int indexOf(long high, long low){
+		if( this.size == 0){
+			return -1;
+		}
+		long hash = Kmer.hash(high, low);
+		int pilot = this.pilots[bucket(hash, this.pilots.length)];
+		int index;
+		if( pilot == NO_PILOT){
+			int slot = this.fallback.indexOf(high, low);
+			if( slot < 0){
+				return -1;
+			}
+			index = (int) this.fallback.getScore(slot);
+		}else{
+			index = position(hash, pilot, this.tableSize);
+			if( index >= this.size){
+				index = this.remap[index - this.size];
+			}
+		}
+		if( this.fingerprints[index] != fingerprint(hash)){
+			return -1;
+		}
+		return index;
+	}
+
+	public boolean containsKey(long high, long low){
+		return this.indexOf(high, low) >= 0;
+	}
+
+
+
+	/**
+	 *
+	 * @param high
+	 * @param low
+	 * @return
+	 * 		the score of the kmer or 0 if the kmer is not in the table.
+	 */
+	public double get(long high, long low){
+		return this.get(high, low, 0);
+	}
+
+	public double get(long high, long low, int column){
+		int index = this.indexOf(high, low);
+		if( index < 0){
+			return 0;
+		}
+		return this.scores[index * this.columns + column];
+	}
+
+	public double getScore(int index){
+		return this.scores[index * this.columns];
+	}
+
+	public double getScore(int index, int column){
+		return this.scores[index * this.columns + column];
+	}
+
+	public void setScore(int index, double score){
+		this.scores[index * this.columns] = score;
+	}
+
+	/**
+	 *
+	 * Set all columns of an index at once.
+	 *
+	 * @param index
+	 * @param scores
+	 * 		at least getColumns() scores.
+	 */
+	public void setScores(int index, double[] scores){
+		System.arraycopy(scores, 0, this.scores, index * this.columns, this.columns);
+	}
+
+
+
+	public int getKmerSize(){
+		return this.kmerSize;
+	}
+
+	public int getColumns(){
+		return this.columns;
+	}
+
+	/**
+	 * @return
+	 * 		number of kmers in the table.
+	 */
+	public int size(){
+		return this.size;
+	}
+
+	/**
+	 * @return
+	 * 		number of indices. This is the same as size(), there are no empty slots.
+	 */
+	public int capacity(){
+		return this.size;
+	}
+
+	/**
+	 * @return
+	 * 		approximate memory in bytes.
+	 */
+	public long getMemory(){
+		return (long) this.pilots.length * 4 + (long) this.remap.length * 4 + (long) this.fingerprints.length * 4 + (long) this.scores.length * 8 + (this.fallback == null ? 0 : (long) this.fallback.capacity() * 32);
+	}
+
+}
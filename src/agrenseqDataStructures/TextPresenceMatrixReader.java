@@ -0,0 +1,284 @@
+package agrenseqDataStructures;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+
+import support.ByteLineReader;
+import support.CompressedInput;
+import support.ParallelBgzfInputStream;
+
+
+/**
+ *
+ * Reads the text format of the presence/absence matrix. Gzip is supported.
+ * First line is assumed to start with a # followed by a comma separated list of accession names. Every other line starting with a "#" is not regarded.
+ * An entry in the matrix is a kmer, then a tab, then a string of 0 and 1 for absence and presence of that kmer in accessions. Order is according to first line of the matrix. Trailing 0s are ommitted.
+ *
+ * Lines are parsed on the bytes of the read buffer. A reader can also cover only a byte range of the file, see split().
+ *
+ * @author steuernb
+ *
+ */
+public class TextPresenceMatrixReader extends PresenceMatrixReader {
+
+	ByteLineReader in;
+	boolean pendingLine;
+
+	/**
+	 * rows are read as long as they start before this offset of the stream.
+	 */
+	long end;
+
+
+	public TextPresenceMatrixReader(File matrixFile)throws IOException{
+		this(matrixFile, CompressedInput.open(matrixFile));
+	}
+
+	/**
+	 *
+	 * Read the matrix from an already opened stream, e.g. after the format has been detected on the same stream.
+	 *
+	 * @param matrixFile
+	 * 		the file the stream was opened on. Only used for messages.
+	 * @param in
+	 * 		the decompressed stream.
+	 * @throws IOException
+	 */
+	public TextPresenceMatrixReader(File matrixFile, InputStream in)throws IOException{
+		this.in = new ByteLineReader(in);
+		this.end = Long.MAX_VALUE;
+
+		if( !this.in.nextLine() || this.in.getLineLength() == 0 || this.in.getBuffer()[this.in.getLineStart()] != '#'){
+			this.in.close();
+			throw new IOException("Presence matrix " + matrixFile.getAbsolutePath() + " does not start with a header line.");
+		}
+		String headerLine = new String(this.in.getBuffer(), this.in.getLineStart(), this.in.getLineLength());
+		this.accessions = headerLine.substring(1).split(",");  //get rid of the #.
+		this.words = Math.max(1, (this.accessions.length + 63) >>> 6);
+		this.presence = new long[this.words];
+
+		//the kmer size is taken from the first entry.
+		this.pendingLine = this.nextEntry();
+		if( this.pendingLine){
+			this.kmerSize = this.findTab() - this.in.getLineStart();
+		}
+	}
+
+
+	/**
+	 *
+	 * A reader for the rows that start in a range of the stream. The stream is positioned so that its first line is the first row of the range.
+	 *
+	 */
+	private TextPresenceMatrixReader(String[] accessions, int kmerSize, ByteLineReader in, long end){
+		this.accessions = accessions;
+		this.kmerSize = kmerSize;
+		this.words = Math.max(1, (accessions.length + 63) >>> 6);
+		this.presence = new long[this.words];
+		this.in = in;
+		this.end = end;
+		this.pendingLine = false;
+	}
+
+
+
+	/**
+	 *
+	 * A reader for a stream that is positioned at the start of a row, e.g. through a KmerIndex.
+	 *
+	 * @param accessions
+	 * @param kmerSize
+	 * @param in
+	 * @return
+	 */
+	static TextPresenceMatrixReader at(String[] accessions, int kmerSize, InputStream in){
+		return new TextPresenceMatrixReader(accessions, kmerSize, new ByteLineReader(in), Long.MAX_VALUE);
+	}
+
+
+
+	/**
+	 *
+	 * Split a text matrix into readers for consecutive parts that can be read in parallel. Together the readers return every row exactly once.
+	 * Plain text is split into byte ranges, BGZF is split at block boundaries. Each reader starts at the first line that begins in its range.
+	 * Other gzip can only be read from the start, so it is not split.
+	 *
+	 * @param matrixFile
+	 * @param parts
+	 * @return
+	 * @throws IOException
+	 */
+	public static TextPresenceMatrixReader[] split(File matrixFile, int parts)throws IOException{
+		TextPresenceMatrixReader header = new TextPresenceMatrixReader(matrixFile);
+		String[] accessions = header.getAccessions();
+		int kmerSize = header.getKmerSize();
+		header.close();
+
+		BufferedInputStream probe = new BufferedInputStream(new FileInputStream(matrixFile));
+		int format = CompressedInput.detect(probe);
+		probe.close();
+
+		if( format == CompressedInput.GZIP || parts <= 1){
+			return new TextPresenceMatrixReader[]{new TextPresenceMatrixReader(matrixFile)};
+		}
+
+		long[] compressedOffsets = null;
+		long[] offsets;
+		if( format == CompressedInput.BGZF){
+			long[][] index = ParallelBgzfInputStream.indexBlocks(matrixFile);
+			compressedOffsets = index[0];
+			offsets = index[1];
+		}else{
+			offsets = new long[]{0, matrixFile.length()};
+		}
+		long total = offsets[offsets.length - 1];
+
+		TextPresenceMatrixReader[] readers = new TextPresenceMatrixReader[parts];
+		long start = 0;
+		for( int i = 0; i< parts; i++){
+			long end = i == parts - 1 ? total : total / parts * (i + 1);
+
+			//start reading one byte early. If that byte ends a line, the range begins with a full line.
+			long from = Math.max(0, start - 1);
+			InputStream in;
+			if( compressedOffsets == null){
+				RandomAccessFile file = new RandomAccessFile(matrixFile, "r");
+				file.seek(from);
+				in = Channels.newInputStream(file.getChannel());
+			}else{
+				int block = blockOf(offsets, from);
+				RandomAccessFile file = new RandomAccessFile(matrixFile, "r");
+				file.seek(compressedOffsets[block]);
+				in = new ParallelBgzfInputStream(Channels.newInputStream(file.getChannel()), 1);
+				skipFully(in, from - offsets[block]);
+			}
+			ByteLineReader lineReader = new ByteLineReader(in);
+			if( start > 0){
+				lineReader.nextLine();
+			}
+			readers[i] = new TextPresenceMatrixReader(accessions, kmerSize, lineReader, end - from);
+			start = end;
+		}
+		return readers;
+	}
+
+
+	private static int blockOf(long[] offsets, long offset){
+		int low = 0;
+		int high = offsets.length - 2;
+		while( low < high){
+			int mid = (low + high + 1) >>> 1;
+			if( offsets[mid] <= offset){
+				low = mid;
+			}else{
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private static void skipFully(InputStream in, long n)throws IOException{
+		while( n > 0){
+			long skipped = in.skip(n);
+			if( skipped <= 0){
+				if( in.read() < 0){
+					return;
+				}
+				skipped = 1;
+			}
+			n = n - skipped;
+		}
+	}
+
+
+
+	public boolean next()throws IOException{
+		if( !this.pendingLine && !this.nextEntry()){
+			return false;
+		}
+		this.pendingLine = false;
+
+		byte[] b = in.getBuffer();
+		int lineEnd = in.getLineEnd();
+		int tab = this.findTab();
+		if( tab - in.getLineStart() > Kmer.MAX_KMER_SIZE){
+			throw new IllegalArgumentException("Kmer size " + (tab - in.getLineStart()) + " exceeds the maximum of " + Kmer.MAX_KMER_SIZE);
+		}
+
+		long h = 0;
+		long l = 0;
+		for( int i = in.getLineStart(); i < tab; i++){
+			h = (h << 2) | (l >>> 62);
+			l = (l << 2) | Kmer.CODES[b[i] & 0xff];
+		}
+		this.high = h;
+		this.low = l;
+
+		for( int i = 0; i< this.words; i++){
+			this.presence[i] = 0;
+		}
+		int end = Math.min(lineEnd, tab + 1 + this.words * 64);
+		for( int i = tab + 1; i < end; i++){
+			if( b[i] == '1'){
+				int index = i - tab - 1;
+				this.presence[index >>> 6] |= 1L << index;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Move to the next line that is not a comment and starts in the range of this reader.
+	 */
+	private boolean nextEntry()throws IOException{
+		while( in.nextLine()){
+			if( in.getLineOffset() >= this.end){
+				return false;
+			}
+			if( in.getLineLength() > 0 && in.getBuffer()[in.getLineStart()] == '#'){
+				continue;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private int findTab(){
+		byte[] b = in.getBuffer();
+		int i = in.getLineStart();
+		int lineEnd = in.getLineEnd();
+		while( i < lineEnd && b[i] != '\t'){
+			i++;
+		}
+		return i;
+	}
+
+
+	/**
+	 * @return
+	 * 		offset of the row that was read last in the decompressed stream. For a reader of a part of the file this is relative to the start of the part.
+	 */
+	public long getRowOffset(){
+		return this.in.getLineOffset();
+	}
+
+
+	public void close()throws IOException{
+		this.in.close();
+	}
+
+
+	/**
+	 * Text matrices may come from jellyfish dumps without -C, so nothing is promised.
+	 */
+	public boolean isCanonical(){
+		return false;
+	}
+
+}
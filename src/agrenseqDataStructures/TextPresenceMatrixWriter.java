@@ -0,0 +1,135 @@
+package agrenseqDataStructures;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import support.ParallelBgzfOutputStream;
+
+
+/**
+ *
+ * Writes the text format of the presence/absence matrix.
+ * First line starts with a # followed by a comma separated list of accession names.
+ * An entry in the matrix is a kmer, then a tab, then a string of 0 and 1 for absence and presence of that kmer in accessions. Order is according to first line of the matrix. Trailing 0s are ommitted.
+ *
+ * Rows are encoded into a large byte buffer: bases through a lookup on their 2 bit code, presence bits 8 at a time through a table of 0/1 strings for every byte value.
+ * The output can be compressed to BGZF on several threads.
+ *
+ * @author steuernb
+ *
+ */
+public class TextPresenceMatrixWriter extends PresenceMatrixWriter {
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * Base for each 2 bit code.
+	 */
+	private static final byte[] BASES = {'T', 'G', 'C', 'A'};
+
+	/**
+	 * The 8 characters "0" or "1" for each byte value, lowest bit first.
+	 */
+	private static final byte[] BITS = new byte[256 * 8];
+	static{
+		for( int b = 0; b < 256; b++){
+			for( int j = 0; j< 8; j++){
+				BITS[b * 8 + j] = (byte) (((b >>> j) & 1) == 0 ? '0' : '1');
+			}
+		}
+	}
+
+	OutputStream out;
+	byte[] buffer;
+	int position;
+
+
+
+	public TextPresenceMatrixWriter(File outputFile, int kmerSize, String[] accessions)throws IOException{
+		this(outputFile, kmerSize, accessions, false);
+	}
+
+	/**
+	 *
+	 * @param outputFile
+	 * @param kmerSize
+	 * @param accessions
+	 * @param bgzf
+	 * 		compress the matrix to BGZF. It can be read back directly and by gunzip.
+	 * @throws IOException
+	 */
+	public TextPresenceMatrixWriter(File outputFile, int kmerSize, String[] accessions, boolean bgzf)throws IOException{
+		this.kmerSize = kmerSize;
+		this.accessions = accessions;
+		if( bgzf){
+			this.out = new ParallelBgzfOutputStream(new FileOutputStream(outputFile), Runtime.getRuntime().availableProcessors());
+		}else{
+			this.out = new FileOutputStream(outputFile);
+		}
+		this.buffer = new byte[Math.max(BUFFER_SIZE, 2 * (kmerSize + accessions.length + 2))];
+		this.position = 0;
+
+		StringBuilder header = new StringBuilder("#");
+		for( int i = 0; i< accessions.length; i++){
+			if( i > 0){
+				header.append(',');
+			}
+			header.append(accessions[i]);
+		}
+		header.append('\n');
+		this.out.write(header.toString().getBytes());
+	}
+
+
+	public void writeRow(long high, long low, long[] presence)throws IOException{
+		if( this.buffer.length - this.position < this.kmerSize + this.accessions.length + 2){
+			this.flushBuffer();
+		}
+		byte[] b = this.buffer;
+		int p = this.position;
+
+		for( int i = this.kmerSize - 1; i >= 32; i--){
+			b[p++] = BASES[(int) (high >>> (2 * (i - 32))) & 3];
+		}
+		for( int i = Math.min(this.kmerSize, 32) - 1; i >= 0; i--){
+			b[p++] = BASES[(int) (low >>> (2 * i)) & 3];
+		}
+		b[p++] = '\t';
+
+		//trailing 0s are not written
+		int length = 0;
+		for( int w = Math.min(presence.length, (this.accessions.length + 63) >>> 6) - 1; w >= 0; w--){
+			if( presence[w] != 0){
+				length = Math.min(this.accessions.length, w * 64 + 64 - Long.numberOfLeadingZeros(presence[w]));
+				break;
+			}
+		}
+
+		int i = 0;
+		for( ; i + 8 <= length; i = i + 8){
+			int bits = (int) (presence[i >>> 6] >>> (i & 63)) & 0xff;
+			System.arraycopy(BITS, bits * 8, b, p, 8);
+			p = p + 8;
+		}
+		for( ; i < length; i++){
+			b[p++] = (byte) ((presence[i >>> 6] & (1L << i)) == 0 ? '0' : '1');
+		}
+		b[p++] = '\n';
+		this.position = p;
+	}
+
+
+	private void flushBuffer()throws IOException{
+		this.out.write(this.buffer, 0, this.position);
+		this.position = 0;
+	}
+
+
+	public void close()throws IOException{
+		this.flushBuffer();
+		this.out.close();
+	}
+
+}
@@ -0,0 +1,79 @@
+package commandLineInterface;
+import java.io.File;
+
+import agrenseqDataStructures.BinaryPresenceMatrixReader;
+import agrenseqDataStructures.PresenceMatrixReader;
+import agrenseqDataStructures.PresenceMatrixWriter;
+import support.CLI;
+
+
+public class AgRenSeq_ConvertMatrix {
+
+	public static final double version = 1.0;
+	
+	
+	public static void main(String[] args){
+		
+		
+		CLI cli = new CLI();
+		
+		String help = 	"AgRenSeq_ConvertMatrix version " + AgRenSeq_ConvertMatrix.version + "\n"+
+						"-i <matrix>: presence/absence matrix. A text matrix is converted to binary, a binary matrix back to text.\n" +
+						"-o <outputFile>\n" +
+						"-z compress the text matrix with block gzip (bgzip compatible)";
+						
+		cli.parseOptions(args);
+		
+		
+		
+		
+		try {
+			
+			if( !cli.hasOption("i") || (!cli.hasOption("o"))){
+				throw new Exception("parameters -i and -o must be set.");
+			}
+			
+			File inputMatrix = new File(cli.getArg("i"));
+			if(!inputMatrix.exists()){
+				throw new Exception("File " + cli.getArg("i") + " does not exist.");
+			}
+			
+			File outputFile = new File(cli.getArg("o"));
+			if(outputFile.exists()){
+				throw new Exception("File " + cli.getArg("o") + " exists. I won't overwrite it. ");
+			}
+			
+			
+			PresenceMatrixReader in = PresenceMatrixReader.open(inputMatrix);
+			boolean binary = !(in instanceof BinaryPresenceMatrixReader);
+			
+			System.out.println("Converting " + inputMatrix.getAbsolutePath() + " to " + (binary ? "binary" : "text"));
+			
+			boolean sorted = in instanceof BinaryPresenceMatrixReader && ((BinaryPresenceMatrixReader) in).isSorted();
+			PresenceMatrixWriter out = PresenceMatrixWriter.open(outputFile, in.getKmerSize(), in.getAccessions(), binary, in.isCanonical(), sorted, cli.hasOption("z"));
+			long rows = 0;
+			while( in.next()){
+				out.writeRow(in.getHigh(), in.getLow(), in.getPresence());
+				rows++;
+			}
+			out.close();
+			in.close();
+			
+			System.out.println("...finished. Converted " + rows + " kmers.");
+			
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.out.println(help);
+		}
+		
+		
+		
+		
+	}
+	
+	
+	
+	
+	
+	
+}
@@ -2,8 +2,14 @@ package commandLineInterface;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.util.Vector;
 
+import agrenseqDataStructures.ExternalKmerMatrixBuilder;
+import agrenseqDataStructures.KmerCounter;
+import agrenseqDataStructures.KmerDumpReader;
 import agrenseqDataStructures.KmerMatrix;
+import agrenseqDataStructures.KmerSketch;
+import agrenseqDataStructures.PresenceMatrixReader;
 import support.CLI;
 
 
@@ -21,7 +27,16 @@ public class AgRenSeq_CreateMatrix {
 						"-i <metainfofile>\n" +
 						"-o <outputFile>\n"	+	
 						"-t <threshold> kmers present in less than <t> or all but <t> will not be recorded.\n"+
-						"-n <minimum kmer count>";
+						"-n <minimum kmer count>\n" +
+						"-b write the matrix in binary format\n" +
+						"-z compress the text matrix with block gzip (bgzip compatible)\n" +
+						"-tmp <directory> build the matrix out of memory, using sorted runs in this directory\n" +
+						"-m <megabytes> memory budget for -tmp and for counting the kmers of one accession with -k. Default is half of the maximum heap\n" +
+						"-threads <number> read this many kmer dumps in parallel, or count kmers with this many threads. Default 1\n" +
+						"-sketch <megabytes> read the kmer dumps twice. The first pass counts in a sketch of this size how many accessions have each kmer, the second pass only stores kmers that can pass -t. Not with -k\n" +
+						"-k <kmer size> count kmers directly from fastq files instead of reading jellyfish dumps. The metainfofile then lists one or more (gzipped) fastq files per accession\n" +
+						"-add <matrix> add the accessions of the metainfofile to this matrix. Its unreduced matrix (<matrix>" + KmerMatrix.UNREDUCED_EXTENSION + ") is used if it exists. Not with -sketch\n" +
+						"-u also write the matrix before -t is applied, in binary format to <outputFile>" + KmerMatrix.UNREDUCED_EXTENSION + ". Keep it to use -add later";
 						
 		cli.parseOptions(args);
 		
@@ -33,8 +48,55 @@ public class AgRenSeq_CreateMatrix {
 			if( !cli.hasOption("i") || (!cli.hasOption("o"))){
 				throw new Exception("parameters -i and -o must be set.");
 			}
+			if( cli.hasOption("b") && cli.hasOption("z")){
+				throw new Exception("The binary matrix cannot be compressed. Use either -b or -z.");
+			}
+			if( cli.hasOption("add") && cli.hasOption("sketch")){
+				throw new Exception("-sketch only sees the new kmer dumps and would drop kmers that are frequent in the matrix. It cannot be used with -add.");
+			}
+			
+			File outputFile = new File(cli.getArg("o"));
+			File unreducedFile = null;
+			if( cli.hasOption("u")){
+				unreducedFile = KmerMatrix.getUnreducedFile(outputFile);
+			}
+			
+			//with -add, the accessions of the metainfofile are appended to this matrix. Only the unreduced matrix has all kmers of the old accessions.
+			File previousMatrix = null;
+			String[] previousAccessions = new String[0];
+			int previousKmerSize = 0;
+			if( cli.hasOption("add")){
+				File addMatrix = new File(cli.getArg("add"));
+				if( !addMatrix.exists()){
+					throw new Exception("File " + cli.getArg("add") + " does not exist.");
+				}
+				previousMatrix = KmerMatrix.getUnreducedFile(addMatrix);
+				if( !previousMatrix.exists()){
+					System.out.println("Warning: " + previousMatrix.getPath() + " does not exist. Kmers that were removed from " + addMatrix.getPath() + " by its threshold are missing for its accessions, the result can differ from building the matrix of all accessions at once.");
+					previousMatrix = addMatrix;
+				}
+				PresenceMatrixReader header = PresenceMatrixReader.open(previousMatrix);
+				previousAccessions = header.getAccessions();
+				previousKmerSize = header.getKmerSize();
+				header.close();
+			}
+			
+			int threads = 1;
+			if( cli.hasOption("threads")){
+				threads = Integer.parseInt(cli.getArg("threads"));
+			}
 			
-			KmerMatrix matrix = new KmerMatrix();
+			KmerMatrix matrix = null;
+			ExternalKmerMatrixBuilder builder = null;
+			long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+			if( cli.hasOption("m")){
+				memoryBudget = Long.parseLong(cli.getArg("m")) * 1024 * 1024;
+			}
+			if( cli.hasOption("tmp")){
+				builder = new ExternalKmerMatrixBuilder(new File(cli.getArg("tmp")), memoryBudget);
+			}else{
+				matrix = new KmerMatrix(threads > 1 ? threads * 8 : 1);
+			}
 
 			
 			int minCount = 10;
@@ -51,6 +113,17 @@ public class AgRenSeq_CreateMatrix {
 			
 			
 			
+			int kmerSize = 0;
+			if( cli.hasOption("k")){
+				kmerSize = Integer.parseInt(cli.getArg("k"));
+				if( previousMatrix != null && kmerSize != previousKmerSize){
+					throw new Exception("The matrix " + previousMatrix.getPath() + " has kmers of size " + previousKmerSize + ", not " + kmerSize + ".");
+				}
+			}
+			
+			Vector<File[]> inputFiles = new Vector<File[]>();
+			Vector<String> accessions = new Vector<String>();
+			
 			BufferedReader in = new BufferedReader(new FileReader(cli.getArg("i")));
 
 			for (String inputline = in.readLine(); inputline != null; inputline = in.readLine()) {
@@ -59,21 +132,103 @@ public class AgRenSeq_CreateMatrix {
 				}
 				String[] split = inputline.split("\t");
 				String accession = split[0];
-				File file = new File(split[1]);
-				if(file.exists()){
-					matrix.addKmerSet(file, minCount, accession);
-				}else{
-					System.out.println("File " + file.getAbsolutePath() + " does not exist.");
+				int numFiles = kmerSize > 0 ? split.length - 1 : 1;
+				File[] files = new File[numFiles];
+				boolean exists = true;
+				for( int i = 0; i< numFiles; i++){
+					files[i] = new File(split[i+1]);
+					if( !files[i].exists()){
+						System.out.println("File " + files[i].getAbsolutePath() + " does not exist.");
+						exists = false;
+					}
+				}
+				if(exists){
+					inputFiles.add(files);
+					accessions.add(accession);
 				}
 				
 			}
 
 			in.close();
 			
+			for( int i = 0; i< previousAccessions.length; i++){
+				if( accessions.contains(previousAccessions[i])){
+					throw new Exception("Accession " + previousAccessions[i] + " is already in " + previousMatrix.getPath() + ".");
+				}
+			}
+			if( previousMatrix != null && kmerSize == 0){
+				for( int i = 0; i< inputFiles.size(); i++){
+					KmerDumpReader dump = new KmerDumpReader(inputFiles.get(i)[0]);
+					int dumpKmerSize = dump.isEmpty() ? previousKmerSize : dump.getKmerSize();
+					dump.close();
+					if( dumpKmerSize != previousKmerSize){
+						throw new Exception("The matrix " + previousMatrix.getPath() + " has kmers of size " + previousKmerSize + ", but " + inputFiles.get(i)[0].getPath() + " has kmers of size " + dumpKmerSize + ".");
+					}
+				}
+			}
+			if( previousMatrix != null){
+				if( builder != null){
+					builder.addPresenceMatrix(previousMatrix);
+				}else{
+					matrix.readPresenceMatrix(previousMatrix, threads);
+				}
+			}
+			
+			if( cli.hasOption("sketch")){
+				if( kmerSize > 0){
+					throw new Exception("-sketch needs kmer dumps that can be read twice. It cannot be used with -k.");
+				}
+				File[] kmerDumps = new File[inputFiles.size()];
+				for( int i = 0; i< kmerDumps.length; i++){
+					kmerDumps[i] = inputFiles.get(i)[0];
+				}
+				long sketchMemory = Long.parseLong(cli.getArg("sketch")) * 1024 * 1024;
+				KmerSketch sketch = KmerSketch.fromKmerDumps(kmerDumps, minCount, threshold, sketchMemory, threads);
+				if( builder != null){
+					builder.setPrefilter(sketch, threshold);
+				}else{
+					matrix.setPrefilter(sketch, threshold);
+				}
+			}
 			
-			matrix.reduceMatrix(threshold);
+			if( kmerSize > 0){
+				for( int i = 0; i< inputFiles.size(); i++){
+					KmerCounter counter = new KmerCounter(kmerSize, threads, accessions.get(i), memoryBudget);
+					for( int j = 0; j< inputFiles.get(i).length; j++){
+						counter.count(inputFiles.get(i)[j]);
+					}
+					if( builder != null){
+						builder.addKmerSet(counter, minCount, accessions.get(i));
+					}else{
+						matrix.addKmerSet(counter, minCount, accessions.get(i));
+					}
+				}
+			}
 			
-			matrix.writePresenceMatrix(new File(cli.getArg("o")));
+			if( builder != null){
+				if( kmerSize == 0){
+					for( int i = 0; i< inputFiles.size(); i++){
+						builder.addKmerSet(inputFiles.get(i)[0], minCount, accessions.get(i));
+					}
+				}
+				builder.writePresenceMatrix(outputFile, threshold, cli.hasOption("b"), cli.hasOption("z"), unreducedFile);
+			}else{
+				if( kmerSize == 0){
+					File[] kmerDumps = new File[inputFiles.size()];
+					for( int i = 0; i< kmerDumps.length; i++){
+						kmerDumps[i] = inputFiles.get(i)[0];
+					}
+					matrix.addKmerSets(kmerDumps, minCount, accessions.toArray(new String[accessions.size()]), threads);
+				}
+				
+				if( unreducedFile != null){
+					matrix.writePresenceMatrix(unreducedFile, true, false);
+				}
+				
+				matrix.reduceMatrix(threshold);
+				
+				matrix.writePresenceMatrix(outputFile, cli.hasOption("b"), cli.hasOption("z"));
+			}
 			
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,84 @@
+package commandLineInterface;
+import java.io.File;
+
+import agrenseqDataStructures.PresencePCA;
+import support.CLI;
+
+
+public class AgRenSeq_PCA {
+
+	public static final double version = 1.0;
+	
+	
+	public static void main(String[] args){
+		
+		
+		CLI cli = new CLI();
+		
+		String help = 	"AgRenSeq_PCA version " + AgRenSeq_PCA.version + "\n"+
+						"-i <matrix>: presence/absence matrix, text or binary\n" +
+						"-o <outputFile>: principal components per accession. Can be used as covariates with AgRenSeq_RunAssociation -glm -c\n" +
+						"-n <number>: number of principal components. Default 4\n" +
+						"-passes <number>: passes over the matrix. More passes are more accurate. Default 3\n" +
+						"-threads <number>: threads for reading the matrix. Default is the number of cores";
+						
+		cli.parseOptions(args);
+		
+		
+		
+		
+		try {
+			
+			if( !cli.hasOption("i") || (!cli.hasOption("o"))){
+				throw new Exception("parameters -i and -o must be set.");
+			}
+			
+			File inputMatrix = new File(cli.getArg("i"));
+			if(!inputMatrix.exists()){
+				throw new Exception("File " + cli.getArg("i") + " does not exist.");
+			}
+			
+			File outputFile = new File(cli.getArg("o"));
+			if(outputFile.exists()){
+				throw new Exception("File " + cli.getArg("o") + " exists. I won't overwrite it. ");
+			}
+			
+			int components = 4;
+			if( cli.hasOption("n")){
+				components = Integer.parseInt(cli.getArg("n"));
+			}
+			
+			int threads = Runtime.getRuntime().availableProcessors();
+			if( cli.hasOption("threads")){
+				threads = Integer.parseInt(cli.getArg("threads"));
+			}
+			
+			PresencePCA pca = new PresencePCA(inputMatrix, components);
+			if( cli.hasOption("passes")){
+				pca.setPasses(Integer.parseInt(cli.getArg("passes")));
+			}
+			pca.run(threads);
+			pca.write(outputFile);
+			
+			System.out.println("...finished. Used " + pca.getRowCount() + " kmers.");
+			double[] eigenvalues = pca.getEigenvalues();
+			for( int i = 0; i< eigenvalues.length; i++){
+				System.out.println("PC" + (i+1) + "\t" + eigenvalues[i]);
+			}
+			
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.out.println(help);
+		}
+		
+		
+		
+		
+	}
+	
+	
+	
+	
+	
+	
+}
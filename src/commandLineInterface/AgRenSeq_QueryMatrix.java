@@ -0,0 +1,173 @@
+package commandLineInterface;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Vector;
+
+import agrenseqDataStructures.KmerEncoder;
+import agrenseqDataStructures.KmerIndex;
+import support.CLI;
+import support.FastaReader;
+
+
+public class AgRenSeq_QueryMatrix {
+
+	public static final double version = 1.0;
+
+
+	public static void main(String[] args){
+
+
+		CLI cli = new CLI();
+
+		String help = 	"AgRenSeq_QueryMatrix version " + AgRenSeq_QueryMatrix.version + "\n"+
+						"-i <matrix>: presence/absence matrix, text, block gzipped text or binary\n" +
+						"-k <kmer> [<kmer> ...]: kmers to look up\n" +
+						"-f <fasta>: look up all kmers of these sequences\n" +
+						"-o <outputFile>: Default is standard output\n" +
+						"-build: only build the index of the matrix\n" +
+						"-m <number>: memory in megabytes for building the index. Default is half of the Java heap\n" +
+						"-tmp <directory>: directory for sorted runs when building the index. Default is the directory of the matrix";
+
+		cli.parseOptions(args);
+
+
+
+
+		try {
+
+			if( !cli.hasOption("i") ){
+				throw new Exception("parameter -i must be set.");
+			}
+			if( !cli.hasOption("build") && !cli.hasOption("k") && !cli.hasOption("f")){
+				throw new Exception("one of -k, -f or -build must be set.");
+			}
+
+			File inputMatrix = new File(cli.getArg("i"));
+			if(!inputMatrix.exists()){
+				throw new Exception("File " + cli.getArg("i") + " does not exist.");
+			}
+
+			File outputFile = null;
+			if( cli.hasOption("o")){
+				outputFile = new File(cli.getArg("o"));
+				if(outputFile.exists()){
+					throw new Exception("File " + cli.getArg("o") + " exists. I won't overwrite it. ");
+				}
+			}
+
+			File fastaFile = null;
+			if( cli.hasOption("f")){
+				fastaFile = new File(cli.getArg("f"));
+				if(!fastaFile.exists()){
+					throw new Exception("File " + cli.getArg("f") + " does not exist.");
+				}
+			}
+
+			long memory = Runtime.getRuntime().maxMemory() / 2;
+			if( cli.hasOption("m")){
+				memory = Long.parseLong(cli.getArg("m")) * 1024 * 1024;
+			}
+
+			File tempDirectory = inputMatrix.getAbsoluteFile().getParentFile();
+			if( cli.hasOption("tmp")){
+				tempDirectory = new File(cli.getArg("tmp"));
+				if( !tempDirectory.isDirectory()){
+					throw new Exception("Directory " + cli.getArg("tmp") + " does not exist.");
+				}
+			}
+
+
+			if( cli.hasOption("build") || !KmerIndex.isCurrent(inputMatrix)){
+				KmerIndex.build(inputMatrix, memory, tempDirectory);
+			}
+			if( !cli.hasOption("k") && !cli.hasOption("f")){
+				return;
+			}
+
+
+			KmerIndex index = new KmerIndex(inputMatrix);
+			BufferedWriter out;
+			if( outputFile == null){
+				out = new BufferedWriter(new OutputStreamWriter(System.out));
+			}else{
+				out = new BufferedWriter(new FileWriter(outputFile));
+			}
+
+			String[] accessions = index.getAccessions();
+			out.write("#");
+			for( int i = 0; i< accessions.length; i++){
+				if( i > 0){
+					out.write(",");
+				}
+				out.write(accessions[i]);
+			}
+			out.newLine();
+
+			KmerEncoder encoder = new KmerEncoder(index.getKmerSize());
+			long[] presence = new long[index.getWords()];
+
+			if( cli.hasOption("k")){
+				Vector<String> kmers = cli.getArgs("k");
+				for( int i = 0; i< kmers.size(); i++){
+					String kmer = kmers.get(i);
+					encoder.reset(kmer);
+					if( kmer.length() != index.getKmerSize() || !encoder.next()){
+						throw new Exception("Kmer " + kmer + " is not a kmer of size " + index.getKmerSize() + ".");
+					}
+					out.write(kmer + "\t" + lookup(index, encoder, presence));
+					out.newLine();
+				}
+			}
+
+			if( fastaFile != null){
+				FastaReader reader = new FastaReader(fastaFile);
+				while( reader.next()){
+					CharSequence sequence = reader.getSequence();
+					encoder.reset(sequence);
+					while( encoder.next()){
+						int position = encoder.getPosition();
+						out.write(reader.getIdentifier() + "\t" + (position + 1) + "\t" + sequence.subSequence(position, position + index.getKmerSize()) + "\t" + lookup(index, encoder, presence));
+						out.newLine();
+					}
+				}
+				reader.close();
+			}
+
+			out.close();
+			index.close();
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.out.println(help);
+		}
+
+
+
+
+	}
+
+
+	/**
+	 *
+	 * @return
+	 * 		the presence of the current kmer of the encoder as 0 and 1 per accession, or "-" if it is not in the matrix.
+	 */
+	private static String lookup(KmerIndex index, KmerEncoder encoder, long[] presence)throws IOException{
+		if( !index.getPresence(encoder.getCanonicalHigh(), encoder.getCanonicalLow(), presence)){
+			return "-";
+		}
+		int accessions = index.getAccessions().length;
+		char[] c = new char[accessions];
+		for( int i = 0; i< accessions; i++){
+			c[i] = (presence[i >>> 6] & (1L << i)) != 0 ? '1' : '0';
+		}
+		return new String(c);
+	}
+
+
+
+
+}
@@ -1,5 +1,7 @@
 package commandLineInterface;
 import java.io.File;
+import java.util.HashSet;
+import java.util.Vector;
 
 import agrenseqDataStructures.KmerProjection;
 import agrenseqDataStructures.Phenotype;
@@ -17,11 +19,17 @@ public class AgRenSeq_RunAssociation {
 		CLI cli = new CLI();
 		
 		String help = 	"AgRenSeq_CreateMatrix version " + AgRenSeq_CreateMatrix.version + "\n"+
-						"-i <matrix.txt>\n"      +
+						"-i <matrix.txt>: presence/absence matrix, text or binary\n"      +
 						"-n <nlr.txt>: List of contigs associated with nlrs" +
-						"-o <outputFile.txt>\n"	 +	
+						"-o <outputFile.txt>: with several phenotypes the phenotype name is added to the file name, e.g. outputFile_race1.txt\n"	 +	
 						"-a <assembly.fasta> \n" +
-						"-p <phenotype.txt> \n"  +
+						"-p <phenotype.txt> [phenotype2.txt ...]: one or more phenotype files, scored in the same pass over the matrix\n"  +
+						"-columns: every score column of the phenotype files is a phenotype of its own instead of being averaged. A first line without numbers names the phenotypes\n"  +
+						"-threads <number>: threads for reading the matrix. Default is the number of cores\n"  +
+						"-permutations <number>: optional. Score this many permutations of each phenotype and write empirical p-values to outputFile_pvalues.txt\n"  +
+						"-seed <number>: seed for the permutations. Default 1\n"  +
+						"-glm: score kmers by linear regression of the phenotype on kmer presence. The score is the -log10 p-value, negative for kmers that go with susceptibility\n"  +
+						"-c <covariates.txt>: optional with -glm. Covariates such as principal components, one column per covariate after the accession name\n"  +
 						"-u <usable>: optional list of accessions. If this is set all other accessions are ommitted.";
 						
 		cli.parseOptions(args);
@@ -40,14 +48,74 @@ public class AgRenSeq_RunAssociation {
 				throw new Exception("File " + cli.getArg("i") + " does not exist.");
 			}
 			
-			File outputFile = new File(cli.getArg("o"));
-			if(outputFile.exists()){
-				throw new Exception("File " + cli.getArg("o") + " exists. I won't overwrite it. ");
+			Vector<Phenotype> phenotypes = new Vector<Phenotype>();
+			for( int i = 0; i< cli.getArgs("p").size(); i++){
+				File phenotypeFile = new File(cli.getArgs("p").get(i));
+				if(!phenotypeFile.exists()){
+					throw new Exception("File " + phenotypeFile.getPath() + " does not exist.");
+				}
+				if( cli.hasOption("columns")){
+					Phenotype[] columns = Phenotype.readColumns(phenotypeFile);
+					for( int j = 0; j< columns.length; j++){
+						phenotypes.add(columns[j]);
+					}
+				}else{
+					phenotypes.add(new Phenotype(phenotypeFile));
+				}
+			}
+			if( phenotypes.size() == 0){
+				throw new Exception("No phenotypes found.");
+			}
+			
+			File[] outputFiles = new File[phenotypes.size()];
+			HashSet<String> names = new HashSet<String>();
+			for( int i = 0; i< outputFiles.length; i++){
+				if( outputFiles.length == 1){
+					outputFiles[i] = new File(cli.getArg("o"));
+				}else{
+					String name = phenotypes.get(i).getName();
+					if( !names.add(name)){
+						name = name + "_" + (i+1);
+					}
+					outputFiles[i] = getOutputFile(cli.getArg("o"), name);
+				}
+				if(outputFiles[i].exists()){
+					throw new Exception("File " + outputFiles[i].getPath() + " exists. I won't overwrite it. ");
+				}
+			}
+			
+			int permutations = 0;
+			if( cli.hasOption("permutations")){
+				permutations = Integer.parseInt(cli.getArg("permutations"));
+			}
+			long seed = 1;
+			if( cli.hasOption("seed")){
+				seed = Long.parseLong(cli.getArg("seed"));
+			}
+			Phenotype[] covariates = null;
+			if( cli.hasOption("c") && !cli.hasOption("glm")){
+				throw new Exception("Covariates are only used with -glm.");
+			}
+			if( cli.hasOption("glm")){
+				if( permutations > 0){
+					throw new Exception("Permutations are not supported with -glm.");
+				}
+				covariates = new Phenotype[0];
+				if( cli.hasOption("c")){
+					File covariateFile = new File(cli.getArg("c"));
+					if(!covariateFile.exists()){
+						throw new Exception("File " + cli.getArg("c") + " does not exist.");
+					}
+					covariates = Phenotype.readColumns(covariateFile);
+				}
 			}
 			
-			File phenotypeFile = new File(cli.getArg("p"));
-			if(!phenotypeFile.exists()){
-				throw new Exception("File " + cli.getArg("p") + " does not exist.");
+			File[] significanceFiles = new File[outputFiles.length];
+			for( int i = 0; i< outputFiles.length && permutations > 0; i++){
+				significanceFiles[i] = getOutputFile(outputFiles[i].getPath(), "pvalues");
+				if(significanceFiles[i].exists()){
+					throw new Exception("File " + significanceFiles[i].getPath() + " exists. I won't overwrite it. ");
+				}
 			}
 			
 			File assemblyFile = new File(cli.getArg("a"));
@@ -61,19 +129,32 @@ public class AgRenSeq_RunAssociation {
 			}
 			
 			
-			Phenotype p = new Phenotype(phenotypeFile);
 			if( cli.hasOption("u")){
-				p.selectAccessions(new File(cli.getArg("u")));
+				for( int i = 0; i< phenotypes.size(); i++){
+					phenotypes.get(i).selectAccessions(new File(cli.getArg("u")));
+				}
 			}
 			
 			
 			
 			
-			KmerProjection projection = new KmerProjection( p, assemblyFile, nlrList, inputMatrix );
+			KmerProjection projection = new KmerProjection( phenotypes.toArray(new Phenotype[phenotypes.size()]), assemblyFile, nlrList, inputMatrix );
 			
+			int threads = Runtime.getRuntime().availableProcessors();
+			if( cli.hasOption("threads")){
+				threads = Integer.parseInt(cli.getArg("threads"));
+			}
+			
+			projection.setPermutations(permutations, seed);
+			if( covariates != null){
+				projection.setRegression(covariates);
+			}
 			projection.readAssembly();
-			projection.readMatrix();
-			projection.writeAssociationScore( outputFile );
+			projection.readMatrix(threads);
+			projection.writeAssociationScore( outputFiles );
+			if( permutations > 0){
+				projection.writeSignificance( significanceFiles );
+			}
 			
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -90,4 +171,25 @@ public class AgRenSeq_RunAssociation {
 	
 	
 
+	/**
+	 * 
+	 * Add the name of a phenotype to the output file name, before the extension.
+	 * 
+	 * @param output
+	 * @param name
+	 * @return
+	 */
+	private static File getOutputFile(String output, String name){
+		File file = new File(output);
+		String fileName = file.getName();
+		int dot = fileName.lastIndexOf('.');
+		if( dot > 0){
+			fileName = fileName.substring(0, dot) + "_" + name + fileName.substring(dot);
+		}else{
+			fileName = fileName + "_" + name;
+		}
+		return new File(file.getParentFile(), fileName);
+	}
+	
+	
 }
@@ -1,26 +1,41 @@
 package support;
 
 
-import java.util.Hashtable;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-
 
 /**
  * The basic represenation of a sequence. This can be DNA or amino acid. Additionally to the sequence itself the per-base quality can also be stored. 
  * 
+ * The sequence is kept as one byte per character. Complement, case and the check for standard bases go through tables of 256 entries instead of a switch per character.
+ * getView() hands out the sequence, or a part of it, without copying. A view is only valid until the sequence is changed.
+ * 
  * @author steuernb
  *
  */
 public class BioSequence implements Comparable<BioSequence> {
 
 	
+	private static final byte[] COMPLEMENT = new byte[256];
+	private static final byte[] UPPER_CASE = new byte[256];
+	private static final boolean[] STANDARD = new boolean[256];
+	static{
+		for( int i = 0; i< 256; i++){
+			COMPLEMENT[i] = (byte) i;
+			UPPER_CASE[i] = (byte) (i >= 'a' && i <= 'z' ? i - 'a' + 'A' : i);
+		}
+		String bases = "ACGTacgt";
+		String complements = "TGCAtgca";
+		for( int i = 0; i< bases.length(); i++){
+			COMPLEMENT[bases.charAt(i)] = (byte) complements.charAt(i);
+			STANDARD[bases.charAt(i)] = true;
+		}
+	}
+	
+	
 	String identifier;
-	StringBuilder sequence;
+	byte[] sequence;
+	int length;
 	String description;
 	int[] quality;
-	Hashtable<String,String> geneticCode;
 	
 	/**
 	 * 
@@ -34,7 +49,7 @@ public class BioSequence implements Comparable<BioSequence> {
 	public BioSequence(String identifier, StringBuilder sequence) {
 		
 		this.identifier = identifier;
-		this.sequence = new StringBuilder(sequence);
+		this.setSequence(sequence);
 		
 	}
 
@@ -49,7 +64,7 @@ public class BioSequence implements Comparable<BioSequence> {
 	public BioSequence(String identifier,String description,  StringBuilder sequence) {
 		
 		this.identifier = identifier;
-		this.sequence = new StringBuilder(sequence);
+		this.setSequence(sequence);
 		this.description = description;
 		
 	}
@@ -57,7 +72,25 @@ public class BioSequence implements Comparable<BioSequence> {
 	public BioSequence(String identifier, String sequence) {
 		
 		this.identifier = identifier;
-		this.sequence = new StringBuilder(sequence);
+		this.setSequence(sequence);
+		
+	}
+	
+	/**
+	 * 
+	 * A sequence from bytes, e.g. as read by the FastaReader. The bytes are copied.
+	 * 
+	 * @param identifier
+	 * @param sequence
+	 * @param offset
+	 * @param length
+	 */
+	public BioSequence(String identifier, byte[] sequence, int offset, int length) {
+		
+		this.identifier = identifier;
+		this.sequence = new byte[length];
+		System.arraycopy(sequence, offset, this.sequence, 0, length);
+		this.length = length;
 		
 	}
 	
@@ -92,11 +125,45 @@ public class BioSequence implements Comparable<BioSequence> {
 	}
 	
 	public String getSequence(){
-		return this.sequence.toString();
+		return this.getView().toString();
+	}
+	
+	/**
+	 * 
+	 * @return
+	 * 		the sequence without a copy. It changes with the sequence.
+	 */
+	public ByteSequence getView(){
+		return new ByteSequence(this.sequence, 0, this.length);
+	}
+	
+	/**
+	 * 
+	 * @param start
+	 * 		first position, 0-based.
+	 * @param end
+	 * 		position after the last.
+	 * @return
+	 * 		a part of the sequence without a copy.
+	 */
+	public ByteSequence getView(int start, int end){
+		if( start < 0 || end > this.length || start > end){
+			throw new IndexOutOfBoundsException("Range " + start + " to " + end + " of a sequence of length " + this.length);
+		}
+		return new ByteSequence(this.sequence, start, end - start);
 	}
 	
 	public void appendSequence(String sequence){
-		this.sequence.append(sequence);
+		int newLength = this.length + sequence.length();
+		if( newLength > this.sequence.length){
+			byte[] b = new byte[Math.max(newLength, this.sequence.length * 2)];
+			System.arraycopy(this.sequence, 0, b, 0, this.length);
+			this.sequence = b;
+		}
+		for( int i = 0; i< sequence.length(); i++){
+			this.sequence[this.length + i] = (byte) sequence.charAt(i);
+		}
+		this.length = newLength;
 	}
 	
 	public void setIdentifier(String identifier){
@@ -108,11 +175,22 @@ public class BioSequence implements Comparable<BioSequence> {
 	}
 	
 	public void setSequence(String sequence){
-		this.sequence = new StringBuilder(sequence);
+		this.setSequence((CharSequence) sequence);
 	}
 	
+	/**
+	 * The characters are copied, later changes of the StringBuilder do not change the sequence.
+	 * 
+	 * @param sequence
+	 */
 	public void setSequence(StringBuilder sequence){
-		this.sequence = sequence;
+		this.setSequence((CharSequence) sequence);
+	}
+	
+	private void setSequence(CharSequence sequence){
+		this.sequence = new byte[sequence.length()];
+		this.length = 0;
+		this.appendSequence(sequence.toString());
 	}
 	
 	public void setQuality(int[] quality){
@@ -155,7 +233,7 @@ public class BioSequence implements Comparable<BioSequence> {
 			header = header + " " + this.description;
 		}
 		
-		return header + "\n" + this.sequence + "\n";
+		return header + "\n" + this.getSequence() + "\n";
 		
 	}
 	
@@ -166,9 +244,10 @@ public class BioSequence implements Comparable<BioSequence> {
 		}
 		
 		
-		 String formattedSequence = new String(this.sequence.substring(0, Math.min(this.sequence.length(),linelength) ));
-	     String restSequence = new String(this.sequence.substring(Math.min(this.sequence.length(),linelength)));
-	     int length = this.sequence.length() - linelength;
+		 String sequence = this.getSequence();
+		 String formattedSequence = sequence.substring(0, Math.min(sequence.length(),linelength) );
+	     String restSequence = sequence.substring(Math.min(sequence.length(),linelength));
+	     int length = sequence.length() - linelength;
 
 	    
 	     
@@ -187,7 +266,7 @@ public class BioSequence implements Comparable<BioSequence> {
 	}
 	
 	public int getLength(){
-		return this.sequence.length();
+		return this.length;
 	}
 	
 	
@@ -201,9 +280,9 @@ public class BioSequence implements Comparable<BioSequence> {
 	 */
 	public String getFastqString(){
 		if(this.lengthIsSynchronized()){
-			return "@" + identifier + "\n" + sequence.toString() + "\n+\n" + this.getQuality(33) + "\n";
+			return "@" + identifier + "\n" + this.getSequence() + "\n+\n" + this.getQuality(33) + "\n";
 		}else{
-			System.out.println(this.sequence.length() + "\t" + this.quality.length);
+			System.out.println(this.length + "\t" + this.quality.length);
 			return null;
 		}
 	}
@@ -228,7 +307,7 @@ public class BioSequence implements Comparable<BioSequence> {
 			return false;
 		}
 		
-		if( sequence.length() == quality.length){
+		if( this.length == quality.length){
 			return true;
 		}else{
 			return false;
@@ -244,11 +323,10 @@ public class BioSequence implements Comparable<BioSequence> {
 	 */
 	  public int getNumberOfNonStandardBases(){
 	    	int numNonStandardBases=0;
-	    	Pattern p = Pattern.compile("[^ATGCatgc]+");
-	    	Matcher m = p.matcher(this.getSequence());
-	    	
-	    	while(m.find()){
-	    		numNonStandardBases = numNonStandardBases + m.group(0).length();
+	    	for( int i = 0; i< this.length; i++){
+	    		if( !STANDARD[this.sequence[i] & 0xff]){
+	    			numNonStandardBases++;
+	    		}
 	    	}
 	    	
 	    	return numNonStandardBases;
@@ -264,14 +342,15 @@ public class BioSequence implements Comparable<BioSequence> {
      * @return
      */
     public boolean isDNA(){
-    	String s = this.sequence.substring(0, Math.min(500, this.sequence.length()));
-    	Pattern p = Pattern.compile("([ATGCNatgcn]+)");
-    	Matcher m = p.matcher(s);
+    	int n = Math.min(500, this.length);
     	int l = 0;
-    	while(m.find()){
-    		l = l + m.group(0).length();
+    	for( int i = 0; i< n; i++){
+    		byte b = this.sequence[i];
+    		if( STANDARD[b & 0xff] || b == 'N' || b == 'n'){
+    			l++;
+    		}
     	}
-    	if(l > s.length()/2){
+    	if(l > n/2){
     		return true;
     	}else{
     		return false;
@@ -283,102 +362,23 @@ public class BioSequence implements Comparable<BioSequence> {
     /**
      * translate an nucleotide sequence into an amino acid sequence. 
      * This results in 6 different reading frames: three on the forward strand and three on the reverse complementary strand.
+     * The codons are translated by table, see SixFrameTranslator.
      * 
      * 
      * @return An Array of sex FastaSequences
      */
     public BioSequence[] translate2Protein(){
-    	BioSequence[] sixFrameTranslation = new BioSequence[6];
-    	
-    	StringBuilder seq = new StringBuilder(this.getSequence());
-    	
-    	int nucleotideLength = seq.length();
-    	
-    	StringBuilder seq1 = new StringBuilder(nucleotideLength/3);
-    	StringBuilder seq2 = new StringBuilder(nucleotideLength/3);
-    	StringBuilder seq3 = new StringBuilder(nucleotideLength/3);
-    	StringBuilder seq4 = new StringBuilder(nucleotideLength/3);
-    	StringBuilder seq5 = new StringBuilder(nucleotideLength/3);
-    	StringBuilder seq6 = new StringBuilder(nucleotideLength/3);
-    	
-    	int terminus = seq.length()%3;
-    	int end=0;
-    	
-    	if(terminus ==0){end=-2;}
-    	if(terminus ==1){end=-3;}
-    	if(terminus ==2){end=-4;}   	    	
-    	for (int i = 0; i< seq.length()+end; i=i+3){
-    		seq1.append(this.translateTriplet(seq.substring(i, i+3)));
-    	}
-    	sixFrameTranslation[0]= new BioSequence(this.getIdentifier()+"_frame+0", seq1);
-    	//System.out.println("translated first");
-    	if(terminus ==0){end=-4;}
-    	if(terminus ==1){end=-2;}
-    	if(terminus ==2){end=-3;}
-    	for (int i = 1; i< seq.length()+end; i=i+3){
-    		seq2.append(this.translateTriplet(seq.substring(i, i+3)));
-    	}
-    	sixFrameTranslation[1]= new BioSequence(this.getIdentifier()+"_frame+1", seq2);
-    	
-    	if(terminus ==0){end=-3;}
-    	if(terminus ==1){end=-4;}
-    	if(terminus ==2){end=-2;}
-    	for (int i = 2; i< seq.length()+end; i=i+3){
-    		seq3.append(this.translateTriplet(seq.substring(i, i+3)));
-    	}
-    	sixFrameTranslation[2]= new BioSequence(this.getIdentifier()+"_frame+2", seq3);
-    	
-    	
-    	seq = new StringBuilder(this.getReverseComplementarySequence());
-    	
-    	if(terminus ==0){end=-2;}
-    	if(terminus ==1){end=-3;}
-    	if(terminus ==2){end=-4;}   	    	
-    	for (int i = 0; i< seq.length()+end; i=i+3){
-    		seq4.append(this.translateTriplet(seq.substring(i, i+3)));
-    	}
-    	sixFrameTranslation[3]= new BioSequence(this.getIdentifier()+"_frame-0", seq4);
-    	
-    	if(terminus ==0){end=-4;}
-    	if(terminus ==1){end=-2;}
-    	if(terminus ==2){end=-3;}
-    	for (int i = 1; i< seq.length()+end; i=i+3){
-    		seq5.append(this.translateTriplet(seq.substring(i, i+3)));
-    	}
-    	sixFrameTranslation[4]= new BioSequence(this.getIdentifier()+"_frame-1", seq5);
-    	
-    	if(terminus ==0){end=-3;}
-    	if(terminus ==1){end=-4;}
-    	if(terminus ==2){end=-2;}
-    	for (int i = 2; i< seq.length()+end; i=i+3){
-    		seq6.append(this.translateTriplet(seq.substring(i, i+3)));
-    	}
-    	sixFrameTranslation[5]= new BioSequence(this.getIdentifier()+"_frame-2", seq6);
-    	
-    	
-    	
-    	
-    	return sixFrameTranslation;
+    	return SixFrameTranslator.translate(this);
     }
 
     
     public char translateTriplet(String s)throws StringIndexOutOfBoundsException{
     	
-    	char aa = 'X';
     	if(s.length()!= 3){
     		throw new StringIndexOutOfBoundsException ("Length of the inputString has to be 3. Otherwise it is not a triplet and cannot be translated.");
     	}
     	
-    	if(this.geneticCode == null){
-    		this.loadGeneticCodeTable();
-    	}
-    	s = s.toUpperCase();
-    	if( this.geneticCode.containsKey(s)){
-    		return this.geneticCode.get(s).charAt(0);
-    	}
-    	
-    	
-    	return aa;
+    	return SixFrameTranslator.translate(s.charAt(0), s.charAt(1), s.charAt(2));
     }
     
     
@@ -389,129 +389,60 @@ public class BioSequence implements Comparable<BioSequence> {
    
 
     public String getReverseComplementarySequence(){
-    	StringBuilder seq = new StringBuilder(getTranscribeSequence());
-    	
-    	return seq.reverse().toString();
+    	char[] c = new char[this.length];
+    	for( int i = 0; i< this.length; i++){
+    		c[this.length - 1 - i] = (char) (COMPLEMENT[this.sequence[i] & 0xff] & 0xff);
+    	}
+    	return new String(c);
     }
     
     /**
      * 
      * @return
+     * 		the complement of the sequence, not reversed. Lower case stays lower case, characters other than A, C, G and T are kept.
      */
     public String getTranscribeSequence() {
-        StringBuilder seq = new StringBuilder(getSequence());
-        StringBuilder transcribe = new StringBuilder(seq.length());
-
-        for (int i = 0; i < seq.length(); i++) {
-            char t = seq.charAt(i);
-            switch (t) {
-            case 'A':
-                transcribe.append('T');
-                break;
-            case 'T':
-                transcribe.append('A');
-                break;
-            case 'G':
-                transcribe.append('C');
-                break;
-            case 'C':
-                transcribe.append('G');
-                break;
-            case 'a':
-                transcribe.append('t');
-                break;
-            case 't':
-                transcribe.append('a');
-                break;
-            case 'g':
-                transcribe.append('c');
-                break;
-            case 'c':
-                transcribe.append('g');
-                break;    
-            default:
-            	transcribe.append(t);
-                break;
-            }
-        }
-        return transcribe.toString();
+    	char[] c = new char[this.length];
+    	for( int i = 0; i< this.length; i++){
+    		c[i] = (char) (COMPLEMENT[this.sequence[i] & 0xff] & 0xff);
+    	}
+    	return new String(c);
+    }
+    
+    /**
+     * Reverse complement the sequence in place. The quality is reversed along.
+     */
+    public void reverseComplement(){
+    	for( int i = 0, j = this.length - 1; i <= j; i++, j--){
+    		byte b = COMPLEMENT[this.sequence[i] & 0xff];
+    		this.sequence[i] = COMPLEMENT[this.sequence[j] & 0xff];
+    		this.sequence[j] = b;
+    	}
+    	if( this.quality != null){
+    		for( int i = 0, j = this.quality.length - 1; i < j; i++, j--){
+    			int q = this.quality[i];
+    			this.quality[i] = this.quality[j];
+    			this.quality[j] = q;
+    		}
+    	}
+    }
+    
+    /**
+     * Change all letters of the sequence to upper case.
+     */
+    public void toUpperCase(){
+    	for( int i = 0; i< this.length; i++){
+    		this.sequence[i] = UPPER_CASE[this.sequence[i] & 0xff];
+    	}
     }
     
     
+    /**
+     * 
+     * @deprecated codons are translated by the table in SixFrameTranslator, there is nothing to load.
+     */
+    @Deprecated
     public void loadGeneticCodeTable(){
-    	this.geneticCode = new Hashtable<String,String>();
-    	
-    	
-    	this.geneticCode.put("AAA", "K");
-    	this.geneticCode.put("AAT", "N");
-    	this.geneticCode.put("AAG", "K");
-    	this.geneticCode.put("AAC", "N");
-    	this.geneticCode.put("ATA", "I");
-    	this.geneticCode.put("ATT", "I");
-    	this.geneticCode.put("ATG", "M");
-    	this.geneticCode.put("ATC", "I");
-    	this.geneticCode.put("AGA", "R");
-    	this.geneticCode.put("AGT", "S");
-    	this.geneticCode.put("AGG", "R");
-    	this.geneticCode.put("AGC", "S");
-    	this.geneticCode.put("ACA", "T");
-    	this.geneticCode.put("ACT", "T");
-    	this.geneticCode.put("ACG", "T");
-    	this.geneticCode.put("ACC", "T");
-    	this.geneticCode.put("TAA", "*");
-    	this.geneticCode.put("TAT", "Y");
-    	this.geneticCode.put("TAG", "*");
-    	this.geneticCode.put("TAC", "Y");
-    	this.geneticCode.put("TTA", "L");
-    	this.geneticCode.put("TTT", "F");
-    	this.geneticCode.put("TTG", "L");
-    	this.geneticCode.put("TTC", "F");
-    	this.geneticCode.put("TGA", "*");
-    	this.geneticCode.put("TGT", "C");
-    	this.geneticCode.put("TGG", "W");
-    	this.geneticCode.put("TGC", "C");
-    	this.geneticCode.put("TCA", "S");
-    	this.geneticCode.put("TCT", "S");
-    	this.geneticCode.put("TCG", "S");
-    	this.geneticCode.put("TCC", "S");
-    	this.geneticCode.put("GAA", "E");
-    	this.geneticCode.put("GAT", "D");
-    	this.geneticCode.put("GAG", "E");
-    	this.geneticCode.put("GAC", "D");
-    	this.geneticCode.put("GTA", "V");
-    	this.geneticCode.put("GTT", "V");
-    	this.geneticCode.put("GTG", "V");
-    	this.geneticCode.put("GTC", "V");
-    	this.geneticCode.put("GGA", "G");
-    	this.geneticCode.put("GGT", "G");
-    	this.geneticCode.put("GGG", "G");
-    	this.geneticCode.put("GGC", "G");
-    	this.geneticCode.put("GCA", "A");
-    	this.geneticCode.put("GCT", "A");
-    	this.geneticCode.put("GCG", "A");
-    	this.geneticCode.put("GCC", "A");
-    	this.geneticCode.put("CAA", "Q");
-    	this.geneticCode.put("CAT", "H");
-    	this.geneticCode.put("CAG", "Q");
-    	this.geneticCode.put("CAC", "H");
-    	this.geneticCode.put("CTA", "L");
-    	this.geneticCode.put("CTT", "L");
-    	this.geneticCode.put("CTG", "L");
-    	this.geneticCode.put("CTC", "L");
-    	this.geneticCode.put("CGA", "R");
-    	this.geneticCode.put("CGT", "R");
-    	this.geneticCode.put("CGG", "R");
-    	this.geneticCode.put("CGC", "R");
-    	this.geneticCode.put("CCA", "P");
-    	this.geneticCode.put("CCT", "P");
-    	this.geneticCode.put("CCG", "P");
-    	this.geneticCode.put("CCC", "P");
-    	
-    	
-    	
-    	
-    	
-    	
     }
 
     
@@ -558,7 +489,10 @@ public class BioSequence implements Comparable<BioSequence> {
      */
     public void changeBase(int position, String character){
     	if( character.length() ==1){
-    		sequence.setCharAt(position-1, character.charAt(0));
+    		if( position < 1 || position > this.length){
+    			throw new StringIndexOutOfBoundsException("Position " + position + " is not in a sequence of length " + this.length);
+    		}
+    		this.sequence[position-1] = (byte) character.charAt(0);
     	}else{
     		System.err.println("did not change base at position "+ position+". Length of input String should be 1.");
     	}
@@ -569,11 +503,14 @@ public class BioSequence implements Comparable<BioSequence> {
     }
     
     public void trimSequence(int numberOf5PrimeBasesToClip, int numberOf3PrimeBasesToClip){
-    	if( numberOf5PrimeBasesToClip + numberOf3PrimeBasesToClip > sequence.length()){
-    		this.sequence = new StringBuilder("");
+    	if( numberOf5PrimeBasesToClip + numberOf3PrimeBasesToClip > this.length){
+    		this.sequence = new byte[0];
+    		this.length = 0;
     		this.quality = new int[0];
     	}else{
-    		this.sequence = new StringBuilder(this.sequence.substring(numberOf5PrimeBasesToClip, this.sequence.length()-numberOf3PrimeBasesToClip));
+    		int newLength = this.length - numberOf5PrimeBasesToClip - numberOf3PrimeBasesToClip;
+    		System.arraycopy(this.sequence, numberOf5PrimeBasesToClip, this.sequence, 0, newLength);
+    		this.length = newLength;
     		if(this.quality != null){
     			int[] qual = new int[this.quality.length-numberOf5PrimeBasesToClip-numberOf3PrimeBasesToClip];
         		
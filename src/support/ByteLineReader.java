@@ -0,0 +1,164 @@
+package support;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * Reads lines as byte ranges of a buffer instead of Strings. This is for parsers of large tab separated files that work on the bytes and do not want to create objects per line.
+ * A line is valid until the next call of nextLine(). Line breaks (\n or \r\n) are not part of the line.
+ *
+ * @author steuernb
+ *
+ */
+public class ByteLineReader {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	InputStream in;
+	byte[] buffer;
+	int position;
+	int limit;
+	boolean endOfInput;
+
+	/**
+	 * stream offset of buffer[0]
+	 */
+	long bufferOffset;
+
+	int lineStart;
+	int lineEnd;
+
+
+
+	public ByteLineReader(InputStream in){
+		this(in, BUFFER_SIZE);
+	}
+
+	/**
+	 *
+	 * @param in
+	 * @param bufferSize
+	 * 		initial size of the buffer. Larger buffers mean fewer reads from the stream.
+	 */
+	public ByteLineReader(InputStream in, int bufferSize){
+		this.in = in;
+		this.buffer = new byte[Math.max(1, bufferSize)];
+		this.position = 0;
+		this.limit = 0;
+		this.endOfInput = false;
+		this.bufferOffset = 0;
+	}
+
+
+
+	/**
+	 *
+	 * Find the next line in the buffer, refilling it from the stream as needed.
+	 *
+	 * @return
+	 * 		false if the end of the stream is reached.
+	 * @throws IOException
+	 */
+	public boolean nextLine()throws IOException{
+		int scan = this.position;
+		while( true){
+			for( ; scan < this.limit; scan++){
+				if( this.buffer[scan] == '\n'){
+					this.setLine(this.position, scan);
+					this.position = scan + 1;
+					return true;
+				}
+			}
+			if( this.endOfInput){
+				if( this.position < this.limit){
+					this.setLine(this.position, this.limit);
+					this.position = this.limit;
+					return true;
+				}
+				return false;
+			}
+			scan = scan - this.position;
+			this.fill();
+			scan = scan + this.position;
+		}
+	}
+
+	private void setLine(int start, int end){
+		if( end > start && this.buffer[end - 1] == '\r'){
+			end--;
+		}
+		this.lineStart = start;
+		this.lineEnd = end;
+	}
+
+
+	/**
+	 * Move the unread bytes to the front of the buffer and read more. The buffer grows if a single line does not fit.
+	 *
+	 * @throws IOException
+	 */
+	private void fill()throws IOException{
+		int rest = this.limit - this.position;
+		if( this.position > 0){
+			System.arraycopy(this.buffer, this.position, this.buffer, 0, rest);
+			this.bufferOffset = this.bufferOffset + this.position;
+		}else if( rest == this.buffer.length){
+			byte[] b = new byte[this.buffer.length * 2];
+			System.arraycopy(this.buffer, 0, b, 0, rest);
+			this.buffer = b;
+		}
+		this.position = 0;
+		this.limit = rest;
+		int n = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+		if( n < 0){
+			this.endOfInput = true;
+		}else{
+			this.limit = this.limit + n;
+		}
+	}
+
+
+
+	/**
+	 * @return
+	 * 		the buffer that holds the current line. This can change with every call of nextLine().
+	 */
+	public byte[] getBuffer(){
+		return this.buffer;
+	}
+
+	/**
+	 * @return
+	 * 		index of the first byte of the current line in the buffer.
+	 */
+	public int getLineStart(){
+		return this.lineStart;
+	}
+
+	/**
+	 * @return
+	 * 		index after the last byte of the current line in the buffer.
+	 */
+	public int getLineEnd(){
+		return this.lineEnd;
+	}
+
+	public int getLineLength(){
+		return this.lineEnd - this.lineStart;
+	}
+
+	/**
+	 * @return
+	 * 		number of bytes of the stream before the current line.
+	 */
+	public long getLineOffset(){
+		return this.bufferOffset + this.lineStart;
+	}
+
+	public void close()throws IOException{
+		this.in.close();
+	}
+
+}
@@ -0,0 +1,68 @@
+package support;
+
+
+/**
+ *
+ * A read only view of a range of a byte array as characters, one byte per character. This hands out sequences that were read as bytes, e.g. by the FastaReader, without decoding or copying them.
+ * The view is only valid as long as the bytes are not overwritten.
+ *
+ * @author steuernb
+ *
+ */
+public class ByteSequence implements CharSequence {
+
+	byte[] bytes;
+	int offset;
+	int length;
+
+
+
+	public ByteSequence(byte[] bytes, int offset, int length){
+		this.bytes = bytes;
+		this.offset = offset;
+		this.length = length;
+	}
+
+
+
+	public int length(){
+		return this.length;
+	}
+
+	public char charAt(int index){
+		if( index < 0 || index >= this.length){
+			throw new IndexOutOfBoundsException("Index " + index + " of a sequence of length " + this.length);
+		}
+		return (char) (this.bytes[this.offset + index] & 0xff);
+	}
+
+	public CharSequence subSequence(int start, int end){
+		if( start < 0 || end > this.length || start > end){
+			throw new IndexOutOfBoundsException("Range " + start + " to " + end + " of a sequence of length " + this.length);
+		}
+		return new ByteSequence(this.bytes, this.offset + start, end - start);
+	}
+
+	/**
+	 * @return
+	 * 		a copy of the bytes as a String.
+	 */
+	public String toString(){
+		char[] c = new char[this.length];
+		for( int i = 0; i< this.length; i++){
+			c[i] = (char) (this.bytes[this.offset + i] & 0xff);
+		}
+		return new String(c);
+	}
+
+
+
+	public byte[] getBytes(){
+		return this.bytes;
+	}
+
+	public int getOffset(){
+		return this.offset;
+	}
+
+}
@@ -0,0 +1,149 @@
+package support;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+/**
+ *
+ * Opens input files that may be compressed. The file is opened once, the first bytes are looked at through the buffer and the stream is decompressed accordingly:
+ * BGZF (blocked gzip as written by bgzip) is decompressed block-parallel on several threads, any other gzip with GZIPInputStream, everything else is read as is.
+ *
+ * @author steuernb
+ *
+ */
+public class CompressedInput {
+
+	public static final int PLAIN = 0;
+	public static final int GZIP = 1;
+	public static final int BGZF = 2;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	static int threads = Runtime.getRuntime().availableProcessors();
+
+
+
+	/**
+	 *
+	 * Set how many blocks of one BGZF input are decompressed at the same time. The blocks are inflated on the pool shared by all BGZF streams.
+	 *
+	 * @param numThreads
+	 */
+	public static void setThreads(int numThreads){
+		threads = Math.max(1, numThreads);
+	}
+
+
+	/**
+	 *
+	 * Open a file for reading, decompressing it if needed.
+	 *
+	 * @param inputFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream open(File inputFile)throws IOException{
+		return open(new BufferedInputStream(new FileInputStream(inputFile), BUFFER_SIZE));
+	}
+
+	/**
+	 *
+	 * Decompress an already opened stream if needed.
+	 *
+	 * @param in
+	 * 		a stream that has not been read from yet.
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream open(BufferedInputStream in)throws IOException{
+		int format = detect(in);
+		if( format == BGZF){
+			return new ParallelBgzfInputStream(in, threads);
+		}
+		if( format == GZIP){
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		}
+		return in;
+	}
+
+	/**
+	 *
+	 * Open a text file for reading lines, decompressing it if needed.
+	 *
+	 * @param inputFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static BufferedReader openReader(File inputFile)throws IOException{
+		return new BufferedReader(new InputStreamReader(open(inputFile)), BUFFER_SIZE);
+	}
+
+	public static BufferedReader openReader(BufferedInputStream in)throws IOException{
+		return new BufferedReader(new InputStreamReader(open(in)), BUFFER_SIZE);
+	}
+
+
+
+	/**
+	 *
+	 * Look at the first bytes of a stream without consuming them.
+	 *
+	 * @param in
+	 * @param length
+	 * @return
+	 * 		up to length bytes. Fewer if the stream is shorter.
+	 * @throws IOException
+	 */
+	public static byte[] peek(BufferedInputStream in, int length)throws IOException{
+		in.mark(length);
+		byte[] bytes = new byte[length];
+		int n = 0;
+		while( n < length){
+			int r = in.read(bytes, n, length - n);
+			if( r < 0){
+				break;
+			}
+			n = n + r;
+		}
+		in.reset();
+		if( n < length){
+			byte[] b = new byte[n];
+			System.arraycopy(bytes, 0, b, 0, n);
+			return b;
+		}
+		return bytes;
+	}
+
+
+	/**
+	 *
+	 * Detect the compression of a stream from its first bytes.
+	 *
+	 * @param in
+	 * @return
+	 * 		PLAIN, GZIP or BGZF
+	 * @throws IOException
+	 */
+	public static int detect(BufferedInputStream in)throws IOException{
+		byte[] bytes = peek(in, 18);
+		if( bytes.length < 2){
+			return PLAIN;
+		}
+		int head = ((int) bytes[0] & 0xff) | ((bytes[1] << 8) & 0xff00);
+		if( head != GZIPInputStream.GZIP_MAGIC){
+			return PLAIN;
+		}
+		if( ParallelBgzfInputStream.isBgzfHeader(bytes)){
+			return BGZF;
+		}
+		return GZIP;
+	}
+
+}
@@ -0,0 +1,301 @@
+package support;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ *
+ * The index of a fasta file in the format of samtools faidx (.fai). Per entry it has the name, the number of bases, the offset of the first base, the bases per line and the bytes per line including the line break.
+ * With it, the bases of an entry are at known positions of the file and can be read without parsing the entries before. An index that exists next to the fasta, e.g. from samtools, is reused.
+ *
+ * Only uncompressed files where all lines of an entry but the last have the same length can be indexed.
+ *
+ * @author steuernb
+ *
+ */
+public class FastaIndex {
+
+	public static final String EXTENSION = ".fai";
+
+	ArrayList<Entry> entries;
+	HashMap<String, Entry> names;
+
+
+
+	private FastaIndex(){
+		this.entries = new ArrayList<Entry>();
+		this.names = new HashMap<String, Entry>();
+	}
+
+	private void add(Entry entry){
+		this.entries.add(entry);
+		if( !this.names.containsKey(entry.name)){
+			this.names.put(entry.name, entry);
+		}
+	}
+
+
+
+	public static File getIndexFile(File fastaFile){
+		return new File(fastaFile.getPath() + EXTENSION);
+	}
+
+
+
+	/**
+	 *
+	 * Get the index of a fasta file. An index next to the file is used if it is not older than the file and fits its length, otherwise the index is built and written next to the file.
+	 *
+	 * @param fastaFile
+	 * @return
+	 * 		the index, or null if the file cannot be indexed because it is compressed or has lines of different lengths.
+	 * @throws IOException
+	 */
+	public static FastaIndex load(File fastaFile)throws IOException{
+		BufferedInputStream probe = new BufferedInputStream(new FileInputStream(fastaFile));
+		int compression = CompressedInput.detect(probe);
+		probe.close();
+		if( compression != CompressedInput.PLAIN){
+			return null;
+		}
+
+		File indexFile = getIndexFile(fastaFile);
+		if( indexFile.exists() && indexFile.lastModified() >= fastaFile.lastModified()){
+			FastaIndex index = read(indexFile);
+			//an empty index only fits an empty file. Otherwise it was left by an interrupted run and is rebuilt.
+			if( index.entries.isEmpty() ? fastaFile.length() == 0 : index.entries.get(index.entries.size() - 1).getEnd() <= fastaFile.length()){
+				return index;
+			}
+		}
+
+		FastaIndex index = build(fastaFile);
+		if( index != null){
+			try{
+				index.write(indexFile);
+			}catch(IOException e){
+				System.out.println("Could not write " + indexFile.getAbsolutePath() + ". The index is kept in memory.");
+			}
+		}
+		return index;
+	}
+
+
+
+	/**
+	 *
+	 * Read a .fai file.
+	 *
+	 * @param indexFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static FastaIndex read(File indexFile)throws IOException{
+		FastaIndex index = new FastaIndex();
+		BufferedReader in = new BufferedReader(new FileReader(indexFile));
+		for (String inputline = in.readLine(); inputline != null; inputline = in.readLine()) {
+			if( inputline.length() == 0){
+				continue;
+			}
+			String[] split = inputline.split("\t");
+			if( split.length < 5){
+				in.close();
+				throw new IOException("Line in " + indexFile.getAbsolutePath() + " has less than 5 columns: " + inputline);
+			}
+			index.add(new Entry(split[0], Long.parseLong(split[1]), Long.parseLong(split[2]), Integer.parseInt(split[3]), Integer.parseInt(split[4])));
+		}
+		in.close();
+		return index;
+	}
+
+
+
+	public void write(File indexFile)throws IOException{
+		BufferedWriter out = new BufferedWriter(new FileWriter(indexFile));
+		for( int i = 0; i< this.entries.size(); i++){
+			Entry e = this.entries.get(i);
+			out.write(e.name + "\t" + e.length + "\t" + e.offset + "\t" + e.lineBases + "\t" + e.lineWidth);
+			out.newLine();
+		}
+		out.close();
+	}
+
+
+
+	/**
+	 *
+	 * Index an uncompressed fasta file in one pass.
+	 *
+	 * @param fastaFile
+	 * @return
+	 * 		the index, or null if the lines of an entry have different lengths or contain whitespace.
+	 * @throws IOException
+	 */
+	public static FastaIndex build(File fastaFile)throws IOException{
+		System.out.println("Indexing " + fastaFile.getAbsolutePath());
+
+		FastaIndex index = new FastaIndex();
+		ByteLineReader in = new ByteLineReader(new FileInputStream(fastaFile), 1 << 20);
+		Entry entry = null;
+		long firstLine = -1;
+		long lines = 0;
+		boolean ended = false;
+		try{
+			while( true){
+				boolean hasLine = in.nextLine();
+				long offset = hasLine ? in.getLineOffset() : fastaFile.length();
+
+				//the offset of the first base and the line width are only known at the line after.
+				if( entry != null && entry.offset < 0){
+					entry.offset = offset;
+				}
+				if( entry != null && firstLine >= 0 && entry.lineWidth < 0){
+					entry.lineWidth = (int) (offset - firstLine);
+				}
+				if( !hasLine){
+					break;
+				}
+
+				byte[] b = in.getBuffer();
+				int start = in.getLineStart();
+				int length = in.getLineLength();
+				if( length > 0 && b[start] == '>'){
+					if( entry != null){
+						index.add(entry.finish());
+					}
+					int end = start + 1;
+					while( end < in.getLineEnd() && b[end] != ' ' && b[end] != '\t'){
+						end++;
+					}
+					entry = new Entry(new String(b, start + 1, end - start - 1, "ISO-8859-1"), 0, -1, -1, -1);
+					firstLine = -1;
+					lines = 0;
+					ended = false;
+					continue;
+				}
+				if( entry == null){
+					continue;
+				}
+				if( length == 0){
+					ended = true;
+					continue;
+				}
+				for( int i = start; i < start + length; i++){
+					if( (b[i] & 0xff) <= ' '){
+						System.out.println("Entry " + entry.name + " has whitespace in a sequence line, it is read without index.");
+						return null;
+					}
+				}
+				if( entry.lineBases < 0){
+					entry.lineBases = length;
+					firstLine = offset;
+				}else if( ended || length > entry.lineBases || offset != firstLine + lines * entry.lineWidth){
+					System.out.println("Entry " + entry.name + " has lines of different length, it is read without index.");
+					return null;
+				}
+				if( length < entry.lineBases){
+					ended = true;
+				}
+				entry.length = entry.length + length;
+				lines++;
+			}
+		}finally{
+			in.close();
+		}
+		if( entry != null){
+			index.add(entry.finish());
+		}
+		return index;
+	}
+
+
+
+	/**
+	 * @return
+	 * 		the first entry with this name, or null.
+	 */
+	public Entry get(String name){
+		return this.names.get(name);
+	}
+
+	/**
+	 * @return
+	 * 		the entries in the order of the file.
+	 */
+	public ArrayList<Entry> getEntries(){
+		return this.entries;
+	}
+
+	public int size(){
+		return this.entries.size();
+	}
+
+
+
+	/**
+	 * One line of the index.
+	 */
+	public static class Entry {
+		String name;
+		long length;
+		long offset;
+		int lineBases;
+		int lineWidth;
+
+		Entry(String name, long length, long offset, int lineBases, int lineWidth){
+			this.name = name;
+			this.length = length;
+			this.offset = offset;
+			this.lineBases = lineBases;
+			this.lineWidth = lineWidth;
+		}
+
+		/**
+		 * Entries without bases have no line length.
+		 */
+		Entry finish(){
+			if( this.lineBases < 0){
+				this.lineBases = 0;
+				this.lineWidth = 0;
+			}
+			return this;
+		}
+
+		public String getName(){
+			return this.name;
+		}
+
+		public long getLength(){
+			return this.length;
+		}
+
+		/**
+		 * @return
+		 * 		the offset of the first base in the file.
+		 */
+		public long getOffset(){
+			return this.offset;
+		}
+
+		/**
+		 * @return
+		 * 		the offset after the last base in the file.
+		 */
+		public long getEnd(){
+			if( this.length == 0){
+				return this.offset;
+			}
+			long lines = (this.length - 1) / this.lineBases;
+			return this.offset + lines * this.lineWidth + (this.length - lines * this.lineBases);
+		}
+	}
+
+}
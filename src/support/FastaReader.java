@@ -1,112 +1,424 @@
 package support;
 
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.zip.GZIPInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Set;
 
 /**
- * 
- * 
+ *
+ * Reads fasta files, plain or gzipped. The file is parsed as bytes, lines come from a ByteLineReader and are never decoded to Strings.
+ *
+ * There are three ways to read:
+ * readEntry() returns a BioSequence as before.
+ * next() reads the next entry into a buffer of the reader. getSequence() is a view of the buffer that is valid until the next call, so nothing is copied.
+ * nextHeader() only reads the header. The bases are then read with readSequence(), in pieces with readBases(), or skipped by the next call of nextHeader(). This is for very long sequences and for picking a few entries out of a large file.
+ *
+ * Whitespace in sequence lines is dropped. The identifier is the header up to the first space or tab, the description is the rest of the header after it.
+ *
+ * A reader from select() only returns the entries with given identifiers. If the file can be indexed, see FastaIndex, it reads them with positioned reads and nothing else of the file is read.
+ * The description is not in the index, so it is empty for entries read that way.
+ *
  * @author steuernb
  *
  */
 public class FastaReader implements BioSequenceReader {
 
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	ByteLineReader in;
+
+	/**
+	 * true if the current line of the ByteLineReader is a header that has not been parsed yet.
+	 */
+	boolean pendingHeader;
+
+	/**
+	 * the unread part of the current sequence line.
+	 */
+	int lineStart;
+	int lineEnd;
+	boolean inSequence;
+
+	String identifier;
+	String description;
+	byte[] sequence;
+	int length;
+
+	/**
+	 * identifiers of the entries to return, null for all entries.
+	 */
+	Set<String> selection;
+
+	/**
+	 * for reading selected entries through the index: the entries, the next one and the part of the file with the bases of the current entry.
+	 */
+	FileChannel channel;
+	ArrayList<FastaIndex.Entry> entries;
+	int nextEntry;
+	long rawPosition;
+	long rawEnd;
+	ByteBuffer raw;
+
 
-	BufferedReader in;
-	String lastLine;
-	
-	
 	public FastaReader(File inputFile)throws IOException{
-		
-		this.initialize(inputFile);
+		this(CompressedInput.open(inputFile));
+	}
+
+	/**
+	 *
+	 * @param in
+	 * 		a stream with fasta, already decompressed.
+	 * @throws IOException
+	 */
+	public FastaReader(InputStream in)throws IOException{
+		this.in = new ByteLineReader(in, BUFFER_SIZE);
+		this.sequence = new byte[1 << 16];
+		this.length = 0;
+		this.inSequence = false;
+		this.pendingHeader = this.findHeader();
+	}
+
+	private FastaReader(File fastaFile, FastaIndex index, Set<String> identifiers)throws IOException{
+		this.channel = new RandomAccessFile(fastaFile, "r").getChannel();
+		this.entries = new ArrayList<FastaIndex.Entry>();
+		for( int i = 0; i< index.size(); i++){
+			FastaIndex.Entry entry = index.getEntries().get(i);
+			if( identifiers.contains(entry.getName())){
+				this.entries.add(entry);
+			}
+		}
+		this.nextEntry = 0;
+		this.raw = ByteBuffer.allocate(1 << 20);
+		this.sequence = new byte[1 << 16];
+		this.length = 0;
+		this.inSequence = false;
+		this.selection = identifiers;
+	}
+
+
+
+	/**
+	 *
+	 * A reader for only some entries of a fasta file, in the order of the file. An uncompressed file is indexed, or its index is reused, and the entries are read directly.
+	 * A compressed file is read from the start, but the sequences of the other entries are skipped.
+	 *
+	 * @param fastaFile
+	 * @param identifiers
+	 * @return
+	 * @throws IOException
+	 */
+	public static FastaReader select(File fastaFile, Set<String> identifiers)throws IOException{
+		FastaIndex index = FastaIndex.load(fastaFile);
+		if( index != null){
+			return new FastaReader(fastaFile, index, identifiers);
+		}
+		FastaReader reader = new FastaReader(fastaFile);
+		reader.selection = identifiers;
+		return reader;
+	}
+
+
+
+	/**
+	 *
+	 * Move to the next line that starts with a ">".
+	 *
+	 * @return
+	 * 		false if the end of the file is reached.
+	 * @throws IOException
+	 */
+	private boolean findHeader()throws IOException{
+		while( this.in.nextLine()){
+			if( this.isHeader()){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isHeader(){
+		byte[] b = this.in.getBuffer();
+		int i = this.in.getLineStart();
+		int end = this.in.getLineEnd();
+		while( i < end && isWhitespace(b[i])){
+			i++;
+		}
+		return i < end && b[i] == '>';
+	}
+
+	private static boolean isWhitespace(byte b){
+		return b == ' ' || b == '\t' || b == '\r' || b == 0x0b || b == '\f';
+	}
+
+
+
+	/**
+	 *
+	 * Read the header of the next entry. Bases of the current entry that have not been read are skipped.
+	 *
+	 * @return
+	 * 		false if there are no more entries.
+	 * @throws IOException
+	 */
+	public boolean nextHeader()throws IOException{
+		if( this.channel != null){
+			if( this.nextEntry == this.entries.size()){
+				this.inSequence = false;
+				return false;
+			}
+			FastaIndex.Entry entry = this.entries.get(this.nextEntry++);
+			this.identifier = entry.getName();
+			this.description = "";
+			this.rawPosition = entry.getOffset();
+			this.rawEnd = entry.getEnd();
+			this.inSequence = true;
+			this.length = 0;
+			return true;
+		}
+		do{
+			if( !this.readHeader()){
+				return false;
+			}
+		}while( this.selection != null && !this.selection.contains(this.identifier));
+		return true;
+	}
+
+	private boolean readHeader()throws IOException{
+		if( !this.pendingHeader){
+			this.inSequence = false;
+			this.pendingHeader = this.findHeader();
+			if( !this.pendingHeader){
+				return false;
+			}
+		}
+		this.pendingHeader = false;
+
+		byte[] b = this.in.getBuffer();
+		int start = this.in.getLineStart();
+		int end = this.in.getLineEnd();
+		while( b[start] != '>'){
+			start++;
+		}
+		start++;
+		int space = start;
+		while( space < end && b[space] != ' ' && b[space] != '\t'){
+			space++;
+		}
+		this.identifier = toString(b, start, space);
+		this.description = space < end ? toString(b, space + 1, end) : "";
+
+		this.inSequence = true;
+		this.lineStart = 0;
+		this.lineEnd = 0;
+		this.length = 0;
+		return true;
 	}
-	
-	public FastaReader(BufferedReader in)throws IOException{
-		
-		this.in = in;
-		
-		this.lastLine = in.readLine();
-		while(lastLine != null && !lastLine.trim().startsWith(">")){
-			this.lastLine=in.readLine();
+
+	private static String toString(byte[] b, int start, int end){
+		char[] c = new char[end - start];
+		for( int i = 0; i< c.length; i++){
+			c[i] = (char) (b[start + i] & 0xff);
+		}
+		return new String(c);
+	}
+
+
+
+	/**
+	 *
+	 * Read bases of the current entry, after nextHeader().
+	 *
+	 * @param b
+	 * @param offset
+	 * @param length
+	 * 		maximum number of bases to read.
+	 * @return
+	 * 		the number of bases read, -1 at the end of the entry.
+	 * @throws IOException
+	 */
+	public int readBases(byte[] b, int offset, int length)throws IOException{
+		if( this.channel != null){
+			return this.readIndexedBases(b, offset, length);
+		}
+		int n = 0;
+		while( n < length && this.inSequence){
+			if( this.lineStart == this.lineEnd){
+				if( !this.in.nextLine()){
+					this.inSequence = false;
+					break;
+				}
+				if( this.isHeader()){
+					this.inSequence = false;
+					this.pendingHeader = true;
+					break;
+				}
+				this.lineStart = this.in.getLineStart();
+				this.lineEnd = this.in.getLineEnd();
+			}
+			//bases are copied unconditionally, whitespace is overwritten by the next base.
+			byte[] line = this.in.getBuffer();
+			int i = this.lineStart;
+			int end = Math.min(this.lineEnd, i + length - n);
+			int j = offset + n;
+			for( ; i < end; i++){
+				byte c = line[i];
+				b[j] = c;
+				j = (c & 0xff) > ' ' ? j + 1 : j;
+			}
+			n = j - offset;
+			this.lineStart = i;
+		}
+		return n == 0 && length > 0 ? -1 : n;
+	}
+
+	/**
+	 * Read the bytes of the current entry from the file and drop the line breaks.
+	 */
+	private int readIndexedBases(byte[] b, int offset, int length)throws IOException{
+		int n = 0;
+		while( n == 0 && length > 0 && this.rawPosition < this.rawEnd){
+			int want = (int) Math.min(Math.min(length, this.raw.capacity()), this.rawEnd - this.rawPosition);
+			this.raw.clear();
+			this.raw.limit(want);
+			while( this.raw.hasRemaining()){
+				if( this.channel.read(this.raw, this.rawPosition + this.raw.position()) < 0){
+					throw new IOException("Fasta file ends before entry " + this.identifier + ". The index " + FastaIndex.EXTENSION + " may be out of date.");
+				}
+			}
+			this.rawPosition = this.rawPosition + want;
+			byte[] r = this.raw.array();
+			int j = offset;
+			for( int i = 0; i< want; i++){
+				byte c = r[i];
+				b[j] = c;
+				j = (c & 0xff) > ' ' ? j + 1 : j;
+			}
+			n = j - offset;
+		}
+		if( n == 0 && length > 0){
+			this.inSequence = false;
+			return -1;
 		}
-				
+		return n;
+	}
+
+
+
+	/**
+	 *
+	 * Read the next entry into the buffer of the reader.
+	 *
+	 * @return
+	 * 		false if there are no more entries.
+	 * @throws IOException
+	 */
+	public boolean next()throws IOException{
+		if( !this.nextHeader()){
+			return false;
+		}
+		this.readSequence();
+		return true;
+	}
+
+	/**
+	 *
+	 * Read the rest of the current entry into the buffer of the reader, after nextHeader().
+	 *
+	 * @return
+	 * 		the sequence, see getSequence().
+	 * @throws IOException
+	 */
+	public ByteSequence readSequence()throws IOException{
+		while( true){
+			if( this.length == this.sequence.length){
+				byte[] b = new byte[this.sequence.length * 2];
+				System.arraycopy(this.sequence, 0, b, 0, this.length);
+				this.sequence = b;
+			}
+			int n = this.readBases(this.sequence, this.length, this.sequence.length - this.length);
+			if( n < 0){
+				return this.getSequence();
+			}
+			this.length = this.length + n;
+		}
+	}
+
+
+
+	/**
+	 * @return
+	 * 		the identifier of the current entry.
+	 */
+	public String getIdentifier(){
+		return this.identifier;
+	}
+
+	/**
+	 * @return
+	 * 		the header after the identifier, or an empty String.
+	 */
+	public String getDescription(){
+		return this.description;
 	}
-	
-	
 
-	
+	/**
+	 * @return
+	 * 		the sequence of the entry read by next() or readSequence(). This is a view of the buffer of the reader and changes with the next entry.
+	 */
+	public ByteSequence getSequence(){
+		return new ByteSequence(this.sequence, 0, this.length);
+	}
+
+	/**
+	 * @return
+	 * 		the buffer with the sequence of the entry read by next() or readSequence(), see getLength().
+	 */
+	public byte[] getBuffer(){
+		return this.sequence;
+	}
+
+	/**
+	 * @return
+	 * 		the length of the sequence read by next() or readSequence().
+	 */
+	public int getLength(){
+		return this.length;
+	}
+
+
+
 
 	public BioSequence readEntry()throws IOException{
-		if (lastLine == null){
+		if( !this.next()){
 			return null;
 		}
-		
-		
-		String identifier = lastLine.split("\\s")[0].substring(1);
-		String description = "";
-		if( lastLine.split("\\s").length > 1){
-			description = lastLine.split("\\s", 2)[1];
-		}
-		
-		
-		StringBuilder builder = new StringBuilder();
-		lastLine = in.readLine();
-		while(lastLine != null && !lastLine.trim().startsWith(">")){
-			builder.append(lastLine.trim());
-			lastLine = in.readLine();
-		}
-		
-		BioSequence seq = new BioSequence(identifier, builder);
-		if( description.length() > 0){
-			seq.setDescription(description);
-		}
-		
+
+		BioSequence seq = new BioSequence(this.identifier, this.sequence, 0, this.length);
+		if( this.description.length() > 0){
+			seq.setDescription(this.description);
+		}
+
 		return seq;
 	}
 
-	
-	
+
+
 	public void close()throws IOException{
+		if( this.channel != null){
+			this.channel.close();
+			return;
+		}
 		this.in.close();
 	}
-	
-	
-	
-	private void initialize(File inputFile)throws IOException{
-		
-		//check if the fastq is gzipped
-			
-		FileInputStream fis = new FileInputStream(inputFile);
-		byte[] bytes = new byte[2];
-		fis.read(bytes);
-		int head = ((int) bytes[0] & 0xff) | ((bytes[1] << 8) & 0xff00);
-		boolean gzip = GZIPInputStream.GZIP_MAGIC == head;
-		fis.close();
-
-		
-		if(gzip){
-			this.in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(inputFile))));
-		}else{
-			this.in = new BufferedReader((new FileReader(inputFile)));
-		}
-		
-		
-		
-		this.lastLine = in.readLine();
-		while(lastLine != null && !lastLine.trim().startsWith(">")){
-			this.lastLine=in.readLine();
-		}
-				
-	}
-	
-	
-	
-	
-	
+
+
+
+
+
 }
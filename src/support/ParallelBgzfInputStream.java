@@ -0,0 +1,397 @@
+package support;
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * Decompresses BGZF (blocked gzip, as written by bgzip or samtools) on several threads.
+ * Every BGZF block is a gzip member of at most 64 kb that records its own compressed size, so blocks can be cut out of the stream without inflating them.
+ * The calling thread reads the compressed blocks and hands them to a thread pool that is shared by all streams. Decompressed blocks are returned in their original order.
+ *
+ * @author steuernb
+ *
+ */
+public class ParallelBgzfInputStream extends InputStream {
+
+	private static ExecutorService sharedExecutor;
+
+	InputStream in;
+	ExecutorService executor;
+	LinkedList<Future<byte[]>> pending;
+	int maxPending;
+	boolean endOfInput;
+
+	byte[] block;
+	int position;
+
+
+
+	/**
+	 *
+	 * Check if the first 18 bytes of a stream are a gzip header with the BGZF extra field.
+	 *
+	 * @param header
+	 * @return
+	 */
+	public static boolean isBgzfHeader(byte[] header){
+		if( header.length < 18){
+			return false;
+		}
+		return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8 && (header[3] & 4) != 0
+				&& header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+	}
+
+
+
+	/**
+	 *
+	 * Find the blocks of a BGZF file without inflating them. Only the header and the size field at the end of each block are read.
+	 *
+	 * @param bgzfFile
+	 * @return
+	 * 		two arrays with one entry per block plus one for the end of the file: the offsets of the blocks in the file and the offsets of their data in the decompressed stream.
+	 * @throws IOException
+	 */
+	public static long[][] indexBlocks(File bgzfFile)throws IOException{
+		RandomAccessFile file = new RandomAccessFile(bgzfFile, "r");
+		ArrayList<Long> compressed = new ArrayList<Long>();
+		ArrayList<Long> uncompressed = new ArrayList<Long>();
+		try{
+			long length = file.length();
+			long position = 0;
+			long offset = 0;
+			byte[] header = new byte[12];
+			byte[] size = new byte[4];
+			while( position < length){
+				file.seek(position);
+				file.readFully(header);
+				if( (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || (header[3] & 4) == 0){
+					throw new IOException("Not a BGZF block at offset " + position + " of " + bgzfFile.getAbsolutePath());
+				}
+				byte[] extra = new byte[(header[10] & 0xff) | ((header[11] & 0xff) << 8)];
+				file.readFully(extra);
+				int blockSize = blockSize(extra);
+				if( blockSize < 0){
+					throw new IOException("Gzip member without BGZF block size at offset " + position + " of " + bgzfFile.getAbsolutePath());
+				}
+				file.seek(position + blockSize - 4);
+				file.readFully(size);
+				compressed.add(position);
+				uncompressed.add(offset);
+				position = position + blockSize;
+				offset = offset + (readInt(size, 0) & 0xffffffffL);
+			}
+			compressed.add(position);
+			uncompressed.add(offset);
+		}finally{
+			file.close();
+		}
+		long[][] index = new long[2][compressed.size()];
+		for( int i = 0; i< compressed.size(); i++){
+			index[0][i] = compressed.get(i);
+			index[1][i] = uncompressed.get(i);
+		}
+		return index;
+	}
+
+
+
+	/**
+	 *
+	 * Read and inflate the single block that starts at an offset of a BGZF file. This is for random access, e.g. through virtual offsets.
+	 *
+	 * @param file
+	 * @param offset
+	 * 		offset of the block in the file.
+	 * @return
+	 * 		the decompressed data. The file pointer is left at the start of the next block.
+	 * @throws IOException
+	 */
+	public static byte[] readBlock(RandomAccessFile file, long offset)throws IOException{
+		file.seek(offset);
+		byte[] header = new byte[12];
+		file.readFully(header);
+		if( (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || (header[3] & 4) == 0){
+			throw new IOException("Not a BGZF block at offset " + offset);
+		}
+		byte[] extra = new byte[(header[10] & 0xff) | ((header[11] & 0xff) << 8)];
+		file.readFully(extra);
+		int blockSize = blockSize(extra);
+		if( blockSize < 0){
+			throw new IOException("Gzip member without BGZF block size at offset " + offset);
+		}
+		byte[] compressed = new byte[blockSize];
+		System.arraycopy(header, 0, compressed, 0, 12);
+		System.arraycopy(extra, 0, compressed, 12, extra.length);
+		file.readFully(compressed, 12 + extra.length, blockSize - 12 - extra.length);
+		return inflate(compressed);
+	}
+
+
+
+	/**
+	 *
+	 * The pool that inflates blocks for all streams that are not given their own. It is created on first use with one daemon thread per processor, so that
+	 * opening many streams, e.g. one per part of a matrix, does not start a pool per stream.
+	 *
+	 * @return
+	 */
+	public static synchronized ExecutorService sharedExecutor(){
+		if( sharedExecutor == null){
+			sharedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread t = new Thread(r, "bgzf-inflater");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return sharedExecutor;
+	}
+
+
+
+	/**
+	 *
+	 * Decompress on the shared pool.
+	 *
+	 * @param in
+	 * 		the compressed stream.
+	 * @param threads
+	 * 		number of blocks this stream inflates at the same time.
+	 */
+	public ParallelBgzfInputStream(InputStream in, int threads){
+		this(in, sharedExecutor(), threads);
+	}
+
+	/**
+	 *
+	 * @param in
+	 * 		the compressed stream.
+	 * @param executor
+	 * 		the pool that inflates the blocks. It is not shut down when the stream is closed.
+	 * @param threads
+	 * 		number of blocks this stream inflates at the same time.
+	 */
+	public ParallelBgzfInputStream(InputStream in, ExecutorService executor, int threads){
+		this.in = in;
+		this.executor = executor;
+		this.pending = new LinkedList<Future<byte[]>>();
+		this.maxPending = Math.max(1, threads) * 4;
+		this.endOfInput = false;
+		this.block = new byte[0];
+		this.position = 0;
+	}
+
+
+
+	public int read()throws IOException{
+		if( this.position >= this.block.length && !this.nextBlock()){
+			return -1;
+		}
+		return this.block[this.position++] & 0xff;
+	}
+
+
+	public int read(byte[] b, int off, int len)throws IOException{
+		if( len == 0){
+			return 0;
+		}
+		if( this.position >= this.block.length && !this.nextBlock()){
+			return -1;
+		}
+		int n = Math.min(len, this.block.length - this.position);
+		System.arraycopy(this.block, this.position, b, off, n);
+		this.position = this.position + n;
+		return n;
+	}
+
+
+	public int available(){
+		return this.block.length - this.position;
+	}
+
+
+	public void close()throws IOException{
+		for( Future<byte[]> future : this.pending){
+			future.cancel(true);
+		}
+		this.pending.clear();
+		this.in.close();
+	}
+
+
+
+	/**
+	 * Move on to the next non-empty decompressed block, keeping the thread pool busy with the blocks after it.
+	 *
+	 * @return
+	 * 		false at the end of the stream.
+	 * @throws IOException
+	 */
+	private boolean nextBlock()throws IOException{
+		do{
+			while( !this.endOfInput && this.pending.size() < this.maxPending){
+				final byte[] compressed = this.readCompressedBlock();
+				if( compressed == null){
+					this.endOfInput = true;
+				}else{
+					this.pending.add(this.executor.submit(new Callable<byte[]>(){
+						public byte[] call()throws IOException{
+							return inflate(compressed);
+						}
+					}));
+				}
+			}
+			if( this.pending.isEmpty()){
+				return false;
+			}
+			try{
+				this.block = this.pending.removeFirst().get();
+			}catch(InterruptedException e){
+				throw new IOException(e.getMessage());
+			}catch(ExecutionException e){
+				if( e.getCause() instanceof IOException){
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause().getMessage());
+			}
+			this.position = 0;
+		}while( this.block.length == 0);
+		return true;
+	}
+
+
+	/**
+	 *
+	 * Read one whole BGZF block from the underlying stream.
+	 *
+	 * @return
+	 * 		the block including header and trailer, null at the end of the stream.
+	 * @throws IOException
+	 */
+	private byte[] readCompressedBlock()throws IOException{
+		byte[] header = new byte[12];
+		int n = this.readFully(header, 0, 12);
+		if( n == 0){
+			return null;
+		}
+		if( n < 12 || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || (header[3] & 4) == 0){
+			throw new IOException("Not a BGZF block.");
+		}
+		int xlen = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+		byte[] extra = new byte[xlen];
+		if( this.readFully(extra, 0, xlen) < xlen){
+			throw new EOFException("Truncated BGZF block.");
+		}
+
+		int blockSize = blockSize(extra);
+		if( blockSize < 0){
+			throw new IOException("Gzip member without BGZF block size.");
+		}
+
+		byte[] compressed = new byte[blockSize];
+		System.arraycopy(header, 0, compressed, 0, 12);
+		System.arraycopy(extra, 0, compressed, 12, xlen);
+		int rest = blockSize - 12 - xlen;
+		if( this.readFully(compressed, 12 + xlen, rest) < rest){
+			throw new EOFException("Truncated BGZF block.");
+		}
+		return compressed;
+	}
+
+
+	/**
+	 * The total size of a block from the BC subfield of the gzip extra field, -1 if there is none.
+	 */
+	private static int blockSize(byte[] extra){
+		for( int i = 0; i + 4 <= extra.length; ){
+			int slen = (extra[i+2] & 0xff) | ((extra[i+3] & 0xff) << 8);
+			if( extra[i] == 'B' && extra[i+1] == 'C' && slen == 2 && i + 6 <= extra.length){
+				return ((extra[i+4] & 0xff) | ((extra[i+5] & 0xff) << 8)) + 1;
+			}
+			i = i + 4 + slen;
+		}
+		return -1;
+	}
+
+
+	private int readFully(byte[] b, int off, int len)throws IOException{
+		int n = 0;
+		while( n < len){
+			int r = this.in.read(b, off + n, len - n);
+			if( r < 0){
+				break;
+			}
+			n = n + r;
+		}
+		return n;
+	}
+
+
+	/**
+	 *
+	 * Inflate one BGZF block and check it against the CRC and size in its trailer.
+	 *
+	 * @param compressed
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] inflate(byte[] compressed)throws IOException{
+		int xlen = (compressed[10] & 0xff) | ((compressed[11] & 0xff) << 8);
+		int dataStart = 12 + xlen;
+		int trailer = compressed.length - 8;
+		long crc = readInt(compressed, trailer) & 0xffffffffL;
+		int size = readInt(compressed, trailer + 4);
+
+		byte[] data = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try{
+			inflater.setInput(compressed, dataStart, trailer - dataStart);
+			int n = 0;
+			while( n < size){
+				int r = inflater.inflate(data, n, size - n);
+				if( r == 0 && (inflater.finished() || inflater.needsInput())){
+					break;
+				}
+				n = n + r;
+			}
+			if( n != size){
+				throw new IOException("BGZF block is shorter than recorded.");
+			}
+		}catch(DataFormatException e){
+			throw new IOException("Corrupt BGZF block: " + e.getMessage());
+		}finally{
+			inflater.end();
+		}
+
+		CRC32 check = new CRC32();
+		check.update(data, 0, size);
+		if( check.getValue() != crc){
+			throw new IOException("CRC mismatch in BGZF block.");
+		}
+		return data;
+	}
+
+
+	private static int readInt(byte[] b, int off){
+		return (b[off] & 0xff) | ((b[off+1] & 0xff) << 8) | ((b[off+2] & 0xff) << 16) | ((b[off+3] & 0xff) << 24);
+	}
+
+}
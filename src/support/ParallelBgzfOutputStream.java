@@ -0,0 +1,202 @@
+package support;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ *
+ * Compresses to BGZF (blocked gzip, readable by gunzip, bgzip and ParallelBgzfInputStream) on several threads.
+ * Data is cut into blocks of 65280 bytes. Each block is deflated on its own, so the blocks can be compressed in parallel and are written in their original order.
+ * The output only depends on the data: the same input gives the same file, no matter how many threads are used.
+ *
+ * @author steuernb
+ *
+ */
+public class ParallelBgzfOutputStream extends OutputStream {
+
+	/**
+	 * Uncompressed bytes per block. This is what bgzip uses, it leaves room for the header and for data that does not compress.
+	 */
+	private static final int BLOCK_SIZE = 0xff00;
+
+	/**
+	 * The empty block that marks the end of a BGZF file.
+	 */
+	private static final byte[] EOF_BLOCK = {
+		0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	OutputStream out;
+	ExecutorService executor;
+	LinkedList<Future<byte[]>> pending;
+	int maxPending;
+	int level;
+
+	byte[] block;
+	int position;
+
+
+
+	public ParallelBgzfOutputStream(OutputStream out, int threads){
+		this(out, threads, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 *
+	 * @param out
+	 * 		the stream the compressed blocks are written to.
+	 * @param threads
+	 * 		number of threads for compression.
+	 * @param level
+	 * 		deflate level.
+	 */
+	public ParallelBgzfOutputStream(OutputStream out, int threads, int level){
+		this.out = out;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "bgzf-deflater");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this.pending = new LinkedList<Future<byte[]>>();
+		this.maxPending = Math.max(1, threads) * 4;
+		this.level = level;
+		this.block = new byte[BLOCK_SIZE];
+		this.position = 0;
+	}
+
+
+
+	public void write(int b)throws IOException{
+		this.block[this.position++] = (byte) b;
+		if( this.position == BLOCK_SIZE){
+			this.submitBlock();
+		}
+	}
+
+
+	public void write(byte[] b, int off, int len)throws IOException{
+		while( len > 0){
+			int n = Math.min(len, BLOCK_SIZE - this.position);
+			System.arraycopy(b, off, this.block, this.position, n);
+			this.position = this.position + n;
+			off = off + n;
+			len = len - n;
+			if( this.position == BLOCK_SIZE){
+				this.submitBlock();
+			}
+		}
+	}
+
+
+	/**
+	 * Write out everything compressed so far. A partly filled block is compressed as a short block.
+	 */
+	public void flush()throws IOException{
+		if( this.position > 0){
+			this.submitBlock();
+		}
+		while( !this.pending.isEmpty()){
+			this.writeNext();
+		}
+		this.out.flush();
+	}
+
+
+	public void close()throws IOException{
+		try{
+			this.flush();
+			this.out.write(EOF_BLOCK);
+		}finally{
+			this.executor.shutdownNow();
+			this.out.close();
+		}
+	}
+
+
+
+	private void submitBlock()throws IOException{
+		final byte[] data = this.block;
+		final int length = this.position;
+		final int level = this.level;
+		this.pending.add(this.executor.submit(new Callable<byte[]>(){
+			public byte[] call(){
+				return deflate(data, length, level);
+			}
+		}));
+		this.block = new byte[BLOCK_SIZE];
+		this.position = 0;
+		while( this.pending.size() >= this.maxPending){
+			this.writeNext();
+		}
+	}
+
+
+	private void writeNext()throws IOException{
+		try{
+			this.out.write(this.pending.removeFirst().get());
+		}catch(InterruptedException e){
+			throw new IOException(e.getMessage());
+		}catch(ExecutionException e){
+			throw new IOException(e.getCause().getMessage());
+		}
+	}
+
+
+
+	/**
+	 *
+	 * Compress one block into a complete BGZF block with header, block size, CRC and length.
+	 *
+	 * @param data
+	 * @param length
+	 * @param level
+	 * @return
+	 */
+	private static byte[] deflate(byte[] data, int length, int level){
+		byte[] compressed = new byte[BLOCK_SIZE + 1024];
+		Deflater deflater = new Deflater(level, true);
+		int n = 18;
+		try{
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			while( !deflater.finished()){
+				n = n + deflater.deflate(compressed, n, compressed.length - 8 - n);
+			}
+		}finally{
+			deflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+
+		int blockSize = n + 8;
+		byte[] result = new byte[blockSize];
+		System.arraycopy(compressed, 18, result, 18, n - 18);
+		System.arraycopy(EOF_BLOCK, 0, result, 0, 16);
+		result[16] = (byte) (blockSize - 1);
+		result[17] = (byte) ((blockSize - 1) >>> 8);
+		writeInt(result, n, (int) crc.getValue());
+		writeInt(result, n + 4, length);
+		return result;
+	}
+
+
+	private static void writeInt(byte[] b, int off, int value){
+		b[off] = (byte) value;
+		b[off+1] = (byte) (value >>> 8);
+		b[off+2] = (byte) (value >>> 16);
+		b[off+3] = (byte) (value >>> 24);
+	}
+
+}
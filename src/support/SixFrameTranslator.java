@@ -0,0 +1,174 @@
+package support;
+
+
+import java.util.Random;
+
+/**
+ *
+ * Translation of nucleotide sequences in all six reading frames with the standard genetic code.
+ * Bases are turned into 2 bit codes, so a codon is a number from 0 to 63 and its amino acid comes from a table. A codon with a base other than A, C, G or T is translated to X.
+ *
+ * All six frames are made in one pass over the sequence. The last three bases are kept as codes for both strands: the forward codon and the codon of the reverse complement that covers the same bases.
+ * The codon that ends at a base belongs to one forward frame and one reverse frame. Reverse frames are filled from the end, so the reverse complement is never built.
+ *
+ * The frames are in the order +0, +1, +2, -0, -1, -2. Frame +k starts at base k of the sequence, frame -k at base k of the reverse complement. Incomplete codons at the ends are dropped.
+ *
+ * @author steuernb
+ *
+ */
+public class SixFrameTranslator {
+
+	/**
+	 * amino acids of the codons, the first base in the highest bits. A is 0, C is 1, G is 2 and T is 3.
+	 */
+	private static final char[] CODE = (
+			"KNKNTTTTRSRSIIMI" +
+			"QHQHPPPPRRRRLLLL" +
+			"EDEDAAAAGGGGVVVV" +
+			"*Y*YSSSS*CWCLFLF").toCharArray();
+
+	private static final int[] BASES = new int[128];
+	static{
+		for( int i = 0; i< BASES.length; i++){
+			BASES[i] = -1;
+		}
+		BASES['A'] = 0; BASES['a'] = 0;
+		BASES['C'] = 1; BASES['c'] = 1;
+		BASES['G'] = 2; BASES['g'] = 2;
+		BASES['T'] = 3; BASES['t'] = 3;
+	}
+
+
+
+	/**
+	 *
+	 * Check the one pass translation against translating the triplets of the sequence and of its reverse complement one by one, for random sequences
+	 * of up to 100 bases with lower case and N. The first mismatch is printed and the check exits with 1.
+	 *
+	 * @param args
+	 * 		optional number of sequences, default 100000.
+	 */
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		Random random = new Random(1);
+		String bases = "ACGTACGTACGTacgtN";
+		String complement = "TGCATGCATGCAtgcaN";
+		for( int i = 0; i< n; i++){
+			char[] c = new char[random.nextInt(101)];
+			char[] r = new char[c.length];
+			for( int j = 0; j< c.length; j++){
+				int b = random.nextInt(bases.length());
+				c[j] = bases.charAt(b);
+				r[c.length - 1 - j] = complement.charAt(b);
+			}
+			String sequence = new String(c);
+			char[][] frames = translate(sequence);
+			for( int k = 0; k < 6; k++){
+				char[] strand = k < 3 ? c : r;
+				StringBuilder expected = new StringBuilder();
+				for( int j = k % 3; j + 3 <= strand.length; j = j + 3){
+					expected.append(translate(strand[j], strand[j+1], strand[j+2]));
+				}
+				if( !expected.toString().equals(new String(frames[k]))){
+					System.out.println("Frame " + (k < 3 ? "+" : "-") + (k % 3) + " of " + sequence + " is " + new String(frames[k]) + ", expected " + expected);
+					System.exit(1);
+				}
+			}
+		}
+		System.out.println("Six frame translations of " + n + " sequences agree with codon by codon translation.");
+	}
+
+
+
+	/**
+	 *
+	 * Translate a single codon.
+	 *
+	 * @param c1
+	 * @param c2
+	 * @param c3
+	 * @return
+	 * 		the amino acid, * for a stop codon and X if a base is not A, C, G or T.
+	 */
+	public static char translate(char c1, char c2, char c3){
+		int b1 = code(c1);
+		int b2 = code(c2);
+		int b3 = code(c3);
+		if( b1 < 0 || b2 < 0 || b3 < 0){
+			return 'X';
+		}
+		return CODE[(b1 << 4) | (b2 << 2) | b3];
+	}
+
+	private static int code(char c){
+		return c < 128 ? BASES[c] : -1;
+	}
+
+
+
+	/**
+	 *
+	 * Translate a sequence in all six frames.
+	 *
+	 * @param sequence
+	 * @return
+	 * 		six protein sequences in the order +0, +1, +2, -0, -1, -2.
+	 */
+	public static char[][] translate(CharSequence sequence){
+		int length = sequence.length();
+		char[][] frames = new char[6][];
+		for( int k = 0; k < 3; k++){
+			int codons = Math.max(0, (length - k) / 3);
+			frames[k] = new char[codons];
+			frames[k + 3] = new char[codons];
+		}
+
+		int forward = 0;
+		int reverse = 0;
+		int valid = 0;
+		for( int i = 0; i< length; i++){
+			int b = code(sequence.charAt(i));
+			if( b < 0){
+				valid = 0;
+				b = 0;
+			}else{
+				valid++;
+			}
+			forward = ((forward << 2) | b) & 63;
+			reverse = (reverse >>> 2) | ((3 - b) << 4);
+
+			int start = i - 2;
+			if( start < 0){
+				continue;
+			}
+			int k = start % 3;
+			frames[k][start / 3] = valid >= 3 ? CODE[forward] : 'X';
+			int rest = length - 3 - start;
+			k = rest % 3;
+			frames[k + 3][rest / 3] = valid >= 3 ? CODE[reverse] : 'X';
+		}
+		return frames;
+	}
+
+
+
+	/**
+	 *
+	 * Translate a sequence in all six frames.
+	 *
+	 * @param sequence
+	 * @return
+	 * 		six protein sequences with the identifier of the sequence and _frame+0, _frame+1, _frame+2, _frame-0, _frame-1 or _frame-2 appended.
+	 */
+	public static BioSequence[] translate(BioSequence sequence){
+		char[][] frames = translate(sequence.getView());
+		BioSequence[] proteins = new BioSequence[6];
+		for( int k = 0; k < 6; k++){
+			String name = sequence.getIdentifier() + "_frame" + (k < 3 ? "+" : "-") + (k % 3);
+			proteins[k] = new BioSequence(name, new String(frames[k]));
+		}
+		return proteins;
+	}
+
+
+}
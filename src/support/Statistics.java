@@ -0,0 +1,136 @@
+package support;
+
+
+/**
+ *
+ * Distribution functions that are needed for association tests.
+ *
+ * @author steuernb
+ *
+ */
+public class Statistics {
+
+	private static final double[] LANCZOS = {676.5203681218851, -1259.1392167224028, 771.32342877765313, -176.61502916214059, 12.507343278686905, -0.13857109526572012, 9.9843695780195716e-6, 1.5056327351493116e-7};
+
+	private static final int MAX_ITERATIONS = 300;
+	private static final double ACCURACY = 1e-15;
+	private static final double TINY = 1e-300;
+
+
+
+	/**
+	 *
+	 * Natural logarithm of the gamma function, Lanczos approximation.
+	 *
+	 * @param x
+	 * 		a positive number.
+	 * @return
+	 */
+	public static double logGamma(double x){
+		if( x < 0.5){
+			//reflection formula
+			return Math.log(Math.PI / Math.abs(Math.sin(Math.PI * x))) - logGamma(1 - x);
+		}
+		x = x - 1;
+		double a = 0.99999999999980993;
+		double t = x + 7.5;
+		for( int i = 0; i< LANCZOS.length; i++){
+			a = a + LANCZOS[i] / (x + i + 1);
+		}
+		return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(a);
+	}
+
+
+
+	/**
+	 *
+	 * The regularized incomplete beta function I_x(a,b), evaluated with a continued fraction.
+	 *
+	 * @param x
+	 * 		between 0 and 1.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static double regularizedBeta(double x, double a, double b){
+		if( x <= 0){
+			return 0;
+		}
+		if( x >= 1){
+			return 1;
+		}
+		double logFront = logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1 - x);
+
+		//the continued fraction converges quickly for x < (a+1)/(a+b+2), otherwise use the symmetry I_x(a,b) = 1 - I_1-x(b,a).
+		if( x < (a + 1) / (a + b + 2)){
+			return Math.exp(logFront) * betaFraction(x, a, b) / a;
+		}
+		return 1 - Math.exp(logFront) * betaFraction(1 - x, b, a) / b;
+	}
+
+
+	/**
+	 * Continued fraction of the incomplete beta function, modified Lentz's method.
+	 */
+	private static double betaFraction(double x, double a, double b){
+		double c = 1;
+		double d = 1 - (a + b) * x / (a + 1);
+		if( Math.abs(d) < TINY){
+			d = TINY;
+		}
+		d = 1 / d;
+		double h = d;
+		for( int m = 1; m <= MAX_ITERATIONS; m++){
+			int m2 = 2 * m;
+
+			double aa = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+			d = 1 + aa * d;
+			if( Math.abs(d) < TINY){
+				d = TINY;
+			}
+			c = 1 + aa / c;
+			if( Math.abs(c) < TINY){
+				c = TINY;
+			}
+			d = 1 / d;
+			h = h * d * c;
+
+			aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+			d = 1 + aa * d;
+			if( Math.abs(d) < TINY){
+				d = TINY;
+			}
+			c = 1 + aa / c;
+			if( Math.abs(c) < TINY){
+				c = TINY;
+			}
+			d = 1 / d;
+			double delta = d * c;
+			h = h * delta;
+			if( Math.abs(delta - 1) < ACCURACY){
+				break;
+			}
+		}
+		return h;
+	}
+
+
+
+	/**
+	 *
+	 * Two sided p-value of Student's t distribution.
+	 *
+	 * @param t
+	 * @param df
+	 * 		degrees of freedom.
+	 * @return
+	 * 		the probability of a t statistic at least as extreme as |t|.
+	 */
+	public static double studentTPValue(double t, double df){
+		if( Double.isInfinite(t)){
+			return 0;
+		}
+		return regularizedBeta(df / (df + t * t), df / 2, 0.5);
+	}
+
+}